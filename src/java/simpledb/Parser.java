@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -24,6 +26,39 @@ import simpledb.transaction.TransactionId;
 
 public class Parser {
     static boolean explain = false;
+    /** Workers a query may use, see {@link LogicalPlan#setParallelism}; set with -parallel */
+    static int parallelism = 1;
+    /** See {@link LogicalPlan#setReoptimizationThreshold}; set with -reoptimize */
+    static double reoptimizationThreshold = 0;
+
+    /** A trailing LIMIT clause, which Zql cannot parse */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+limit\\s+(\\d{1,9})\\s*(;?)\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /** ANALYZE table [SAMPLE pages], which Zql cannot parse either */
+    private static final Pattern ANALYZE_STATEMENT = Pattern.compile(
+            "^\\s*analyze\\s+(\\w+)(?:\\s+sample\\s+(\\d{1,9}))?\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * @return the n of a trailing "LIMIT n" of the statement s, or -1 if it
+     * has none; the limit belongs to the outermost query, not to a subquery
+     */
+    static int limitOf(String s) {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        return m.find() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    /**
+     * Remove a trailing "LIMIT n" from the statement s, see {@link #limitOf}.
+     *
+     * @return the statement without its LIMIT clause
+     */
+    static String stripLimit(String s) {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (m.find())
+            return s.substring(0, m.start()) + m.group(2);
+        return s;
+    }
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -187,23 +222,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +243,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        List<String> aggFields = new ArrayList<>();
+        List<String> aggFuns = new ArrayList<>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +254,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,32 +275,34 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        // 所有聚合在同一个Aggregate算子中一趟计算
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i), null);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
+
         return lp;
     }
 
@@ -281,9 +312,23 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, -1);
+    }
+
+    /**
+     * Like {@link #handleQueryStatement(ZQuery, TransactionId)}, returning at
+     * most limit tuples if limit is not negative.
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.setLimit(limit);
+        lp.setParallelism(parallelism);
+        lp.setReoptimizationThreshold(reoptimizationThreshold);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -319,6 +364,16 @@ public class Parser {
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
             throws DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleInsertStatement(s, tId, -1);
+    }
+
+    /**
+     * Like {@link #handleInsertStatement(ZInsert, TransactionId)}, inserting
+     * at most limit tuples of the query if limit is not negative.
+     */
+    public Query handleInsertStatement(ZInsert s, TransactionId tId, int limit)
+            throws DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         int tableId;
         try {
             tableId = Database.getCatalog().getTableId(s.getTable()); // will
@@ -383,6 +438,9 @@ public class Parser {
         } else {
             ZQuery zq = s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            if (limit >= 0)
+                lp.setLimit(limit);
+            lp.setParallelism(1);  // 插入与扫描在同一事务中，不能并行读
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -390,6 +448,21 @@ public class Parser {
         return insertQ;
     }
 
+    /**
+     * Like {@link #handleDeleteStatement(ZDelete, TransactionId)}; a DELETE
+     * cannot be limited, so limit must be negative.
+     *
+     * @throws ParsingException if limit is not negative
+     */
+    public Query handleDeleteStatement(ZDelete s, TransactionId tid, int limit)
+            throws
+            simpledb.ParsingException, IOException, ParseException {
+        // 删除的元组没有顺序，LIMIT无法确定删除哪些，直接拒绝而不是全部删除
+        if (limit >= 0)
+            throw new simpledb.ParsingException("LIMIT is not supported in DELETE");
+        return handleDeleteStatement(s, tid);
+    }
+
     public Query handleDeleteStatement(ZDelete s, TransactionId tid)
             throws
             simpledb.ParsingException, IOException, ParseException {
@@ -414,6 +487,7 @@ public class Parser {
         if (s.getWhere() != null)
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
+        lp.setParallelism(1);  // 删除的同时不能有其他线程扫描同一页面
 
         OpIterator op = new Delete(tid, lp.physicalPlan(tid,
                 TableStats.getStatsMap(), false));
@@ -465,12 +539,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                int limit = limitOf(s);
+                if (limit >= 0)
+                    lp.setLimit(limit);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -495,7 +573,22 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // read the whole statement so that a LIMIT clause can be removed
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                bos.write(buf, 0, n);
+            String text = new String(bos.toByteArray(), StandardCharsets.UTF_8);
+            Matcher analyze = ANALYZE_STATEMENT.matcher(text);
+            if (analyze.matches()) {
+                handleAnalyzeStatement(analyze.group(1),
+                        analyze.group(2) == null ? -1 : Integer.parseInt(analyze.group(2)));
+                return;
+            }
+            String stmt = stripLimit(text);
+            int limit = limitOf(text);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(stmt.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -511,13 +604,13 @@ public class Parser {
                 try {
                     if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -564,10 +657,29 @@ public class Parser {
         }
     }
 
+    /**
+     * Recompute the statistics of a table, see {@link TableStats#analyze}.
+     *
+     * @param samplePages the number of pages to sample from now on, see
+     *                    {@link TableStats#setSampleSize}, or -1 to keep it
+     */
+    private void handleAnalyzeStatement(String tableName, int samplePages) throws IOException {
+        try {
+            Database.getCatalog().getTableId(tableName);
+            if (samplePages >= 0)
+                TableStats.setSampleSize(tableName, samplePages);
+            TableStats s = TableStats.analyze(tableName);
+            System.out.println("Analyzed " + tableName + ": " + (s.isSampled() ? "about " : "")
+                    + s.totalTuples() + " tuples.");
+        } catch (NoSuchElementException e) {
+            System.out.println("Unknown table " + tableName);
+        }
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit", "analyze", "sample" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -581,10 +693,15 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-parallel workers] [-reoptimize factor] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        try {
+            TableStats.saveStatistics();
+        } catch (IOException e) {
+            System.out.println("Could not save table stats: " + e.getMessage());
+        }
         System.out.println("Bye");
     }
 
@@ -593,7 +710,7 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        TableStats.loadStatistics(TableStats.statisticsFile(argv[0]));
 
         String queryFile = null;
 
@@ -602,6 +719,23 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-parallel")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected number of workers after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    parallelism = Integer.parseInt(argv[i]);
+                    System.out.println("Queries run on up to " + parallelism + " workers.");
+                } else if (argv[i].equals("-reoptimize")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected misestimation factor after -reoptimize\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    reoptimizationThreshold = Double.parseDouble(argv[i]);
+                    System.out.println("Joins are ordered again when an input is misestimated by more than "
+                            + reoptimizationThreshold + " times.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
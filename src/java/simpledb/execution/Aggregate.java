@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -11,18 +12,30 @@ import java.util.NoSuchElementException;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). It computes any number of aggregates, each over a single column,
+ * grouped by any number of columns, in one pass over its child.
+ * <p>
+ * Given a memory budget, a grouped aggregation keeps at most as many groups
+ * in memory as fit in the budget and partitions the rest to disk, see
+ * {@link ExternalAggregation}; otherwise all groups are kept in memory.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Default memory budget of a grouped aggregation, in pages.
+     */
+    public static final int DEFAULT_AGG_PAGES = BufferPool.DEFAULT_PAGES;
+
     private OpIterator child;
-    private int afield;
-    private int gbfield;
-    private Aggregator.Op op;
+    private final int[] afields;
+    private final int[] gbfields;
+    private final Aggregator.Op[] ops;
     private Aggregator aggregator;
+    private final int aggPages;
+    private transient ExternalAggregation external;
     private TupleDesc td;
     OpIterator it;  // 这个算子全局的迭代器，来自于聚合器
 
@@ -40,41 +53,95 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[]{afield}, new Aggregator.Op[]{aop},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield});
+    }
+
+    /**
+     * Constructor for several aggregates and group-by columns. The output
+     * tuples hold the group-by columns in the given order followed by one
+     * column per aggregate.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param aops    The aggregation operator of each column of afields.
+     * @param gfields The columns over which we are grouping the result, empty
+     *                if there is no grouping
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        this(child, afields, aops, gfields, 0);
+    }
+
+    /**
+     * Constructor for a grouped aggregation under a memory budget.
+     *
+     * @param child    The OpIterator that is feeding us tuples.
+     * @param afields  The columns over which we are computing aggregates.
+     * @param aops     The aggregation operator of each column of afields.
+     * @param gfields  The columns over which we are grouping the result, empty
+     *                 if there is no grouping
+     * @param aggPages The memory budget for the groups in pages, or 0 to keep
+     *                 all groups in memory. Only used if there is grouping.
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields, int aggPages) {
         // some code goes here
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
         this.child = child;
-        this.afield = afield;
-        this.gbfield = gfield;
-        this.op = aop;
+        this.afields = afields.clone();
+        this.gbfields = gfields.clone();
+        this.ops = aops.clone();
+        this.aggPages = gfields.length > 0 ? Math.max(0, aggPages) : 0;
         TupleDesc td = child.getTupleDesc();
-        Type aType = td.getFieldType(afield);
-        Type gbType = null;
-        if (gbfield != Aggregator.NO_GROUPING) {
-            gbType = td.getFieldType(gbfield);
-        }
+        Type[] aTypes = new Type[afields.length];
+        for (int j = 0; j < afields.length; j++)
+            aTypes[j] = td.getFieldType(afields[j]);
+        Type[] gbTypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gbTypes[i] = td.getFieldType(gfields[i]);
 
-        // 根据聚合的列的类型（int/string）来选择聚合器构造函数
-        if (aType == Type.INT_TYPE) {
-            aggregator = new IntegerAggregator(gfield, gbType, afield, aop);
-        } else if (aType == Type.STRING_TYPE) {
-            aggregator = new StringAggregator(gfield, gbType, afield, aop);
+        if (this.aggPages > 0) {
+            // 有内存预算时在open中创建ExternalAggregation
+            aggregator = null;
+        } else if (afields.length == 1 && gfields.length <= 1) {
+            // 单个聚合：根据聚合的列的类型（int/string）来选择聚合器构造函数
+            int gfield = groupField();
+            Type gbType = hasGroupBy() ? gbTypes[0] : null;
+            if (aTypes[0] == Type.INT_TYPE) {
+                aggregator = new IntegerAggregator(gfield, gbType, afields[0], aops[0]);
+            } else if (aTypes[0] == Type.STRING_TYPE) {
+                aggregator = new StringAggregator(gfield, gbType, afields[0], aops[0]);
+            }
+        } else {
+            // 多个聚合或多个分组列：一趟扫描，每个元组只探测一次哈希表
+            aggregator = new MultiAggregator(gfields, gbTypes, afields, aTypes, aops);
         }
 
-        // 根据有无group by，构造tupleDesc
-        Type[] typeArr = null;
-        String[] fieldNameArr = null;
-        String aFieldName = String.format("aggName(%s) (%s)", op.toString(), aggregateFieldName());
-        if (!hasGroupBy()) {
-            typeArr = new Type[]{Type.INT_TYPE};
-            fieldNameArr = new String[]{aFieldName};
-        } else {
-            typeArr = new Type[]{gbType, Type.INT_TYPE};
-            fieldNameArr = new String[]{groupFieldName(), aFieldName};
+        // 输出：先是各分组列，然后每个聚合一列
+        Type[] typeArr = new Type[gfields.length + afields.length];
+        String[] fieldNameArr = new String[typeArr.length];
+        for (int i = 0; i < gfields.length; i++) {
+            typeArr[i] = gbTypes[i];
+            fieldNameArr[i] = td.getFieldName(gfields[i]);
+        }
+        for (int j = 0; j < afields.length; j++) {
+            typeArr[gfields.length + j] = Type.INT_TYPE;
+            fieldNameArr[gfields.length + j] = String.format("aggName(%s) (%s)",
+                    aops[j].toString(), td.getFieldName(afields[j]));
         }
         this.td = new TupleDesc(typeArr, fieldNameArr);
     }
 
+    /**
+     * @return the memory budget for the groups in pages, 0 if all groups are
+     * kept in memory
+     */
+    public int getAggPages() {
+        return aggPages;
+    }
+
     private boolean hasGroupBy() {
-        return !(gbfield == -1);
+        return gbfields.length > 0;
     }
 
     /**
@@ -84,7 +151,25 @@ public class Aggregate extends Operator {
      */
     public int groupField() {
         // some code goes here
-        return gbfield;
+        return hasGroupBy() ? gbfields[0] : Aggregator.NO_GROUPING;
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, empty if
+     * there is no group by
+     */
+    public int[] groupFields() {
+        return gbfields.clone();
+    }
+
+    /**
+     * @return the names of the groupby fields in the <b>OUTPUT</b> tuples
+     */
+    public String[] groupFieldNames() {
+        String[] names = new String[gbfields.length];
+        for (int i = 0; i < names.length; i++)
+            names[i] = td.getFieldName(i);
+        return names;
     }
 
     /**
@@ -97,7 +182,7 @@ public class Aggregate extends Operator {
         if (!hasGroupBy()) {
             return null;
         } else {
-            return child.getTupleDesc().getFieldName(gbfield);
+            return child.getTupleDesc().getFieldName(gbfields[0]);
         }
     }
 
@@ -106,7 +191,14 @@ public class Aggregate extends Operator {
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
+    }
+
+    /**
+     * @return the aggregate fields in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -115,7 +207,7 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(afield);
+        return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
@@ -123,7 +215,14 @@ public class Aggregate extends Operator {
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return op;
+        return ops[0];
+    }
+
+    /**
+     * @return the aggregate operators, one per aggregate field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return ops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -134,23 +233,49 @@ public class Aggregate extends Operator {
             TransactionAbortedException {
         // some code goes here
         child.open();
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
-        }
-        it = aggregator.iterator();  // 实例化迭代器
-        it.open();  // 打开迭代器
+        aggregateChild();
         super.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Called by {@link #open()} after the child has been opened; consumes
+     * the child and prepares the results.
+     */
+    protected void aggregateChild() throws DbException, TransactionAbortedException {
+        if (aggPages > 0) {
+            if (external != null)
+                external.close();
+            external = new ExternalAggregation(child.getTupleDesc(), gbfields, afields, ops, aggPages);
+            while (child.hasNext()) {
+                external.add(child.next());
+            }
+            external.finish();
+        } else {
+            while (child.hasNext()) {
+                aggregator.mergeTupleIntoGroup(child.next());
+            }
+            it = aggregator.iterator();  // 实例化迭代器
+            it.open();  // 打开迭代器
+        }
+    }
+
+    /**
+     * Returns the next tuple. If there are group by fields, then the first
+     * fields are the fields by which we are grouping, and the remaining
+     * fields are the results of computing the aggregates. If there is no
+     * group by field, then the result tuple contains one field per aggregate.
+     * Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
+        if (external != null) {
+            if (external.hasNext()) {
+                Tuple t = external.next();
+                t.resetTupleDesc(this.getTupleDesc());
+                return t;
+            }
+            return null;
+        }
         if (it.hasNext()) {
             Tuple t = it.next();
             t.resetTupleDesc(this.getTupleDesc());  // 重新设置td
@@ -162,14 +287,16 @@ public class Aggregate extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child.rewind();
-        it.rewind();
+        if (external != null)
+            external.rewind();
+        else
+            it.rewind();
     }
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * this will have one field per aggregate column. If there are group by
+     * fields, they come first, followed by the aggregate value columns.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -185,6 +312,10 @@ public class Aggregate extends Operator {
         // some code goes here
         super.close();
         child.close();
+        if (external != null) {
+            external.close();
+            external = null;
+        }
     }
 
     @Override
@@ -79,6 +79,19 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the partial state of other into this aggregator, as if the
+     * tuples merged into other had been merged into this one. other must be
+     * of the same class and computing the same aggregates over tuples of the
+     * same schema, typically over another part of the input. The state of an
+     * AVG is kept as a sum and a count until the results are read, so
+     * merging partial averages is exact.
+     *
+     * @param other the partial aggregate to merge; it is not changed
+     * @throws IllegalArgumentException if other computes different aggregates
+     */
+    void merge(Aggregator other);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
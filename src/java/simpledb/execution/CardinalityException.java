@@ -0,0 +1,50 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+
+import java.util.List;
+
+/**
+ * Thrown when an operator is opened and finds that an input it read
+ * completely into memory has far more or fewer tuples than estimated, see
+ * {@link Operator#setCardinalityThreshold}. The plan above the input was
+ * chosen for the wrong size; {@link Reoptimize} plans it again.
+ */
+public class CardinalityException extends DbException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator input;
+    private final int actual;
+    private final List<Tuple> tuples;
+
+    /**
+     * @param input  the input whose size was misestimated
+     * @param actual the number of tuples of input
+     * @param tuples all tuples of input, so that it does not have to be
+     *               computed again to be used
+     */
+    public CardinalityException(OpIterator input, int actual, List<Tuple> tuples) {
+        super(String.format("input of %d tuples, estimated %d", actual,
+                input instanceof Operator ? ((Operator) input).getEstimatedCardinality() : 0));
+        this.input = input;
+        this.actual = actual;
+        this.tuples = tuples;
+    }
+
+    public OpIterator getInput() {
+        return input;
+    }
+
+    public int getActual() {
+        return actual;
+    }
+
+    /**
+     * @return the tuples of the input
+     */
+    public List<Tuple> getTuples() {
+        return tuples;
+    }
+}
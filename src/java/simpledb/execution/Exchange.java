@@ -0,0 +1,127 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exchange is the base class of operators that move tuples between threads
+ * for intra-query parallelism. Its subclasses run copies of a subplan on the
+ * shared worker pool; see {@link Gather}.
+ * <p>
+ * It also knows how to split a plan into copies: {@link #parallelize} turns a
+ * pipeline of operators over a {@link SeqScan} of a {@link HeapFile} into a
+ * {@link Gather} over copies of the pipeline, each scanning a disjoint range
+ * of the pages of the file.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of copies of a parallel subplan.
+     */
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Tables with fewer pages than this per worker are scanned by fewer
+     * workers, since starting a worker costs more than scanning a few pages.
+     */
+    public static final int MIN_PAGES_PER_WORKER = 8;
+
+    private static final AtomicInteger threadNo = new AtomicInteger();
+
+    /**
+     * The worker threads. The pool grows on demand so that copies of a
+     * subplan that itself contains an Exchange can never wait for each other
+     * to get a thread; idle threads exit after a minute.
+     */
+    static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "simpledb-worker-" + threadNo.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @return the name of this exchange in query plans
+     */
+    public abstract String getName();
+
+    /**
+     * @return the number of copies a scan of numPages pages is split into
+     * with at most workers workers
+     */
+    public static int partitions(int numPages, int workers) {
+        return Math.max(1, Math.min(workers, numPages / MIN_PAGES_PER_WORKER));
+    }
+
+    /**
+     * @return true if plan is a pipeline that {@link #parallelize} can split
+     */
+    public static boolean canParallelize(OpIterator plan) {
+        if (plan instanceof Filter)
+            return canParallelize(((Filter) plan).getChildren()[0]);
+        if (plan instanceof SeqScan) {
+            SeqScan s = (SeqScan) plan;
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(s.getTableName()));
+            return f instanceof HeapFile && s.getEndPage() < 0;
+        }
+        return false;
+    }
+
+    /**
+     * Split a pipeline of Filters over a SeqScan of a HeapFile into copies
+     * that scan disjoint page ranges, and gather their output.
+     *
+     * @param plan    the pipeline; see {@link #canParallelize}
+     * @param workers the maximum number of copies
+     * @return a Gather over the copies, or plan itself if the table is too
+     * small to be worth splitting
+     */
+    public static OpIterator parallelize(OpIterator plan, int workers) {
+        if (!canParallelize(plan))
+            throw new IllegalArgumentException("cannot parallelize " + plan.getClass().getSimpleName());
+        SeqScan scan = baseScan(plan);
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(scan.getTableName()));
+        int numPages = f.numPages();
+        int n = partitions(numPages, workers);
+        if (n == 1)
+            return plan;
+        OpIterator[] copies = new OpIterator[n];
+        for (int i = 0; i < n; i++) {
+            // 第i份扫描[i*numPages/n, (i+1)*numPages/n)页
+            int start = (int) ((long) i * numPages / n);
+            int end = (int) ((long) (i + 1) * numPages / n);
+            copies[i] = copy(plan, start, end);
+        }
+        return new Gather(copies);
+    }
+
+    private static SeqScan baseScan(OpIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        return (SeqScan) plan;
+    }
+
+    /**
+     * @return a copy of the pipeline plan whose scan is restricted to the
+     * pages [start, end)
+     */
+    private static OpIterator copy(OpIterator plan, int start, int end) {
+        if (plan instanceof Filter) {
+            Filter f = (Filter) plan;
+            return new Filter(f.getPredicate(), copy(f.getChildren()[0], start, end));
+        }
+        SeqScan s = (SeqScan) plan;
+        SeqScan c = new SeqScan(s.getTransactionId(), Database.getCatalog().getTableId(s.getTableName()),
+                s.getAlias(), start, end, s.getColumns(), s.getPredicates());
+        c.setRecordIdColumn(s.hasRecordIdColumn());
+        return c;
+    }
+}
@@ -0,0 +1,389 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * ExternalAggregation computes grouped aggregates under a fixed memory
+ * budget (hybrid hash aggregation). Tuples are merged into a resident
+ * {@link MultiAggregator} until it holds as many groups as fit in the
+ * budget; from then on tuples of groups that are already resident are still
+ * merged in place, while tuples of new groups are hash-partitioned on their
+ * group key into temporary partition files. After the last tuple every
+ * partition is aggregated on its own with a fresh aggregator, partitioning it
+ * again with another hash function if it still has too many groups, and the
+ * results are appended to a result file. The budget is split between the
+ * groups and the page-sized buffers of the partitions: the resident groups
+ * are written to the result file before the partitions are aggregated, so at
+ * most one aggregator of at most maxGroups groups is held in memory at a
+ * time, next to the buffers of one level of partitions.
+ * <p>
+ * Usage: {@link #add} every tuple, call {@link #finish}, then read the
+ * results with {@link #hasNext}/{@link #next}. {@link #close} deletes the
+ * files.
+ */
+public class ExternalAggregation {
+
+    /**
+     * Partitioning levels after which a partition is aggregated in memory
+     * regardless of the budget; only reached if many groups collide under
+     * every hash function.
+     */
+    private static final int MAX_LEVELS = 8;
+
+    private final TupleDesc childTd;
+    private final int[] gbfields;
+    private final Type[] gbTypes;
+    private final int[] afields;
+    private final Type[] aTypes;
+    private final Aggregator.Op[] ops;
+    private final TupleDesc outTd;
+    private final int maxGroups;
+    private final int fanOut;
+
+    private MultiAggregator resident;
+    private Partition[] partitions;
+    private boolean finished = false;
+
+    // output state
+    private File results;
+    private long numResults = 0;
+    private OpIterator residentIt;
+    private DataInputStream resultIn;
+    private long resultsRead = 0;
+
+    /**
+     * @param childTd  the schema of the input tuples
+     * @param gbfields the group-by fields, at least one
+     * @param afields  the aggregate fields
+     * @param ops      the aggregation operator of each aggregate field
+     * @param pages    memory budget in pages of {@link BufferPool#getPageSize()}
+     *                 bytes; bounds the number of groups held in memory and
+     *                 the partitioning fan-out
+     */
+    public ExternalAggregation(TupleDesc childTd, int[] gbfields, int[] afields,
+                               Aggregator.Op[] ops, int pages) {
+        if (gbfields.length == 0)
+            throw new IllegalArgumentException("aggregation without grouping needs no budget");
+        this.childTd = childTd;
+        this.gbfields = gbfields.clone();
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        this.gbTypes = new Type[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            gbTypes[i] = childTd.getFieldType(gbfields[i]);
+        this.aTypes = new Type[afields.length];
+        for (int j = 0; j < afields.length; j++)
+            aTypes[j] = childTd.getFieldType(afields[j]);
+        this.resident = newAggregator();
+        this.outTd = resident.getTupleDesc();
+
+        // 每个分区占用一个页大小的输出缓冲，其余的页留给内存中的分组
+        this.fanOut = Math.max(2, pages / 2);
+        this.maxGroups = groupsInBudget(outTd, gbfields.length, afields.length, pages - fanOut);
+    }
+
+    /**
+     * @return the number of groups of a {@link MultiAggregator} with output
+     * schema outTd that fit in pages pages
+     */
+    static int groupsInBudget(TupleDesc outTd, int numGbfields, int numAfields, int pages) {
+        // 每组的开销：输出元组、每个聚合和计数各一个long，以及哈希表槽位和分组键
+        long groupBytes = outTd.getSize() + 8L * (numAfields + 1) + 16L * (numGbfields + 1);
+        long budgetBytes = (long) Math.max(1, pages) * BufferPool.getPageSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / groupBytes));
+    }
+
+    private MultiAggregator newAggregator() {
+        return new MultiAggregator(gbfields, gbTypes, afields, aTypes, ops);
+    }
+
+    /**
+     * @return the number of groups that are aggregated in memory at a time
+     */
+    public int maxGroups() {
+        return maxGroups;
+    }
+
+    /**
+     * @return true if some tuples did not fit in memory and were partitioned
+     */
+    public boolean spilled() {
+        return partitions != null || results != null;
+    }
+
+    /**
+     * @return the schema of the results: the group-by fields followed by one
+     * INT_TYPE field per aggregate
+     */
+    public TupleDesc getTupleDesc() {
+        return outTd;
+    }
+
+    /**
+     * Merge a tuple into the resident groups, or partition it to disk if its
+     * group is not resident and there is no room for another group.
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished)
+            throw new IllegalStateException("aggregation already finished");
+        if (resident.mergeIfRoom(t, maxGroups))
+            return;
+        if (partitions == null)
+            partitions = openPartitions();
+        partitions[partitionOf(t, 0)].write(t);
+    }
+
+    /**
+     * Called after the last tuple has been added; aggregates the partitions
+     * and prepares the output.
+     */
+    public void finish() throws DbException {
+        if (finished)
+            return;
+        finished = true;
+        if (partitions != null) {
+            try {
+                results = File.createTempFile("simpledb_agg", ".res");
+                results.deleteOnExit();
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(results), BufferPool.getPageSize()))) {
+                    // 先写出常驻的分组并释放，分区的聚合器才能使用同样的预算
+                    writeResults(resident, out);
+                    resident = newAggregator();
+                    aggregatePartitions(partitions, 1, out);
+                }
+            } catch (IOException e) {
+                throw new DbException("could not write aggregation results: " + e.getMessage());
+            }
+            partitions = null;
+        }
+        residentIt = resident.iterator();
+        rewind();
+    }
+
+    /**
+     * Aggregate every partition, appending the results to out; partitions
+     * that still have too many groups are partitioned again at the next level.
+     */
+    private void aggregatePartitions(Partition[] parts, int level, DataOutputStream out)
+            throws DbException, IOException {
+        for (Partition p : parts)
+            p.finishWriting();
+        for (Partition p : parts) {
+            // 本分区的聚合器在返回时已释放，再递归处理溢出的子分区
+            Partition[] sub = aggregatePartition(p, level, out);
+            if (sub != null)
+                aggregatePartitions(sub, level + 1, out);
+        }
+    }
+
+    /**
+     * Aggregate the groups of p that fit in memory, append their results to
+     * out and delete p.
+     *
+     * @return the partitions of the tuples whose groups did not fit, or null
+     */
+    private Partition[] aggregatePartition(Partition p, int level, DataOutputStream out)
+            throws DbException, IOException {
+        if (p.count == 0) {
+            p.delete();
+            return null;
+        }
+        MultiAggregator agg = newAggregator();
+        Partition[] sub = null;
+        try (DataInputStream in = p.openReader()) {
+            for (long i = 0; i < p.count; i++) {
+                Tuple t = readTuple(in, childTd);
+                if (level >= MAX_LEVELS) {
+                    agg.mergeTupleIntoGroup(t);
+                } else if (!agg.mergeIfRoom(t, maxGroups)) {
+                    if (sub == null)
+                        sub = openPartitions();
+                    sub[partitionOf(t, level)].write(t);
+                }
+            }
+        }
+        p.delete();
+        writeResults(agg, out);
+        return sub;
+    }
+
+    /**
+     * Append the results of agg to out.
+     */
+    private void writeResults(MultiAggregator agg, DataOutputStream out)
+            throws DbException, IOException {
+        OpIterator it = agg.iterator();
+        try {
+            it.open();
+            while (it.hasNext()) {
+                writeTuple(out, it.next());
+                numResults++;
+            }
+        } catch (TransactionAbortedException e) {
+            throw new DbException("aggregation aborted");
+        }
+    }
+
+    /**
+     * Restart the output from the first result.
+     */
+    public void rewind() throws DbException {
+        if (!finished)
+            throw new IllegalStateException("aggregation not finished");
+        try {
+            residentIt.open();
+            closeResultReader();
+            if (results != null) {
+                resultIn = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(results), BufferPool.getPageSize()));
+            }
+            resultsRead = 0;
+        } catch (FileNotFoundException e) {
+            throw new DbException("missing aggregation results " + results);
+        } catch (TransactionAbortedException e) {
+            throw new DbException("aggregation aborted");
+        }
+    }
+
+    public boolean hasNext() throws DbException {
+        try {
+            return residentIt.hasNext() || resultsRead < numResults;
+        } catch (TransactionAbortedException e) {
+            throw new DbException("aggregation aborted");
+        }
+    }
+
+    public Tuple next() throws DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        try {
+            if (residentIt.hasNext())
+                return residentIt.next();
+            resultsRead++;
+            return readTuple(resultIn, outTd);
+        } catch (IOException e) {
+            throw new DbException("could not read aggregation results: " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new DbException("aggregation aborted");
+        }
+    }
+
+    /**
+     * Delete all partition and result files.
+     */
+    public void close() {
+        closeResultReader();
+        if (partitions != null) {
+            for (Partition p : partitions) {
+                p.finishWriting();
+                p.delete();
+            }
+            partitions = null;
+        }
+        if (results != null)
+            results.delete();
+        results = null;
+        numResults = 0;
+    }
+
+    private void closeResultReader() {
+        if (resultIn != null) {
+            try {
+                resultIn.close();
+            } catch (IOException ignored) {
+            }
+        }
+        resultIn = null;
+    }
+
+    /**
+     * @return the partition of t at the given level; every level uses a
+     * different hash function, all of them different from the one of the
+     * group table
+     */
+    private int partitionOf(Tuple t, int level) {
+        int h = GroupTable.mix(GroupTable.hash(t, gbfields) + (level + 1) * 0x9E3779B9);
+        return (h >>> 1) % fanOut;
+    }
+
+    private Partition[] openPartitions() throws DbException {
+        Partition[] parts = new Partition[fanOut];
+        for (int i = 0; i < fanOut; i++)
+            parts[i] = new Partition();
+        return parts;
+    }
+
+    private static void writeTuple(DataOutputStream out, Tuple t) throws IOException {
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            t.getField(i).serialize(out);
+    }
+
+    private static Tuple readTuple(DataInputStream in, TupleDesc td) throws IOException, DbException {
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(in));
+        } catch (ParseException e) {
+            throw new DbException("could not read aggregation partition: " + e.getMessage());
+        }
+        return t;
+    }
+
+    /**
+     * A temporary file of input tuples whose groups hash to the same value.
+     */
+    private class Partition {
+        private final File file;
+        private DataOutputStream out;
+        long count = 0;
+
+        Partition() throws DbException {
+            try {
+                file = File.createTempFile("simpledb_agg", ".part");
+                file.deleteOnExit();
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file), BufferPool.getPageSize()));
+            } catch (IOException e) {
+                throw new DbException("could not create aggregation partition: " + e.getMessage());
+            }
+        }
+
+        void write(Tuple t) throws DbException {
+            try {
+                writeTuple(out, t);
+                count++;
+            } catch (IOException e) {
+                throw new DbException("could not spill aggregation partition: " + e.getMessage());
+            }
+        }
+
+        void finishWriting() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            out = null;
+        }
+
+        DataInputStream openReader() throws FileNotFoundException {
+            return new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BufferPool.getPageSize()));
+        }
+
+        void delete() {
+            file.delete();
+        }
+    }
+}
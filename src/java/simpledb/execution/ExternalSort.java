@@ -0,0 +1,341 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples under a fixed memory budget. The
+ * normalized {@link SortKey} of every tuple is built once when it is added,
+ * and all comparisons are byte-wise comparisons of these keys. Tuples are
+ * buffered until the budget is full; each full buffer is sorted and spilled
+ * to a temporary file as a sorted run, together with the keys. When all
+ * tuples have been added, the runs are merged with a loser tree (multiple
+ * passes if there are more runs than the merge fan-in), so at most one
+ * buffered run plus one input buffer per merged run is held in memory at a
+ * time. If everything fits in the budget no file is written at all.
+ * <p>
+ * Usage: {@link #add} every tuple, call {@link #finish}, then read the sorted
+ * output with {@link #hasNext}/{@link #next}. {@link #close} deletes the runs.
+ */
+public class ExternalSort {
+
+    private final TupleDesc td;
+    private final SortKey sortKey;
+    private final long budgetBytes;
+    private final int fanIn;
+
+    private List<Entry> buffer = new ArrayList<>();
+    private long bufferedBytes = 0;
+    private List<File> runs = new ArrayList<>();
+    private boolean finished = false;
+
+    // output state
+    private Iterator<Entry> memIt;
+    private RunReader[] readers;
+    private LoserTree tree;
+
+    /**
+     * @param td      the schema of the sorted tuples
+     * @param sortKey the sort order
+     * @param pages   memory budget in pages of {@link BufferPool#getPageSize()}
+     *                bytes; bounds both the size of a run and the merge fan-in
+     */
+    public ExternalSort(TupleDesc td, SortKey sortKey, int pages) {
+        this.td = td;
+        this.sortKey = sortKey;
+        this.budgetBytes = (long) Math.max(1, pages) * BufferPool.getPageSize();
+        // 每个参与归并的run占用一个页大小的输入缓冲，留一页用于输出
+        this.fanIn = Math.max(2, pages - 1);
+    }
+
+    /**
+     * @return the number of sorted runs spilled to disk so far
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Add a tuple to the sort, spilling the buffered tuples as a sorted run
+     * if the memory budget is exhausted.
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished)
+            throw new IllegalStateException("sort already finished");
+        Entry e = new Entry(sortKey.encode(t), t);
+        buffer.add(e);
+        bufferedBytes += td.getSize() + e.key.length;
+        if (bufferedBytes >= budgetBytes) {
+            buffer.sort(Entry.ORDER);
+            runs.add(spill(iteratorSource(buffer.iterator())));
+            buffer.clear();
+            bufferedBytes = 0;
+        }
+    }
+
+    /**
+     * Called after the last tuple has been added; reduces the runs to at most
+     * fanIn and prepares the sorted output.
+     */
+    public void finish() throws DbException {
+        if (finished)
+            return;
+        finished = true;
+        buffer.sort(Entry.ORDER);
+        if (runs.isEmpty()) {
+            rewind();
+            return;
+        }
+        if (!buffer.isEmpty()) {
+            runs.add(spill(iteratorSource(buffer.iterator())));
+        }
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+        // 多趟归并，直到run的数量不超过归并路数
+        while (runs.size() > fanIn) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<File> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                openReaders(group);
+                merged.add(spill(tree));
+                closeReaders();
+                for (File f : group)
+                    f.delete();
+            }
+            runs = merged;
+        }
+        rewind();
+    }
+
+    /**
+     * Restart the sorted output from the first tuple.
+     */
+    public void rewind() throws DbException {
+        if (!finished)
+            throw new IllegalStateException("sort not finished");
+        if (runs.isEmpty()) {
+            memIt = buffer.iterator();
+        } else {
+            closeReaders();
+            openReaders(runs);
+        }
+    }
+
+    public boolean hasNext() throws DbException {
+        if (memIt != null)
+            return memIt.hasNext();
+        return tree != null && tree.hasNext();
+    }
+
+    public Tuple next() throws DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        if (memIt != null)
+            return memIt.next().tuple;
+        return tree.read().tuple;
+    }
+
+    /**
+     * Release the buffered tuples and delete all run files.
+     */
+    public void close() {
+        closeReaders();
+        for (File f : runs)
+            f.delete();
+        runs = new ArrayList<>();
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+        memIt = null;
+    }
+
+    /**
+     * A tuple together with its normalized sort key.
+     */
+    private static class Entry {
+        static final Comparator<Entry> ORDER = (a, b) -> SortKey.compareKeys(a.key, b.key);
+
+        final byte[] key;
+        final Tuple tuple;
+
+        Entry(byte[] key, Tuple tuple) {
+            this.key = key;
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * A stream of entries that returns null once exhausted.
+     */
+    private interface EntrySource {
+        Entry read() throws DbException;
+    }
+
+    private static EntrySource iteratorSource(Iterator<Entry> it) {
+        return () -> it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Write the entries of source to a new temporary run file.
+     */
+    private File spill(EntrySource source) throws DbException {
+        try {
+            File f = File.createTempFile("simpledb_sort", ".run");
+            f.deleteOnExit();
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(f), BufferPool.getPageSize()))) {
+                Entry e;
+                while ((e = source.read()) != null) {
+                    // 每条记录：key长度、key、元组各字段；长度-1表示run结束
+                    dos.writeInt(e.key.length);
+                    dos.write(e.key);
+                    for (int i = 0; i < td.numFields(); i++)
+                        e.tuple.getField(i).serialize(dos);
+                }
+                dos.writeInt(-1);
+            }
+            return f;
+        } catch (IOException e) {
+            throw new DbException("could not spill sort run: " + e.getMessage());
+        }
+    }
+
+    private void openReaders(List<File> files) throws DbException {
+        memIt = null;
+        readers = new RunReader[files.size()];
+        for (int i = 0; i < readers.length; i++)
+            readers[i] = new RunReader(files.get(i));
+        tree = new LoserTree(readers);
+    }
+
+    private void closeReaders() {
+        if (readers != null) {
+            for (RunReader r : readers)
+                r.close();
+        }
+        readers = null;
+        tree = null;
+    }
+
+    /**
+     * Sequential reader of a run file.
+     */
+    private class RunReader implements EntrySource {
+        private final DataInputStream dis;
+
+        RunReader(File f) throws DbException {
+            try {
+                dis = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(f), BufferPool.getPageSize()));
+            } catch (FileNotFoundException e) {
+                throw new DbException("missing sort run " + f);
+            }
+        }
+
+        /**
+         * @return the next entry of the run, or null at the end of the run
+         */
+        public Entry read() throws DbException {
+            try {
+                int len = dis.readInt();
+                if (len < 0)
+                    return null;
+                byte[] key = new byte[len];
+                dis.readFully(key);
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(dis));
+                return new Entry(key, t);
+            } catch (IOException | ParseException e) {
+                throw new DbException("could not read sort run: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            try {
+                dis.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A tournament tree of losers over k runs: tree[0] holds the index of the
+     * run with the smallest head entry and every inner node holds the loser of
+     * the match played there, so replacing the winner costs log2(k)
+     * comparisons. Ties go to the lower run, which keeps the sort stable.
+     */
+    private class LoserTree implements EntrySource {
+        private final RunReader[] sources;
+        private final Entry[] heads;
+        private final int[] tree;
+        private final int k;
+
+        LoserTree(RunReader[] sources) throws DbException {
+            this.sources = sources;
+            this.k = sources.length;
+            this.heads = new Entry[k];
+            this.tree = new int[k];
+            for (int i = 0; i < k; i++)
+                heads[i] = sources[i].read();
+            Arrays.fill(tree, -1);
+            for (int i = k - 1; i >= 0; i--)
+                adjust(i);
+        }
+
+        boolean hasNext() {
+            return k > 0 && heads[tree[0]] != null;
+        }
+
+        public Entry read() throws DbException {
+            if (!hasNext())
+                return null;
+            int w = tree[0];
+            Entry e = heads[w];
+            heads[w] = sources[w].read();
+            adjust(w);
+            return e;
+        }
+
+        /**
+         * Replay the matches from leaf s up to the root.
+         */
+        private void adjust(int s) {
+            int winner = s;
+            for (int t = (s + k) / 2; t > 0; t /= 2) {
+                if (beats(tree[t], winner)) {
+                    int tmp = tree[t];
+                    tree[t] = winner;
+                    winner = tmp;
+                }
+            }
+            tree[0] = winner;
+        }
+
+        /**
+         * @return true if run a wins against run b; -1 is a sentinel that
+         * beats every run during construction, exhausted runs lose
+         */
+        private boolean beats(int a, int b) {
+            if (a == -1)
+                return true;
+            if (b == -1)
+                return false;
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            int c = SortKey.compareKeys(heads[a].key, heads[b].key);
+            return c < 0 || (c == 0 && a < b);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Gather runs each of its children (copies of a subplan over disjoint parts
+ * of the input) on a worker thread and returns the union of their output, in
+ * no particular order. The producers send their tuples in batches through one
+ * bounded queue, so a slow consumer blocks the producers instead of letting
+ * them buffer their whole output.
+ * <p>
+ * The producers start when the first tuple is requested, so a Gather that
+ * is opened but not read costs nothing, and an operator above it may run
+ * its children itself instead (see {@link ParallelAggregate}).
+ * <p>
+ * All children run as part of the transaction of the query, and must only
+ * read.
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of tuples a producer sends at a time.
+     */
+    public static final int BATCH_SIZE = 64;
+
+    /**
+     * Number of batches the queue holds per producer.
+     */
+    public static final int BATCHES_PER_PRODUCER = 4;
+
+    /**
+     * Sent by a producer after its last batch.
+     */
+    private static final List<Tuple> END = Collections.emptyList();
+
+    private OpIterator[] children;
+    private final TupleDesc td;
+    private transient Run run;
+    private transient Iterator<Tuple> batch;
+
+    /**
+     * @param children the subplans to run in parallel; they must all have the
+     *                 same TupleDesc
+     */
+    public Gather(OpIterator[] children) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("nothing to gather");
+        this.children = children.clone();
+        this.td = children[0].getTupleDesc();
+    }
+
+    @Override
+    public String getName() {
+        return "gather(" + children.length + ")";
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        run = null;
+        batch = null;
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (run != null)
+            run.cancel();
+        run = null;
+        batch = null;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        // 停止当前的生产者，下次读取时从头重新运行所有子计划
+        if (run != null)
+            run.cancel();
+        run = null;
+        batch = null;
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (run == null)
+            run = new Run();
+        while (batch == null || !batch.hasNext()) {
+            List<Tuple> b = run.take();
+            if (b == null)
+                return null;
+            batch = b.iterator();
+        }
+        return batch.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return children.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.children = children.clone();
+    }
+
+    /**
+     * One execution of all children: the producers, their queue and the
+     * first error any of them ran into.
+     */
+    private class Run {
+        private final BlockingQueue<List<Tuple>> queue =
+                new ArrayBlockingQueue<>(BATCHES_PER_PRODUCER * children.length);
+        private final List<Future<?>> producers = new ArrayList<>();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile boolean cancelled = false;
+        private int finished = 0;
+
+        Run() {
+            for (OpIterator child : children)
+                producers.add(WORKERS.submit(() -> produce(child)));
+        }
+
+        private void produce(OpIterator child) {
+            try {
+                child.open();
+                List<Tuple> b = new ArrayList<>(BATCH_SIZE);
+                while (!cancelled && child.hasNext()) {
+                    b.add(child.next());
+                    if (b.size() == BATCH_SIZE) {
+                        put(b);
+                        b = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!b.isEmpty())
+                    put(b);
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                child.close();
+                put(END);
+            }
+        }
+
+        /**
+         * Wait for room in the queue unless the run is cancelled.
+         */
+        private void put(List<Tuple> b) {
+            try {
+                while (!cancelled) {
+                    if (queue.offer(b, 10, TimeUnit.MILLISECONDS))
+                        return;
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+
+        /**
+         * @return the next batch, or null once all producers have finished
+         */
+        List<Tuple> take() throws DbException, TransactionAbortedException {
+            while (finished < producers.size()) {
+                List<Tuple> b;
+                try {
+                    b = queue.take();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while gathering tuples");
+                }
+                if (b == END) {
+                    finished++;
+                    checkError();
+                } else {
+                    return b;
+                }
+            }
+            checkError();
+            return null;
+        }
+
+        private void checkError() throws DbException, TransactionAbortedException {
+            Throwable e = error.get();
+            if (e == null)
+                return;
+            if (e instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e;
+            if (e instanceof DbException)
+                throw (DbException) e;
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            throw new DbException("parallel subplan failed: " + e);
+        }
+
+        /**
+         * Stop the producers and wait until they have closed their children.
+         */
+        void cancel() {
+            cancelled = true;
+            for (Future<?> f : producers) {
+                try {
+                    f.get();
+                } catch (InterruptedException | ExecutionException ignored) {
+                }
+            }
+            queue.clear();
+        }
+    }
+}
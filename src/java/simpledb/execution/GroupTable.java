@@ -0,0 +1,257 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * GroupTable maps group-by keys to dense group numbers 0, 1, 2, ... in the
+ * order the groups are first seen, so that aggregators can keep their
+ * per-group state in parallel primitive arrays indexed by group number.
+ * <p>
+ * It is an open-addressing hash table with linear probing whose slots hold
+ * group numbers. INT_TYPE keys have a fast path that keeps the keys in an
+ * int[] and never allocates per row; keys of other types, and keys made of
+ * several columns, are kept as {@link Field}s (width per group) and compared
+ * with equals.
+ */
+public class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int EMPTY = -1;
+
+    private final boolean intKeys;
+    private final int width;
+    private int[] slots;
+    private int mask;
+    private int[] ints;
+    private Field[] fields;
+    private int size;
+
+    /**
+     * @param keyType the type of the group-by keys
+     */
+    public GroupTable(Type keyType) {
+        this(new Type[]{keyType});
+    }
+
+    /**
+     * @param keyTypes the types of the group-by columns of a composite key
+     */
+    public GroupTable(Type[] keyTypes) {
+        if (keyTypes.length == 0)
+            throw new IllegalArgumentException("no group-by columns");
+        this.width = keyTypes.length;
+        this.intKeys = width == 1 && keyTypes[0] == Type.INT_TYPE;
+        this.slots = new int[16];
+        Arrays.fill(slots, EMPTY);
+        this.mask = slots.length - 1;
+        if (intKeys)
+            ints = new int[8];
+        else
+            fields = new Field[8 * width];
+    }
+
+    /**
+     * @return the number of columns of a key
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * @return the number of groups
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the group number of key, adding a new group if key has not been
+     * seen before
+     */
+    public int findOrInsert(Field key) {
+        if (width != 1)
+            throw new IllegalStateException("composite key of " + width + " columns");
+        if (intKeys)
+            return findOrInsert(((IntField) key).getValue());
+        int pos = mix(key.hashCode()) & mask;
+        while (slots[pos] != EMPTY) {
+            if (fields[slots[pos]].equals(key))
+                return slots[pos];
+            pos = (pos + 1) & mask;
+        }
+        if (size == fields.length)
+            fields = Arrays.copyOf(fields, size * 2);
+        fields[size] = key;
+        return insertAt(pos);
+    }
+
+    /**
+     * INT_TYPE fast path of {@link #findOrInsert(Field)}.
+     */
+    public int findOrInsert(int key) {
+        int pos = mix(key) & mask;
+        while (slots[pos] != EMPTY) {
+            if (ints[slots[pos]] == key)
+                return slots[pos];
+            pos = (pos + 1) & mask;
+        }
+        if (size == ints.length)
+            ints = Arrays.copyOf(ints, size * 2);
+        ints[size] = key;
+        return insertAt(pos);
+    }
+
+    /**
+     * Composite key version of {@link #findOrInsert(Field)}: the key is made
+     * of the fields cols of t. Only a new group copies its key out of t.
+     */
+    public int findOrInsert(Tuple t, int[] cols) {
+        if (intKeys)
+            return findOrInsert(((IntField) t.getField(cols[0])).getValue());
+        int pos = mix(hash(t, cols)) & mask;
+        while (slots[pos] != EMPTY) {
+            if (keyEquals(slots[pos], t, cols))
+                return slots[pos];
+            pos = (pos + 1) & mask;
+        }
+        if ((size + 1) * width > fields.length)
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        for (int i = 0; i < width; i++)
+            fields[size * width + i] = t.getField(cols[i]);
+        return insertAt(pos);
+    }
+
+    /**
+     * Version of {@link #findOrInsert(Tuple, int[])} whose key is that of
+     * group g of other, a table with the same key types; used to merge
+     * partial aggregates.
+     */
+    public int findOrInsert(GroupTable other, int g) {
+        if (other.width != width || other.intKeys != intKeys)
+            throw new IllegalArgumentException("group tables have different keys");
+        if (intKeys)
+            return findOrInsert(other.ints[g]);
+        int pos = mix(other.storedHash(g)) & mask;
+        outer:
+        while (slots[pos] != EMPTY) {
+            int mine = slots[pos];
+            for (int i = 0; i < width; i++) {
+                if (!fields[mine * width + i].equals(other.fields[g * width + i])) {
+                    pos = (pos + 1) & mask;
+                    continue outer;
+                }
+            }
+            return mine;
+        }
+        if ((size + 1) * width > fields.length)
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        System.arraycopy(other.fields, g * width, fields, size * width, width);
+        return insertAt(pos);
+    }
+
+    /**
+     * @return the group number of the key made of the fields cols of t, or
+     * -1 if there is no such group; never adds a group
+     */
+    public int find(Tuple t, int[] cols) {
+        int pos;
+        if (intKeys) {
+            int key = ((IntField) t.getField(cols[0])).getValue();
+            pos = mix(key) & mask;
+            while (slots[pos] != EMPTY) {
+                if (ints[slots[pos]] == key)
+                    return slots[pos];
+                pos = (pos + 1) & mask;
+            }
+            return -1;
+        }
+        pos = mix(hash(t, cols)) & mask;
+        while (slots[pos] != EMPTY) {
+            if (keyEquals(slots[pos], t, cols))
+                return slots[pos];
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the hash code of the key made of the fields cols of t, before
+     * mixing
+     */
+    static int hash(Tuple t, int[] cols) {
+        int h = 0;
+        for (int c : cols)
+            h = 31 * h + t.getField(c).hashCode();
+        return h;
+    }
+
+    private boolean keyEquals(int g, Tuple t, int[] cols) {
+        for (int i = 0; i < width; i++) {
+            if (!fields[g * width + i].equals(t.getField(cols[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the key of group g
+     */
+    public Field getKey(int g) {
+        return getKey(g, 0);
+    }
+
+    /**
+     * @return column i of the key of group g
+     */
+    public Field getKey(int g, int i) {
+        return intKeys ? new IntField(ints[g]) : fields[g * width + i];
+    }
+
+    private int insertAt(int pos) {
+        int g = size++;
+        slots[pos] = g;
+        // 装载因子超过1/2时扩容
+        if (size * 2 > slots.length)
+            rehash();
+        return g;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        for (int g = 0; g < size; g++) {
+            int h = intKeys ? ints[g] : storedHash(g);
+            int pos = mix(h) & mask;
+            while (slots[pos] != EMPTY)
+                pos = (pos + 1) & mask;
+            slots[pos] = g;
+        }
+    }
+
+    private int storedHash(int g) {
+        int h = 0;
+        for (int i = 0; i < width; i++)
+            h = 31 * h + fields[g * width + i].hashCode();
+        return h;
+    }
+
+    /**
+     * Spread the bits of a hash code (murmur3 finalizer), since int keys
+     * and String hash codes are often clustered.
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
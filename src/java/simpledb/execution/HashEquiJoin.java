@@ -77,9 +77,30 @@ public class HashEquiJoin extends Operator {
         child1.open();
         child2.open();
         loadMap();
+        checkBuildInput();
         super.open();
     }
 
+    /**
+     * Check the size of child1 against its estimate, see
+     * {@link #setCardinalityThreshold}, once the first part of it is in the
+     * hash table. Only a child1 that fits in the table completely is
+     * checked: its tuples are passed on, so the plan made again for its true
+     * size does not compute it again. A larger child1 is joined in parts
+     * without being checked.
+     */
+    private void checkBuildInput() throws DbException, TransactionAbortedException {
+        int rows = 0;
+        for (List<Tuple> l : map.values())
+            rows += l.size();
+        if (!isMisestimated(child1, rows) || child1.hasNext())
+            return;
+        List<Tuple> tuples = new ArrayList<>(rows);
+        for (List<Tuple> l : map.values())
+            tuples.addAll(l);
+        throw new CardinalityException(child1, rows, tuples);
+    }
+
     public void close() {
         super.close();
         child2.close();
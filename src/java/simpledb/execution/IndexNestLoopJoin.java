@@ -0,0 +1,180 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestLoopJoin implements the relational join operation by probing an
+ * index on the inner relation's join field once for every outer tuple,
+ * instead of rescanning the whole inner relation. The inner child is an
+ * {@link IndexOpIterator} (e.g. a {@link simpledb.index.BTreeScan} over a
+ * BTreeFile keyed on the join field) which is restarted with a new
+ * {@link IndexPredicate} for each probe.
+ */
+public class IndexNestLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate p;
+    private final Predicate.Op indexOp;
+    private OpIterator child1;
+    private IndexOpIterator child2;
+    private transient Tuple outer = null;
+    private transient boolean innerOpen = false;
+
+    /**
+     * Constructor. Accepts an outer child, an index access method over the
+     * inner relation and the predicate to join them on
+     *
+     * @param p      The predicate to use to join the children; field2 must be
+     *               the field the index of child2 is built on
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Index access method for the right(inner) relation
+     * @throws IllegalArgumentException if the predicate's operator cannot be
+     *                                  answered by an index probe
+     */
+    public IndexNestLoopJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+        if (!supportsOp(p.getOperator())) {
+            throw new IllegalArgumentException("index nested loops join does not support " + p.getOperator());
+        }
+        this.p = p;
+        this.indexOp = reverse(p.getOperator());
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if a join predicate using op can be evaluated by probing
+     * an index on the inner join field
+     */
+    public static boolean supportsOp(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * outer.f1 op inner.f2 holds iff inner.f2 reverse(op) outer.f1, which is
+     * the form an {@link IndexPredicate} on the inner relation expects.
+     */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            default:
+                return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return the field name of join field1. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return the field name of join field2. Should be quantified by
+     * alias or table name.
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        // the inner index scan is opened lazily by the first probe
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        if (innerOpen) {
+            child2.close();
+            innerOpen = false;
+        }
+        outer = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        outer = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. For every outer tuple the inner index is probed with the
+     * outer join value; the join predicate is rechecked on the returned
+     * tuples since range probes may return a superset of the matches.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null) {
+                while (child2.hasNext()) {
+                    Tuple inner = child2.next();
+                    if (p.filter(outer, inner)) {
+                        return mergeTuples(outer, inner);
+                    }
+                }
+                outer = null;
+            }
+            if (!child1.hasNext()) {
+                return null;
+            }
+            outer = child1.next();
+            IndexPredicate ipred = new IndexPredicate(indexOp, outer.getField(p.getField1()));
+            if (innerOpen) {
+                child2.rewind(ipred);
+            } else {
+                child2.open(ipred);
+                innerOpen = true;
+            }
+        }
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        Tuple tuple = new Tuple(getTupleDesc());
+        int n1 = child1.getTupleDesc().numFields();
+        int n2 = child2.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++) {
+            tuple.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < n2; i++) {
+            tuple.setField(n1 + i, t2.getField(i));
+        }
+        return tuple;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = (IndexOpIterator) children[1];
+    }
+
+}
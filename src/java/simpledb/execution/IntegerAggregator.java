@@ -8,13 +8,17 @@ import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered by a {@link GroupTable} and the per-group state is kept
+ * in parallel long arrays indexed by group number, so merging a tuple does
+ * not allocate and sums cannot overflow an int. AVG keeps the sum and the
+ * count of a group apart, so partial aggregates over parts of the input can
+ * be {@link #merge merged}.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -23,14 +27,9 @@ public class IntegerAggregator implements Aggregator {
     private Type type;
     private int afield;
     private Op op;
-    private Map<Field, Integer> aggregates;
-    /* 使用cnt计算求平均会存在很大的误差
-     * private Map<Field, Integer> cnt;  // 只在avg的时候使用，用以记录每组的个数
-     * 改用前n个数的sum
-     * todo 可能还存在sum超出int范围的问题
-     */
-    private Map<Field, Integer> cnt;  // 只在avg的时候使用，用以记录每组的个数
-    private Map<Field, Integer> sum;  // 只在avg的时候使用，用以记录每组的之前的总和
+    private GroupTable groups;   // 没有分组时为null，只有0号组
+    private long[] acc;          // 每组的sum/min/max
+    private long[] cnt;          // 每组的元组个数
     public TupleDesc td = null;
 
     /**
@@ -50,16 +49,53 @@ public class IntegerAggregator implements Aggregator {
         this.type = gbfieldtype;
         this.afield = afield;
         this.op = what;
-        this.aggregates = new HashMap<Field, Integer>();
-        this.sum = new HashMap<Field, Integer>();
-        this.cnt = new HashMap<Field, Integer>();
+        this.acc = new long[8];
+        this.cnt = new long[8];
         if (gbfield == NO_GROUPING && type == null) {  // 没有group by子句，tuple和tupleDesc都只有一个字段
             td = new TupleDesc(new Type[]{Type.INT_TYPE});
         } else {
             td = new TupleDesc(new Type[]{type, Type.INT_TYPE});
+            groups = new GroupTable(type);
+        }
+    }
+
+    private boolean isGrouping() {
+        return groups != null;
+    }
+
+    /**
+     * @return the number of groups seen so far
+     */
+    private int numGroups() {
+        if (isGrouping())
+            return groups.size();
+        return cnt[0] > 0 ? 1 : 0;
+    }
+
+    /**
+     * @return the aggregate value of group g
+     */
+    private long value(int g) {
+        switch (this.op) {
+            case COUNT:
+                return cnt[g];
+            case AVG:
+                return acc[g] / cnt[g];
+            default:
+                return acc[g];
         }
     }
 
+    /**
+     * @return an IntField holding the aggregate value v
+     * @throws DbException if v, e.g. a large SUM, does not fit in an INT
+     */
+    static IntField intField(long v) throws DbException {
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+            throw new DbException("aggregate value " + v + " out of INT range");
+        return new IntField((int) v);
+    }
+
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the
      * constructor
@@ -68,57 +104,71 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field gbf = null;
-        if (this.gbfield == NO_GROUPING && type == null) {
-            gbf = new IntField(Integer.MIN_VALUE);  // 使用int最小值表示无gbf
+        int g;
+        if (!isGrouping()) {
+            g = 0;
+        } else if (type == Type.INT_TYPE) {  // int分组字段不需要构造Field
+            g = groups.findOrInsert(((IntField) tup.getField(this.gbfield)).getValue());
         } else {
-            gbf = tup.getField(this.gbfield);
+            g = groups.findOrInsert(tup.getField(this.gbfield));
         }
-        Field af = tup.getField(this.afield);
-        int newValue = ((IntField) af).getValue();
-        if (!aggregates.containsKey(gbf)) {  // 第一个元素加入的情况
-            if (this.op == Op.COUNT) {       // op==count的情况
-                aggregates.put(gbf, 1);
-            } else if (this.op == Op.AVG) {  // op==avg的情况
-                aggregates.put(gbf, newValue);
-                sum.put(gbf, newValue);
-                cnt.put(gbf, 1);
-            } else {                        // op是其他的情况
-                aggregates.put(gbf, newValue);
-            }
-        } else {                            // 后面的元素加入的情况
-            int aRes = aggregates.get(gbf);
-            switch (this.op) {
-                case MIN:
-                    if (newValue < aRes) {
-                        aggregates.put(gbf, newValue);
-                    }
-                    break;
-                case MAX:
-                    if (newValue > aRes) {
-                        aggregates.put(gbf, newValue);
-                    }
-                    break;
-                case SUM:
-                    newValue += aRes;
-                    aggregates.put(gbf, newValue);
-                    break;
-                case AVG:
-                    int preSum = sum.get(gbf);        // 之前的总和
-                    int n = cnt.get(gbf);             // 之前每组的个数
-                    sum.put(gbf, preSum + newValue);  // 总和更新
-                    cnt.put(gbf, n + 1);              // 更新组个数
-                    newValue = (preSum + newValue) / (n + 1);
-                    aggregates.put(gbf, newValue);    // 平均数更新
-                    break;
-                case COUNT:
-                    newValue = aRes + 1;
-                    aggregates.put(gbf, newValue);
-                    break;
-                default:
-                    throw new IllegalStateException("unknown op: " + this.op);
-            }
+        ensureCapacity(g);
+        combine(g, ((IntField) tup.getField(this.afield)).getValue(), 1);
+    }
+
+    /**
+     * Merge the partial state of another IntegerAggregator with the same
+     * operator, aggregate field and group-by field into this one.
+     */
+    public void merge(Aggregator other) {
+        if (!(other instanceof IntegerAggregator))
+            throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName());
+        IntegerAggregator o = (IntegerAggregator) other;
+        if (o.op != op || o.afield != afield || o.gbfield != gbfield || o.isGrouping() != isGrouping())
+            throw new IllegalArgumentException("cannot merge a different aggregate");
+        int n = o.numGroups();
+        for (int og = 0; og < n; og++) {
+            int g = isGrouping() ? groups.findOrInsert(o.groups, og) : 0;
+            ensureCapacity(g);
+            combine(g, o.acc[og], o.cnt[og]);
+        }
+    }
+
+    private void ensureCapacity(int g) {
+        if (g >= acc.length) {
+            acc = Arrays.copyOf(acc, acc.length * 2);
+            cnt = Arrays.copyOf(cnt, cnt.length * 2);
+        }
+    }
+
+    /**
+     * Fold the state (value, count) of some tuples of group g into the
+     * group: value is a single field value for count 1, or the state of a
+     * partial aggregate.
+     */
+    private void combine(int g, long value, long count) {
+        if (count == 0)
+            return;
+        boolean first = cnt[g] == 0;  // 该组的第一个元素
+        switch (this.op) {
+            case MIN:
+                if (first || value < acc[g])
+                    acc[g] = value;
+                break;
+            case MAX:
+                if (first || value > acc[g])
+                    acc[g] = value;
+                break;
+            case SUM:
+            case AVG:
+                acc[g] += value;
+                break;
+            case COUNT:
+                break;
+            default:
+                throw new IllegalStateException("unknown op: " + this.op);
         }
+        cnt[g] += count;
     }
 
     /**
@@ -134,49 +184,42 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
         TupleDesc finalTd = td;
         return new OpIterator() {
-            private Iterator<Map.Entry<Field, Integer>> it = null;
+            private int next = -1;   // 下一个输出的组号，-1表示未打开
+            private int n = 0;       // 打开时的组数
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
-                // 在这里初始化迭代器
-                it = aggregates.entrySet().iterator();
+                next = 0;
+                n = numGroups();
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
-                if (it == null) {
+                if (next < 0) {
                     throw new IllegalStateException("Iterator not open");
                 }
-
-                // 检查是否还有更多的元素
-                return it.hasNext();
+                return next < n;
             }
 
             @Override
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (it == null || !it.hasNext()) {
+                if (next < 0 || next >= n) {
                     throw new NoSuchElementException("No more tuples");
                 }
-
-                // 获取下一个聚合结果
-                Map.Entry<Field, Integer> entry = it.next();
-                Tuple tuple = new Tuple(finalTd); // 假设getTupleDesc()方法返回正确的TupleDesc
-
-                // 根据是否有分组，创建并返回相应的tuple
+                int g = next++;
+                Tuple tuple = new Tuple(finalTd);
                 if (isGrouping()) {
-                    tuple.setField(0, entry.getKey());
-                    tuple.setField(1, new IntField(entry.getValue()));
+                    tuple.setField(0, groups.getKey(g));
+                    tuple.setField(1, intField(value(g)));
                 } else {
-                    tuple.setField(0, new IntField(entry.getValue()));
+                    tuple.setField(0, intField(value(g)));
                 }
-
                 return tuple;
             }
 
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
-                // 重置迭代器
-                it = aggregates.entrySet().iterator();
+                open();
             }
 
             @Override
@@ -186,12 +229,7 @@ public class IntegerAggregator implements Aggregator {
 
             @Override
             public void close() {
-                // 关闭迭代器
-                it = null;
-            }
-
-            private boolean isGrouping() {
-                return !(gbfield == NO_GROUPING && type == null);
+                next = -1;
             }
         };
     }
@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.Type;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -10,15 +11,33 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * By default it is a tuple-at-a-time nested loops join, which rescans the
+ * inner relation once per outer tuple. When constructed with a positive
+ * number of block pages it runs as a block nested loops join instead: it
+ * buffers that many pages' worth of outer tuples and scans the inner relation
+ * once per block.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of pages of outer tuples buffered per scan of the inner relation
+     * by the block nested loops joins the optimizer creates.
+     */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
     private JoinPredicate p;
     private OpIterator child1;
     private OpIterator child2;
     private Tuple curTuple1 = null;
 
+    private final int blockPages;
+    private transient List<Tuple> block = null;  // 当前缓存的外表元组块
+    private transient Tuple innerTuple = null;
+    private transient int blockPos = 0;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -28,10 +47,40 @@ public class Join extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 0);
+    }
+
+    /**
+     * Constructor for a block nested loops join.
+     *
+     * @param p          The predicate to use to join the children
+     * @param child1     Iterator for the left(outer) relation to join
+     * @param child2     Iterator for the right(inner) relation to join
+     * @param blockPages the number of pages' worth of outer tuples to buffer
+     *                   per scan of child2, or 0 to join one outer tuple at a time
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
         // some code goes here
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.blockPages = Math.max(0, blockPages);
+    }
+
+    /**
+     * @return the number of outer tuples that fit in blockPages pages, at
+     * least one
+     */
+    public static int blockTuples(int blockPages, TupleDesc outerTd) {
+        return Math.max(1, blockPages * BufferPool.getPageSize() / outerTd.getSize());
+    }
+
+    /**
+     * @return the number of pages of outer tuples buffered per scan of the
+     * inner relation, or 0 if this is a tuple-at-a-time join
+     */
+    public int getBlockPages() {
+        return blockPages;
     }
 
     public JoinPredicate getP() {
@@ -75,6 +124,9 @@ public class Join extends Operator {
         // some code goes here
         child1.open();
         child2.open();
+        if (blockPages > 0) {
+            block = new ArrayList<>();
+        }
         super.open();
     }
 
@@ -83,12 +135,20 @@ public class Join extends Operator {
         super.close();
         child1.close();
         child2.close();
+        curTuple1 = null;
+        innerTuple = null;
+        block = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
+        curTuple1 = null;
+        innerTuple = null;
+        if (block != null) {
+            block.clear();
+        }
     }
 
     /**
@@ -111,6 +171,9 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
+        if (blockPages > 0) {
+            return fetchNextBlock();
+        }
         while (curTuple1 != null || child1.hasNext()) {
             if (curTuple1 == null) {
                 curTuple1 = child1.next();
@@ -118,17 +181,7 @@ public class Join extends Operator {
             while (child2.hasNext()) {
                 Tuple curTuple2 = child2.next();
                 if (p.filter(curTuple1, curTuple2)) {
-//                    return Tuple.merge(curTuple1, curTuple2);  // 头歌平台限制
-                    Tuple tuple = new Tuple(getTupleDesc());
-                    int n1 = child1.getTupleDesc().numFields();
-                    int n2 = child2.getTupleDesc().numFields();
-                    for (int i = 0; i < n1; i++) {
-                        tuple.setField(i, curTuple1.getField(i));
-                    }
-                    for (int i = n1; i < n1 + n2; i++) {
-                        tuple.setField(i, curTuple2.getField(i - n1));
-                    }
-                    return tuple;
+                    return mergeTuples(curTuple1, curTuple2);
                 }
             }
             child2.rewind();  // 从child2找完一轮，换下一个curTuple1，从child2头开始
@@ -137,6 +190,60 @@ public class Join extends Operator {
         return null;
     }
 
+    /**
+     * Block nested loops version of {@link #fetchNext}: every inner tuple is
+     * compared against the whole buffered block of outer tuples, so child2 is
+     * scanned once per block rather than once per outer tuple.
+     */
+    private Tuple fetchNextBlock() throws TransactionAbortedException, DbException {
+        while (!block.isEmpty() || loadBlock()) {
+            while (innerTuple != null || child2.hasNext()) {
+                if (innerTuple == null) {
+                    innerTuple = child2.next();
+                    blockPos = 0;
+                }
+                while (blockPos < block.size()) {
+                    Tuple t1 = block.get(blockPos++);
+                    if (p.filter(t1, innerTuple)) {
+                        return mergeTuples(t1, innerTuple);
+                    }
+                }
+                innerTuple = null;
+            }
+            child2.rewind();  // child2扫描完一轮，换下一个外表块
+            block.clear();
+        }
+        return null;
+    }
+
+    /**
+     * Fill the block buffer with the next blockPages pages' worth of tuples
+     * from child1.
+     *
+     * @return true if at least one outer tuple was buffered
+     */
+    private boolean loadBlock() throws TransactionAbortedException, DbException {
+        int capacity = blockTuples(blockPages, child1.getTupleDesc());
+        while (block.size() < capacity && child1.hasNext()) {
+            block.add(child1.next());
+        }
+        return !block.isEmpty();
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+//        return Tuple.merge(t1, t2);  // 头歌平台限制
+        Tuple tuple = new Tuple(getTupleDesc());
+        int n1 = child1.getTupleDesc().numFields();
+        int n2 = child2.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++) {
+            tuple.setField(i, t1.getField(i));
+        }
+        for (int i = n1; i < n1 + n2; i++) {
+            tuple.setField(i, t2.getField(i - n1));
+        }
+        return tuple;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
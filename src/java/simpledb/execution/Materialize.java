@@ -0,0 +1,141 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Materialize implements late materialization. Below it, the plan carries
+ * only the columns of a table that it computes with, plus the record id
+ * column of a {@link SeqScan#setRecordIdColumn scan with record ids}. For
+ * every tuple of its child, Materialize reads the tuple with that record id
+ * through the BufferPool and appends the given columns of it, so that the
+ * other columns are only read for the tuples that reach the top of the plan.
+ */
+public class Materialize extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private OpIterator child;
+    private final int tableId;
+    private final String alias;
+    private final int[] columns;
+    private int ridField;
+    private TupleDesc td;
+
+    /**
+     * Constructor.
+     *
+     * @param tid     the transaction reading the tuples
+     * @param child   the child operator, whose tuples have the record id
+     *                column alias.{@value SeqScan#RECORD_ID_FIELD}
+     * @param tableId the table the record ids belong to, stored in a HeapFile
+     * @param alias   the alias of the table in the plan
+     * @param columns the columns of the table to append, in order
+     * @throws IllegalArgumentException if the child has no such record id
+     *                                  column or the table is not a HeapFile
+     */
+    public Materialize(TransactionId tid, OpIterator child, int tableId, String alias, int[] columns) {
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile))
+            throw new IllegalArgumentException("record ids need a HeapFile");
+        this.tid = tid;
+        this.tableId = tableId;
+        this.alias = alias;
+        this.columns = columns.clone();
+        setChild(child);
+    }
+
+    private void setChild(OpIterator child) {
+        TupleDesc childTd = child.getTupleDesc();
+        String rid = alias + "." + SeqScan.RECORD_ID_FIELD;
+        try {
+            this.ridField = childTd.fieldNameToIndex(rid);
+        } catch (NoSuchElementException e) {
+            throw new IllegalArgumentException("no record id column " + rid);
+        }
+        if (childTd.getFieldType(ridField) != Type.INT_TYPE)
+            throw new IllegalArgumentException("record id column " + rid + " is not an int");
+        TupleDesc fileTd = Database.getCatalog().getTupleDesc(tableId);
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            types[i] = fileTd.getFieldType(columns[i]);
+            names[i] = alias + "." + fileTd.getFieldName(columns[i]);
+        }
+        this.child = child;
+        this.td = TupleDesc.merge(childTd, new TupleDesc(types, names));
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return the columns of the table this operator appends
+     */
+    public int[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * @return the fields of the child, followed by the appended columns
+     * named alias.fieldName
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!child.hasNext())
+            return null;
+        Tuple t = child.next();
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        // 按记录号回表读取，只取需要的列
+        Tuple row = f.readTuple(tid, f.decodeRecordId(((IntField) t.getField(ridField)).getValue()));
+        Tuple out = new Tuple(td);
+        int n = t.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++)
+            out.setField(i, t.getField(i));
+        for (int i = 0; i < columns.length; i++)
+            out.setField(n + i, row.getField(columns[i]));
+        return out;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        setChild(children[0]);
+    }
+}
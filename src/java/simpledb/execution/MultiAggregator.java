@@ -0,0 +1,266 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Computes several aggregates at once, grouped by zero or more columns. Each
+ * tuple costs one probe of a {@link GroupTable} on the composite group key,
+ * after which all aggregates of the group are updated in place. The state of
+ * aggregate j of group g lives at acc[g * k + j] of a long array, where k is
+ * the number of aggregates, and the tuple count of every group is kept once
+ * in cnt[g] since COUNT and AVG of all aggregates share it. AVG is only
+ * divided out when the results are read, so aggregators over different
+ * parts of the input can be {@link #merge merged}.
+ * <p>
+ * Aggregates over INT_TYPE fields support MIN, MAX, SUM, AVG and COUNT;
+ * aggregates over STRING_TYPE fields only support COUNT, like
+ * {@link StringAggregator}.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private final int[] gbfields;
+    private final int[] afields;
+    private final Op[] ops;
+    private final int k;
+    private final Type[] gbfieldtypes;
+    private GroupTable groups;   // 没有分组时为null，只有0号组
+    private long[] acc;
+    private long[] cnt;
+    private final TupleDesc td;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields     the 0-based indexes of the group-by fields in the
+     *                     tuple, empty if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param afields      the 0-based indexes of the aggregate fields
+     * @param afieldtypes  the types of the aggregate fields
+     * @param what         the aggregation operator of every aggregate field
+     * @throws IllegalArgumentException if an operator is not supported on
+     *                                  the type of its field
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldtypes,
+                           int[] afields, Type[] afieldtypes, Op[] what) {
+        if (afields.length == 0 || afields.length != what.length || afields.length != afieldtypes.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        if (gbfields.length != gbfieldtypes.length)
+            throw new IllegalArgumentException("need one type per group-by field");
+        for (int j = 0; j < what.length; j++) {
+            if (what[j] == Op.SUM_COUNT || what[j] == Op.SC_AVG)
+                throw new IllegalArgumentException("unsupported aggregate " + what[j]);
+            if (afieldtypes[j] == Type.STRING_TYPE && what[j] != Op.COUNT)
+                throw new IllegalArgumentException("only COUNT is supported over strings, not " + what[j]);
+        }
+        this.gbfields = gbfields.clone();
+        this.afields = afields.clone();
+        this.ops = what.clone();
+        this.k = what.length;
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.groups = gbfields.length == 0 ? null : new GroupTable(gbfieldtypes);
+        this.acc = new long[8 * k];
+        this.cnt = new long[8];
+
+        Type[] types = new Type[gbfields.length + k];
+        System.arraycopy(gbfieldtypes, 0, types, 0, gbfields.length);
+        Arrays.fill(types, gbfields.length, types.length, Type.INT_TYPE);
+        this.td = new TupleDesc(types);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group
+     *
+     * @param tup the Tuple containing the aggregate fields and the group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        update(groups == null ? 0 : groups.findOrInsert(tup, gbfields), tup);
+    }
+
+    /**
+     * Merge tup like {@link #mergeTupleIntoGroup} unless its group is new
+     * and there already are maxGroups groups.
+     *
+     * @return false if tup was not merged
+     */
+    public boolean mergeIfRoom(Tuple tup, int maxGroups) {
+        int g;
+        if (groups == null)
+            g = 0;
+        else if (groups.size() < maxGroups)
+            g = groups.findOrInsert(tup, gbfields);
+        else
+            g = groups.find(tup, gbfields);
+        if (g < 0)
+            return false;
+        update(g, tup);
+        return true;
+    }
+
+    /**
+     * @return the number of groups
+     */
+    public int numGroups() {
+        if (groups != null)
+            return groups.size();
+        return cnt[0] > 0 ? 1 : 0;
+    }
+
+    /**
+     * Drop all groups.
+     */
+    public void reset() {
+        if (groups != null)
+            groups = new GroupTable(gbfieldtypes);
+        Arrays.fill(cnt, 0);
+        Arrays.fill(acc, 0);
+    }
+
+    /**
+     * @return the schema of the tuples returned by {@link #iterator()}
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Merge the partial state of another MultiAggregator computing the same
+     * aggregates with the same grouping into this one.
+     */
+    public void merge(Aggregator other) {
+        if (!(other instanceof MultiAggregator))
+            throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName());
+        MultiAggregator o = (MultiAggregator) other;
+        if (!Arrays.equals(o.gbfields, gbfields) || !Arrays.equals(o.afields, afields)
+                || !Arrays.equals(o.ops, ops))
+            throw new IllegalArgumentException("cannot merge a different aggregate");
+        int n = o.numGroups();
+        for (int og = 0; og < n; og++) {
+            int g = groups == null ? 0 : groups.findOrInsert(o.groups, og);
+            ensureCapacity(g);
+            boolean first = cnt[g] == 0;
+            cnt[g] += o.cnt[og];
+            for (int j = 0; j < k; j++)
+                combine(g * k + j, j, o.acc[og * k + j], first);
+        }
+    }
+
+    private void ensureCapacity(int g) {
+        if (g >= cnt.length) {
+            cnt = Arrays.copyOf(cnt, cnt.length * 2);
+            acc = Arrays.copyOf(acc, cnt.length * k);
+        }
+    }
+
+    private void update(int g, Tuple tup) {
+        ensureCapacity(g);
+        boolean first = cnt[g] == 0;  // 该组的第一个元素
+        cnt[g]++;
+        int base = g * k;
+        for (int j = 0; j < k; j++) {
+            if (ops[j] == Op.COUNT)
+                continue;
+            combine(base + j, j, ((IntField) tup.getField(afields[j])).getValue(), first);
+        }
+    }
+
+    /**
+     * Fold v, a field value or the state of a partial aggregate, into the
+     * state acc[i] of aggregate j.
+     */
+    private void combine(int i, int j, long v, boolean first) {
+        switch (ops[j]) {
+            case MIN:
+                if (first || v < acc[i])
+                    acc[i] = v;
+                break;
+            case MAX:
+                if (first || v > acc[i])
+                    acc[i] = v;
+                break;
+            case COUNT:
+                break;
+            default:  // SUM, AVG
+                acc[i] += v;
+                break;
+        }
+    }
+
+    /**
+     * @return the value of aggregate j of group g
+     */
+    private long value(int g, int j) {
+        switch (ops[j]) {
+            case COUNT:
+                return cnt[g];
+            case AVG:
+                return acc[g * k + j] / cnt[g];
+            default:
+                return acc[g * k + j];
+        }
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the group-by fields, in the order
+     * of the constructor, followed by one INT_TYPE field per aggregate.
+     */
+    public OpIterator iterator() {
+        return new OpIterator() {
+            private int next = -1;   // 下一个输出的组号，-1表示未打开
+            private int n = 0;       // 打开时的组数
+
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                next = 0;
+                n = numGroups();
+            }
+
+            @Override
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                if (next < 0) {
+                    throw new IllegalStateException("Iterator not open");
+                }
+                return next < n;
+            }
+
+            @Override
+            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+                if (next < 0 || next >= n) {
+                    throw new NoSuchElementException("No more tuples");
+                }
+                int g = next++;
+                Tuple tuple = new Tuple(td);
+                for (int i = 0; i < gbfields.length; i++)
+                    tuple.setField(i, groups.getKey(g, i));
+                for (int j = 0; j < k; j++)
+                    tuple.setField(gbfields.length + j, IntegerAggregator.intField(value(g, j)));
+                return tuple;
+            }
+
+            @Override
+            public void rewind() throws DbException, TransactionAbortedException {
+                open();
+            }
+
+            @Override
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            @Override
+            public void close() {
+                next = -1;
+            }
+        };
+    }
+}
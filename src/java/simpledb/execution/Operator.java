@@ -21,14 +21,14 @@ public abstract class Operator implements OpIterator {
             throw new IllegalStateException("Operator not yet open");
         
         if (next == null)
-            next = fetchNext();
+            next = fetch();
         return next != null;
     }
 
     public Tuple next() throws DbException, TransactionAbortedException,
             NoSuchElementException {
         if (next == null) {
-            next = fetchNext();
+            next = fetch();
             if (next == null)
                 throw new NoSuchElementException();
         }
@@ -38,6 +38,13 @@ public abstract class Operator implements OpIterator {
         return result;
     }
 
+    private Tuple fetch() throws DbException, TransactionAbortedException {
+        Tuple t = fetchNext();
+        if (t != null)
+            actualCardinality++;
+        return t;
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
@@ -62,9 +69,12 @@ public abstract class Operator implements OpIterator {
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    private int actualCardinality = 0;
+    private double cardinalityThreshold = 0;
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
+        this.actualCardinality = 0;
     }
 
     /**
@@ -109,4 +119,53 @@ public abstract class Operator implements OpIterator {
         this.estimatedCardinality = card;
     }
 
+    /**
+     * @return the number of tuples this operator has returned since it was
+     *         last opened, rewinds included
+     * */
+    public int getActualCardinality() {
+        return this.actualCardinality;
+    }
+
+    /**
+     * Set the factor by which the number of tuples of an input this operator
+     * reads completely when it is opened, before returning any tuple, may
+     * differ from the estimated cardinality of that input; if it differs by
+     * more, opening throws a {@link CardinalityException}, which
+     * {@link Reoptimize} handles. 0, the default, disables the check.
+     * <p>
+     * The hash joins check their build input: a {@link HashEquiJoin} or
+     * {@link ParallelHashJoin} reads it completely before joining, and the
+     * joins above it may be ordered again for its true size. Other
+     * operators ignore the threshold.
+     * */
+    public void setCardinalityThreshold(double factor) {
+        this.cardinalityThreshold = factor;
+    }
+
+    public double getCardinalityThreshold() {
+        return this.cardinalityThreshold;
+    }
+
+    /**
+     * @return true if the check of {@link #setCardinalityThreshold} is
+     *         enabled and rows, the number of tuples read from input, differs
+     *         from the estimated cardinality of input by more than its
+     *         factor; inputs without an estimate are not checked
+     * */
+    protected boolean isMisestimated(OpIterator input, int rows) {
+        if (cardinalityThreshold <= 0 || !(input instanceof Operator))
+            return false;
+        return estimationError(((Operator) input).getEstimatedCardinality(), rows) > cardinalityThreshold;
+    }
+
+    /**
+     * @return the factor by which the actual cardinality differs from the
+     *         estimated one, at least 1; both count as at least 1 tuple
+     * */
+    public static double estimationError(int estimated, int actual) {
+        double e = Math.max(1, estimated), a = Math.max(1, actual);
+        return Math.max(e / a, a / e);
+    }
+
 }
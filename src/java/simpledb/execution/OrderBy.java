@@ -2,25 +2,29 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or more
+ * fields, each ascending or descending. The input is sorted with an
+ * {@link ExternalSort} on normalized {@link SortKey}s under a memory budget of
+ * sortPages pages, so inputs larger than memory are spilled to sorted runs
+ * on disk and merged.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** Default memory budget of a sort, in pages */
+    public static final int DEFAULT_SORT_PAGES = BufferPool.DEFAULT_PAGES;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
-    private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final SortKey sortKey;
+    private final int sortPages;
+    private transient ExternalSort sorter;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,26 +37,70 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, DEFAULT_SORT_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator which sorts
+     * within a memory budget of sortPages pages.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param sortPages
+     *            the number of pages of tuples held in memory before a
+     *            sorted run is spilled to disk.
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int sortPages) {
+        this(new SortKey(orderbyField, asc), child, sortPages);
+    }
+
+    /**
+     * Creates a new OrderBy node which sorts the tuples from the iterator on
+     * several fields.
+     *
+     * @param sortKey
+     *            the fields to sort on, most significant first, and their
+     *            directions.
+     * @param child
+     *            the tuples to sort.
+     * @param sortPages
+     *            the number of pages of tuples held in memory before a
+     *            sorted run is spilled to disk.
+     */
+    public OrderBy(SortKey sortKey, OpIterator child, int sortPages) {
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.sortKey = sortKey;
+        this.sortPages = sortPages;
     }
-    
+
+    /**
+     * @return true if the first sort field is sorted in ascending order
+     */
     public boolean isASC()
     {
-	return this.asc;
+	return this.sortKey.getAscending()[0];
     }
-    
+
+    /**
+     * @return the first sort field
+     */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.sortKey.getFields()[0];
     }
-    
+
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(getOrderByField());
+    }
+
+    public SortKey getSortKey() {
+        return this.sortKey;
     }
     
     public TupleDesc getTupleDesc() {
@@ -62,21 +110,25 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        // feed all the tuples to the sort, which spills runs when memory is full
+        sorter = new ExternalSort(td, sortKey, sortPages);
         while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sorter.add(child.next());
+        sorter.finish();
+        child.close();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (sorter != null) {
+            sorter.close();
+            sorter = null;
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        sorter.rewind();
     }
 
     /**
@@ -86,9 +138,9 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+    protected Tuple fetchNext() throws NoSuchElementException, DbException {
+        if (sorter != null && sorter.hasNext()) {
+            return sorter.next();
         } else
             return null;
     }
@@ -104,25 +156,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
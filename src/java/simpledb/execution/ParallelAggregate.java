@@ -0,0 +1,176 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * ParallelAggregate is a two-phase {@link Aggregate} over a {@link Gather}.
+ * Instead of aggregating the gathered tuples on one thread, it runs each
+ * child of the Gather (a copy of the subplan over one page range of the
+ * table, see {@link Exchange#parallelize}) on a worker thread that merges
+ * the tuples into an aggregator of its own. In the final phase the partial
+ * aggregates are {@link Aggregator#merge merged} into one, whose groups are
+ * the result. The workers share nothing while aggregating.
+ * <p>
+ * Under a memory budget each partial aggregate may hold its share of the
+ * groups that fit in the budget. If a worker runs out of room the partial
+ * aggregates are dropped and the input is aggregated again through the
+ * Gather by the spilling {@link ExternalAggregation}, as {@link Aggregate}
+ * does. If the child is not a Gather, this is a plain Aggregate.
+ */
+public class ParallelAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+    private final Type[] gbTypes;
+    private final Type[] aTypes;
+    private transient boolean fellBack;
+
+    /**
+     * Constructor.
+     *
+     * @param child    The Gather that is feeding us tuples.
+     * @param afields  The columns over which we are computing aggregates.
+     * @param aops     The aggregation operator of each column of afields.
+     * @param gfields  The columns over which we are grouping the result, empty
+     *                 if there is no grouping
+     * @param aggPages The memory budget for the groups in pages, or 0 to keep
+     *                 all groups in memory. Only used if there is grouping.
+     */
+    public ParallelAggregate(OpIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields, int aggPages) {
+        super(child, afields, aops, gfields, aggPages);
+        TupleDesc td = child.getTupleDesc();
+        this.gbTypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gbTypes[i] = td.getFieldType(gfields[i]);
+        this.aTypes = new Type[afields.length];
+        for (int j = 0; j < afields.length; j++)
+            aTypes[j] = td.getFieldType(afields[j]);
+    }
+
+    /**
+     * @return true if the last {@link #open()} had to fall back on a serial
+     * aggregation because the groups did not fit in the budget
+     */
+    public boolean fellBack() {
+        return fellBack;
+    }
+
+    private MultiAggregator newPartial() {
+        return new MultiAggregator(groupFields(), gbTypes, aggregateFields(), aTypes, aggregateOps());
+    }
+
+    @Override
+    protected void aggregateChild() throws DbException, TransactionAbortedException {
+        fellBack = false;
+        OpIterator child = getChildren()[0];
+        if (!(child instanceof Gather)) {
+            super.aggregateChild();
+            return;
+        }
+        OpIterator[] parts = ((Gather) child).getChildren();
+        int maxGroups = Integer.MAX_VALUE;
+        if (getAggPages() > 0) {
+            int budget = ExternalAggregation.groupsInBudget(getTupleDesc(), groupFields().length,
+                    aggregateFields().length, getAggPages());
+            // 每个工作线程只能使用预算的一份，合并后也不超过预算
+            maxGroups = Math.max(1, budget / parts.length);
+        }
+
+        // 第一阶段：每个工作线程把自己的页范围聚合到线程私有的聚合器中
+        Phase phase = new Phase(parts, maxGroups);
+        MultiAggregator[] partials = phase.await();
+        if (partials == null) {
+            fellBack = true;
+            super.aggregateChild();
+            return;
+        }
+
+        // 第二阶段：合并各部分聚合的状态
+        MultiAggregator result = partials[0];
+        for (int i = 1; i < partials.length; i++)
+            result.merge(partials[i]);
+        it = result.iterator();
+        it.open();
+    }
+
+    /**
+     * The partial aggregation of all parts, each on a worker thread.
+     */
+    private class Phase {
+        private final List<Future<MultiAggregator>> workers = new ArrayList<>();
+        private volatile boolean stopped = false;
+
+        Phase(OpIterator[] parts, int maxGroups) {
+            for (OpIterator part : parts)
+                workers.add(Exchange.WORKERS.submit(() -> aggregate(part, maxGroups)));
+        }
+
+        /**
+         * @return the partial aggregate of part, or null if its groups did
+         * not fit in maxGroups or another worker failed
+         */
+        private MultiAggregator aggregate(OpIterator part, int maxGroups) throws Exception {
+            MultiAggregator partial = newPartial();
+            part.open();
+            try {
+                while (!stopped && part.hasNext()) {
+                    Tuple t = part.next();
+                    if (!partial.mergeIfRoom(t, maxGroups)) {
+                        stopped = true;
+                        return null;
+                    }
+                }
+            } catch (Exception e) {
+                stopped = true;
+                throw e;
+            } finally {
+                part.close();
+            }
+            return stopped ? null : partial;
+        }
+
+        /**
+         * Wait for all workers.
+         *
+         * @return the partial aggregates, or null if one of them ran out of
+         * room
+         */
+        MultiAggregator[] await() throws DbException, TransactionAbortedException {
+            MultiAggregator[] partials = new MultiAggregator[workers.size()];
+            Throwable error = null;
+            for (int i = 0; i < partials.length; i++) {
+                try {
+                    partials[i] = workers.get(i).get();
+                } catch (ExecutionException e) {
+                    if (error == null)
+                        error = e.getCause();
+                } catch (InterruptedException e) {
+                    stopped = true;
+                    if (error == null)
+                        error = new DbException("interrupted while aggregating");
+                }
+            }
+            if (error instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) error;
+            if (error instanceof DbException)
+                throw (DbException) error;
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error != null)
+                throw new DbException("parallel aggregation failed: " + error);
+            for (MultiAggregator p : partials) {
+                if (p == null)
+                    return null;
+            }
+            return partials;
+        }
+    }
+}
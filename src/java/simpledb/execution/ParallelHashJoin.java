@@ -0,0 +1,800 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelHashJoin is a hybrid hash equi-join that partitions, builds and
+ * probes on several worker threads. Both inputs are radix-partitioned on the
+ * hash of their join field, so that matching tuples always fall into the
+ * partition with the same number. The workers read the inputs morsel by
+ * morsel: each takes the next {@link #MORSEL_SIZE} tuples of a child, which
+ * is read by one worker at a time, and processes them on its own.
+ * <p>
+ * child1 is the build input. Its morsels are distributed over the
+ * partitions, which are kept in memory up to half of the memory budget;
+ * whenever that is exceeded the largest partition in memory is spilled to a
+ * temporary file, and the rest of its tuples are appended to the file. Once
+ * child1 has been read, a hash table is built over every partition still in
+ * memory. child2 is then streamed: a probe tuple whose partition is in
+ * memory is joined right away, one whose partition was spilled is written
+ * to a file of its own. After the last probe tuple the workers take the
+ * spilled pairs of partitions one at a time and join them with the other
+ * half of the budget, building on the smaller side one chunk at a time and
+ * scanning the other side once per chunk.
+ * <p>
+ * Workers share nothing but the child they read, the counter of the next
+ * partition and the bounded queue their output goes through, in batches as
+ * in {@link Gather}. The output comes in no particular order. Rewinding
+ * reads child2 again, but keeps the partitions of child1.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of partitions per worker. More partitions than workers let a
+     * worker that got small partitions take over more of them, so one big
+     * partition does not leave the other workers idle.
+     */
+    public static final int PARTITIONS_PER_WORKER = 4;
+
+    /**
+     * Default memory budget of the join, in pages.
+     */
+    public static final int DEFAULT_JOIN_PAGES = BufferPool.DEFAULT_PAGES;
+
+    /**
+     * Number of input tuples a worker takes from a child at a time.
+     */
+    public static final int MORSEL_SIZE = 1024;
+
+    /**
+     * Sent by a worker after its last batch.
+     */
+    private static final List<Tuple> END = Collections.emptyList();
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final int workers;
+    private final int pages;
+    private final int radixBits;             // 分区数为2^radixBits
+    private transient Partition[] parts1;
+    private transient List<Map<Field, List<Tuple>>> tables;  // 内存中各分区的哈希表
+    private transient AtomicLong residentBytes;
+    private transient int spillBuffer;       // 每个写出分区的输出缓冲字节数
+    private transient Run run;
+    private transient Iterator<Tuple> batch;
+
+    /**
+     * Constructor, with a memory budget of {@link #DEFAULT_JOIN_PAGES}.
+     *
+     * @param p       The predicate to use to join the children; its operator
+     *                must be {@link Predicate.Op#EQUALS}
+     * @param child1  Iterator for the left relation to join, the build input
+     * @param child2  Iterator for the right relation to join
+     * @param workers The number of worker threads to join with
+     */
+    public ParallelHashJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int workers) {
+        this(p, child1, child2, workers, DEFAULT_JOIN_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p       The predicate to use to join the children; its operator
+     *                must be {@link Predicate.Op#EQUALS}
+     * @param child1  Iterator for the left relation to join, the build input
+     * @param child2  Iterator for the right relation to join
+     * @param workers The number of worker threads to join with
+     * @param pages   memory budget in pages of {@link BufferPool#getPageSize()}
+     *                bytes, at least 2; see {@link #residentPages}
+     */
+    public ParallelHashJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int workers, int pages) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("hash join needs an equality predicate");
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be positive");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.workers = workers;
+        this.pages = Math.max(2, pages);
+        int bits = 1;
+        while ((1 << bits) < workers * PARTITIONS_PER_WORKER)
+            bits++;
+        this.radixBits = bits;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the number of pages of a budget of pages pages that hold the
+     * partitions of the build input; the rest is left to the hash tables of
+     * the spilled partitions
+     */
+    public static int residentPages(int pages) {
+        return Math.max(1, pages / 2);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the number of worker threads the join runs on
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return the memory budget of the join in pages
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * @return the number of partitions the inputs are split into
+     */
+    public int numPartitions() {
+        return 1 << radixBits;
+    }
+
+    /**
+     * @return the number of partitions of child1 that did not fit in memory
+     * and were spilled to disk, together with the matching tuples of child2
+     */
+    public int spilledPartitions() {
+        int n = 0;
+        if (parts1 != null) {
+            for (Partition part : parts1) {
+                if (part.spilled())
+                    n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        child1.open();
+        child2.open();
+        residentBytes = new AtomicLong();
+        // 两侧所有分区都写出时，输出缓冲合计不超过分区预算的一半
+        spillBuffer = (int) Math.max(512, Math.min(BufferPool.getPageSize(),
+                (long) residentPages(pages) * BufferPool.getPageSize() / (4 * numPartitions())));
+        parts1 = newPartitions(child1.getTupleDesc());
+        partitionBuildInput();
+        int rows = 0;
+        boolean spilled = false;
+        for (Partition part : parts1) {
+            rows += part.count;
+            spilled |= part.spilled();
+        }
+        if (!spilled && isMisestimated(child1, rows)) {
+            // child1的分区都在内存中，重新规划时直接使用；写出过分区时不检查
+            List<Tuple> tuples = new ArrayList<>(rows);
+            for (Partition part : parts1)
+                tuples.addAll(part.tuples);
+            throw new CardinalityException(child1, rows, tuples);
+        }
+        for (Partition part : parts1)
+            part.finishWriting();
+        buildTables();
+        run = new Run();
+        batch = null;
+        super.open();
+    }
+
+    private Partition[] newPartitions(TupleDesc td) {
+        Partition[] parts = new Partition[numPartitions()];
+        for (int i = 0; i < parts.length; i++)
+            parts[i] = new Partition(td);
+        return parts;
+    }
+
+    /**
+     * A piece of work every worker runs once.
+     */
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Run task on all workers and wait until they have finished.
+     */
+    private void onWorkers(Task task) throws DbException, TransactionAbortedException {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Future<?>> tasks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.add(Exchange.WORKERS.submit(() -> {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Future<?> f : tasks) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                error.compareAndSet(null, new DbException("interrupted while joining"));
+            } catch (ExecutionException e) {
+                error.compareAndSet(null, e.getCause());
+            }
+        }
+        Throwable e = error.get();
+        if (e == null)
+            return;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new DbException("parallel join failed: " + e);
+    }
+
+    /**
+     * Read all of child1 and distribute its tuples over the partitions,
+     * spilling partitions whenever they exceed their share of the budget.
+     */
+    private void partitionBuildInput() throws DbException, TransactionAbortedException {
+        int field = pred.getField1();
+        onWorkers(() -> {
+            List<Tuple> morsel;
+            while ((morsel = nextMorsel(child1)) != null) {
+                List<List<Tuple>> split = split(morsel, field);
+                for (int p = 0; p < split.size(); p++) {
+                    if (split.get(p) != null)
+                        parts1[p].add(split.get(p));
+                }
+                spillWhileOverBudget();
+            }
+        });
+    }
+
+    /**
+     * Build a hash table over every partition of child1 that is in memory.
+     */
+    private void buildTables() throws DbException, TransactionAbortedException {
+        tables = new ArrayList<>(Collections.nCopies(numPartitions(), null));
+        AtomicInteger next = new AtomicInteger();
+        int field = pred.getField1();
+        onWorkers(() -> {
+            int p;
+            while ((p = next.getAndIncrement()) < numPartitions()) {
+                Partition part = parts1[p];
+                if (part.spilled() || part.count == 0)
+                    continue;
+                Map<Field, List<Tuple>> table = new HashMap<>(part.count * 2);
+                for (Tuple t : part.tuples)
+                    table.computeIfAbsent(t.getField(field), k -> new ArrayList<>(1)).add(t);
+                tables.set(p, table);
+            }
+        });
+    }
+
+    /**
+     * @return the tuples of morsel by partition of their field; partitions
+     * without tuples are null
+     */
+    private List<List<Tuple>> split(List<Tuple> morsel, int field) {
+        List<List<Tuple>> split = new ArrayList<>(Collections.nCopies(numPartitions(), null));
+        for (Tuple t : morsel) {
+            int p = partitionOf(t.getField(field));
+            if (split.get(p) == null)
+                split.set(p, new ArrayList<>());
+            split.get(p).add(t);
+        }
+        return split;
+    }
+
+    /**
+     * @return the next tuples of child, at most {@link #MORSEL_SIZE} of them,
+     * or null if it has no more; the child is read by one worker at a time
+     */
+    private static List<Tuple> nextMorsel(OpIterator child)
+            throws DbException, TransactionAbortedException {
+        synchronized (child) {
+            List<Tuple> morsel = new ArrayList<>(MORSEL_SIZE);
+            while (morsel.size() < MORSEL_SIZE && child.hasNext())
+                morsel.add(child.next());
+            return morsel.isEmpty() ? null : morsel;
+        }
+    }
+
+    /**
+     * Spill the largest partitions of child1 in memory until the partitions
+     * fit in their share of the budget again.
+     */
+    private void spillWhileOverBudget() throws DbException {
+        long budget = (long) residentPages(pages) * BufferPool.getPageSize();
+        while (residentBytes.get() > budget) {
+            // 选择内存中最大的分区写出，每个分区写出后还要占用一个输出缓冲
+            Partition victim = null;
+            for (Partition part : parts1) {
+                if (!part.spilled() && part.count > 0
+                        && (victim == null || part.count > victim.count))
+                    victim = part;
+            }
+            if (victim == null)
+                return;
+            victim.spill();
+        }
+    }
+
+    /**
+     * The partition of a join key is given by the high bits of its mixed
+     * hash; the hash tables of the workers index by the low bits, so the
+     * keys of one partition still spread over the whole table.
+     */
+    private int partitionOf(Field f) {
+        return GroupTable.mix(f.hashCode()) >>> (32 - radixBits);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (run != null)
+            run.cancel();
+        run = null;
+        batch = null;
+        if (parts1 != null) {
+            for (Partition part : parts1)
+                part.delete();
+        }
+        parts1 = null;
+        tables = null;
+        child2.close();
+        child1.close();
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        // child1的分区和哈希表保留，只需重新读入child2
+        run.cancel();
+        child2.rewind();
+        run = new Run();
+        batch = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As in {@link HashEquiJoin}, a result is the concatenation
+     * of a tuple of child1 and a tuple of child2 with equal join fields.
+     */
+    @Override
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (batch == null || !batch.hasNext()) {
+            List<Tuple> b = run.take();
+            if (b == null)
+                return null;
+            batch = b.iterator();
+        }
+        return batch.next();
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    /**
+     * The tuples of one input that fall into one partition: a list in
+     * memory, or a temporary file once the partition has been spilled.
+     */
+    private class Partition {
+        private final TupleDesc td;
+        private List<Tuple> tuples = new ArrayList<>();
+        private volatile File file;
+        private DataOutputStream out;
+        private volatile int count = 0;
+
+        Partition(TupleDesc td) {
+            this.td = td;
+        }
+
+        boolean spilled() {
+            return file != null;
+        }
+
+        synchronized void add(List<Tuple> ts) throws DbException {
+            if (spilled()) {
+                for (Tuple t : ts)
+                    write(t);
+            } else {
+                tuples.addAll(ts);
+                residentBytes.addAndGet((long) ts.size() * td.getSize());
+            }
+            count += ts.size();
+        }
+
+        /**
+         * Move the tuples to a temporary file, keeping a small buffer for
+         * the tuples still to come.
+         */
+        synchronized void spill() throws DbException {
+            if (spilled())
+                return;
+            File f;
+            try {
+                f = File.createTempFile("simpledb_join", ".part");
+                f.deleteOnExit();
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(f), spillBuffer));
+            } catch (IOException e) {
+                throw new DbException("could not create join partition: " + e.getMessage());
+            }
+            file = f;
+            for (Tuple t : tuples)
+                write(t);
+            residentBytes.addAndGet(spillBuffer - (long) tuples.size() * td.getSize());
+            tuples = null;
+        }
+
+        private void write(Tuple t) throws DbException {
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.getField(i).serialize(out);
+            } catch (IOException e) {
+                throw new DbException("could not spill join partition: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Called after the last tuple has been added; releases the output
+         * buffer.
+         */
+        synchronized void finishWriting() {
+            if (out == null)
+                return;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+            residentBytes.addAndGet(-spillBuffer);
+        }
+
+        /**
+         * @return the tuples of the partition, read from its file if it was
+         * spilled; the caller must close the reader
+         */
+        Reader reader() throws DbException {
+            if (!spilled()) {
+                Iterator<Tuple> it = tuples.iterator();
+                return new Reader() {
+                    public Tuple next() {
+                        return it.hasNext() ? it.next() : null;
+                    }
+
+                    public void close() {
+                    }
+                };
+            }
+            DataInputStream in;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BufferPool.getPageSize()));
+            } catch (FileNotFoundException e) {
+                throw new DbException("missing join partition " + file);
+            }
+            return new Reader() {
+                private int read = 0;
+
+                public Tuple next() throws DbException {
+                    if (read == count)
+                        return null;
+                    read++;
+                    Tuple t = new Tuple(td);
+                    try {
+                        for (int i = 0; i < td.numFields(); i++)
+                            t.setField(i, td.getFieldType(i).parse(in));
+                    } catch (ParseException e) {
+                        throw new DbException("could not read join partition: " + e.getMessage());
+                    }
+                    return t;
+                }
+
+                public void close() {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            };
+        }
+
+        void delete() {
+            finishWriting();
+            if (file != null)
+                file.delete();
+            tuples = null;
+        }
+    }
+
+    /**
+     * Reads the tuples of a partition once.
+     */
+    private interface Reader {
+        /**
+         * @return the next tuple, or null after the last one
+         */
+        Tuple next() throws DbException;
+
+        void close();
+    }
+
+    /**
+     * One pass over child2: the workers, the partitions of child2 that
+     * match spilled partitions of child1, the queue and the first error any
+     * of the workers ran into.
+     */
+    private class Run {
+        private final int n = workers;
+        private final BlockingQueue<List<Tuple>> queue =
+                new ArrayBlockingQueue<>(Gather.BATCHES_PER_PRODUCER * n);
+        private final Partition[] parts2 = newPartitions(child2.getTupleDesc());
+        private final CountDownLatch probed = new CountDownLatch(n);
+        private final AtomicInteger nextPartition = new AtomicInteger();
+        private final List<Future<?>> producers = new ArrayList<>();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        // 每个线程的哈希表能使用的内存
+        private final long tableBytes =
+                (long) (pages - residentPages(pages)) * BufferPool.getPageSize() / n;
+        private volatile boolean cancelled = false;
+        private int finished = 0;
+
+        Run() throws DbException {
+            for (int p = 0; p < numPartitions(); p++) {
+                if (parts1[p].spilled())
+                    parts2[p].spill();
+            }
+            for (int i = 0; i < n; i++)
+                producers.add(Exchange.WORKERS.submit(this::produce));
+        }
+
+        private void produce() {
+            try {
+                List<Tuple> out = new ArrayList<>(Gather.BATCH_SIZE);
+                try {
+                    out = probeAll(out);
+                } finally {
+                    probed.countDown();
+                }
+                // 等所有线程读完child2，溢出的分区才完整
+                probed.await();
+                int p;
+                while (!cancelled && (p = nextPartition.getAndIncrement()) < numPartitions()) {
+                    if (parts1[p].spilled()) {
+                        parts2[p].finishWriting();
+                        out = joinPartition(parts1[p], parts2[p], out);
+                    }
+                }
+                if (!out.isEmpty())
+                    put(out);
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                put(END);
+            }
+        }
+
+        /**
+         * Read child2 morsel by morsel, probing the hash tables of the
+         * partitions in memory and writing the other tuples to the spilled
+         * partitions.
+         *
+         * @return the last batch, which is not full yet
+         */
+        private List<Tuple> probeAll(List<Tuple> out) throws DbException, TransactionAbortedException {
+            int field = pred.getField2();
+            List<Tuple> morsel;
+            while (!cancelled && error.get() == null && (morsel = nextMorsel(child2)) != null) {
+                List<List<Tuple>> split = split(morsel, field);
+                for (int p = 0; p < split.size(); p++) {
+                    if (split.get(p) == null)
+                        continue;
+                    if (parts1[p].spilled())
+                        parts2[p].add(split.get(p));
+                    else if (tables.get(p) != null)
+                        out = probe(tables.get(p), split.get(p).iterator(), field, true, out);
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Join a spilled pair of partitions, sending full batches of results
+         * to the queue. The smaller side is read in chunks that fit in the
+         * share of the budget of one worker, and the other side is read once
+         * per chunk.
+         *
+         * @return the last batch, which is not full yet
+         */
+        private List<Tuple> joinPartition(Partition left, Partition right, List<Tuple> out)
+                throws DbException {
+            if (left.count == 0 || right.count == 0)
+                return out;
+            // 在较小的一侧上建哈希表，用另一侧探测
+            boolean buildLeft = left.count <= right.count;
+            Partition build = buildLeft ? left : right;
+            Partition probe = buildLeft ? right : left;
+            int buildField = buildLeft ? pred.getField1() : pred.getField2();
+            int probeField = buildLeft ? pred.getField2() : pred.getField1();
+            int chunk = (int) Math.max(1, Math.min(build.count, tableBytes / build.td.getSize()));
+            Reader buildIn = build.reader();
+            try {
+                Tuple next = buildIn.next();
+                while (next != null && !cancelled) {
+                    Map<Field, List<Tuple>> table = new HashMap<>(chunk * 2);
+                    for (int i = 0; i < chunk && next != null; i++) {
+                        table.computeIfAbsent(next.getField(buildField), k -> new ArrayList<>(1)).add(next);
+                        next = buildIn.next();
+                    }
+                    Reader probeIn = probe.reader();
+                    try {
+                        out = probe(table, probeIn, probeField, buildLeft, out);
+                    } finally {
+                        probeIn.close();
+                    }
+                }
+            } finally {
+                buildIn.close();
+            }
+            return out;
+        }
+
+        private List<Tuple> probe(Map<Field, List<Tuple>> table, Iterator<Tuple> probeIn, int probeField,
+                                  boolean buildLeft, List<Tuple> out) {
+            while (!cancelled && probeIn.hasNext())
+                out = probeTuple(table, probeIn.next(), probeField, buildLeft, out);
+            return out;
+        }
+
+        private List<Tuple> probe(Map<Field, List<Tuple>> table, Reader probeIn, int probeField,
+                                  boolean buildLeft, List<Tuple> out) throws DbException {
+            Tuple t;
+            while (!cancelled && (t = probeIn.next()) != null)
+                out = probeTuple(table, t, probeField, buildLeft, out);
+            return out;
+        }
+
+        private List<Tuple> probeTuple(Map<Field, List<Tuple>> table, Tuple t, int probeField,
+                                       boolean buildLeft, List<Tuple> out) {
+            List<Tuple> matches = table.get(t.getField(probeField));
+            if (matches == null)
+                return out;
+            for (Tuple m : matches) {
+                out.add(buildLeft ? merge(m, t) : merge(t, m));
+                if (out.size() == Gather.BATCH_SIZE) {
+                    put(out);
+                    out = new ArrayList<>(Gather.BATCH_SIZE);
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Wait for room in the queue unless the run is cancelled.
+         */
+        private void put(List<Tuple> b) {
+            try {
+                while (!cancelled) {
+                    if (queue.offer(b, 10, TimeUnit.MILLISECONDS))
+                        return;
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+
+        /**
+         * @return the next batch, or null once all workers have finished
+         */
+        List<Tuple> take() throws DbException, TransactionAbortedException {
+            while (finished < producers.size()) {
+                List<Tuple> b;
+                try {
+                    b = queue.take();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while joining");
+                }
+                if (b == END) {
+                    finished++;
+                    checkError();
+                } else {
+                    return b;
+                }
+            }
+            checkError();
+            return null;
+        }
+
+        private void checkError() throws DbException, TransactionAbortedException {
+            Throwable e = error.get();
+            if (e == null)
+                return;
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            if (e instanceof DbException)
+                throw (DbException) e;
+            if (e instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e;
+            throw new DbException("parallel join failed: " + e);
+        }
+
+        /**
+         * Stop the workers, wait until they have finished and delete the
+         * spilled partitions of child2.
+         */
+        void cancel() {
+            cancelled = true;
+            for (Future<?> f : producers) {
+                try {
+                    f.get();
+                } catch (InterruptedException | ExecutionException ignored) {
+                }
+            }
+            queue.clear();
+            for (Partition part : parts2)
+                part.delete();
+        }
+    }
+}
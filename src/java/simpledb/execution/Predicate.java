@@ -105,6 +105,18 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * @param conjunction predicates over the fields of t
+     * @return true if t satisfies every predicate of conjunction
+     */
+    public static boolean filter(Predicate[] conjunction, Tuple t) {
+        for (Predicate p : conjunction) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
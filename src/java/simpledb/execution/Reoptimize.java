@@ -0,0 +1,108 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Reoptimize computes a join plan whose hash joins check the sizes of
+ * their build inputs against the estimates it was chosen for, see
+ * {@link Operator#setCardinalityThreshold}. The checks run while the plan is
+ * opened, before it returns any tuple. If one fails, the joins above the
+ * misestimated input may be in a bad order: the plan is closed and replaced
+ * by the one its {@link Planner} makes for the true size of the input, and
+ * that plan is opened instead.
+ */
+public class Reoptimize extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A reasonable factor by which the size of an input may differ from its
+     * estimate before the plan above it is made again; the planner does not
+     * check inputs unless a factor is set.
+     */
+    public static final double DEFAULT_THRESHOLD = 10.0;
+
+    /**
+     * Makes the plan replacing a plan whose check failed.
+     */
+    public interface Planner {
+        /**
+         * @param e the failed check, thrown by the current plan
+         * @return a plan returning the same tuples, with the same TupleDesc,
+         * that computes fewer joins whose inputs have not been checked, so
+         * that planning again eventually stops
+         */
+        OpIterator replan(CardinalityException e) throws DbException;
+    }
+
+    private OpIterator child;
+    private final Planner planner;
+    private final TupleDesc td;
+    private int replans = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param child   the plan, whose hash joins may check their build inputs
+     * @param planner makes the plans replacing it
+     */
+    public Reoptimize(OpIterator child, Planner planner) {
+        this.child = child;
+        this.planner = planner;
+        this.td = child.getTupleDesc();
+    }
+
+    /**
+     * @return the number of times the plan has been replaced
+     */
+    public int getReplans() {
+        return replans;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        while (true) {
+            try {
+                child.open();
+                break;
+            } catch (CardinalityException e) {
+                // 计划还未返回任何元组，可以换成按真实基数重新规划的计划
+                child.close();
+                child = planner.replan(e);
+                replans++;
+            }
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (child.hasNext())
+            return child.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -16,10 +16,23 @@ import java.util.*;
  */
 public class SeqScan implements OpIterator {
     private static final long serialVersionUID = 1L;
+
+    /**
+     * The name (after the alias) of the record id column of a scan with
+     * {@link #setRecordIdColumn record ids}
+     */
+    public static final String RECORD_ID_FIELD = "#rid";
+
     private TransactionId tid;
     private int tableID;
     private String tableAlias;
+    private int startPage = 0;
+    private int endPage = -1;    // -1表示扫描整个表
+    private int[] columns = null; // 返回的列，null表示所有列
+    private Predicate[] predicates = new Predicate[0];  // 在存储层求值的过滤条件
+    private boolean recordIds = false;  // 是否追加记录号列
     private DbFileIterator tupleIterator;
+    private transient TupleDesc ridTd;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -41,6 +54,136 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
     }
 
+    /**
+     * Creates a scan of the pages [startPage, endPage) of a HeapFile, e.g.
+     * for one of several parallel copies of a scan.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan, which must be stored in a HeapFile.
+     * @param tableAlias the alias of this table.
+     * @param startPage  the first page to scan.
+     * @param endPage    the page after the last page to scan.
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int startPage, int endPage) {
+        this(tid, tableid, tableAlias);
+        if (startPage < 0 || endPage < startPage)
+            throw new IllegalArgumentException("bad page range [" + startPage + ", " + endPage + ")");
+        this.startPage = startPage;
+        this.endPage = endPage;
+    }
+
+    /**
+     * Creates a scan that only returns the given columns of the table, see
+     * {@link DbFile#iterator(TransactionId, int[])}.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan.
+     * @param tableAlias the alias of this table.
+     * @param columns    the indexes of the columns to return in the TupleDesc
+     *                   of the table, in order, or null for all columns.
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
+        this(tid, tableid, tableAlias, columns, null);
+    }
+
+    /**
+     * Creates a scan that only returns the given columns of the tuples that
+     * satisfy all of the given predicates. The predicates are evaluated by
+     * the storage iterator, see
+     * {@link DbFile#iterator(TransactionId, int[], Predicate[])}.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan.
+     * @param tableAlias the alias of this table.
+     * @param columns    the columns to return, or null for all columns.
+     * @param predicates the predicates over the columns of the table (not of
+     *                   the returned tuples), or null for none.
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns, Predicate[] predicates) {
+        this(tid, tableid, tableAlias);
+        this.columns = columns == null ? null : columns.clone();
+        this.predicates = predicates == null ? new Predicate[0] : predicates.clone();
+    }
+
+    /**
+     * Creates a scan of the pages [startPage, endPage) of a HeapFile that only
+     * returns the given columns of the tuples satisfying the predicates.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan, which must be stored in a HeapFile.
+     * @param tableAlias the alias of this table.
+     * @param startPage  the first page to scan.
+     * @param endPage    the page after the last page to scan.
+     * @param columns    the columns to return, or null for all columns.
+     * @param predicates the predicates over the columns of the table, or null
+     *                   for none.
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int startPage, int endPage,
+                   int[] columns, Predicate[] predicates) {
+        this(tid, tableid, tableAlias, startPage, endPage);
+        this.columns = columns == null ? null : columns.clone();
+        this.predicates = predicates == null ? new Predicate[0] : predicates.clone();
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /**
+     * @return the first page scanned
+     */
+    public int getStartPage() {
+        return startPage;
+    }
+
+    /**
+     * @return the page after the last page scanned, or -1 if the whole table
+     * is scanned
+     */
+    public int getEndPage() {
+        return endPage;
+    }
+
+    /**
+     * @return the indexes of the columns of the table this scan returns, or
+     * null if it returns all columns
+     */
+    public int[] getColumns() {
+        return columns == null ? null : columns.clone();
+    }
+
+    /**
+     * @return the predicates the tuples of this scan satisfy, over the
+     * columns of the table; empty if there are none
+     */
+    public Predicate[] getPredicates() {
+        return predicates.clone();
+    }
+
+    /**
+     * Append a column alias.{@value #RECORD_ID_FIELD} of type INT to the
+     * tuples of this scan, holding the record id of each tuple as encoded by
+     * {@link HeapFile#encodeRecordId}. Plans that only carry the columns
+     * they compute with use it to read the other columns of the tuples they
+     * return at the end, see {@link Materialize}. The table must be stored
+     * in a HeapFile.
+     */
+    public void setRecordIdColumn(boolean recordIds) {
+        if (recordIds && !(Database.getCatalog().getDatabaseFile(tableID) instanceof HeapFile))
+            throw new IllegalArgumentException("record id columns need a HeapFile");
+        this.recordIds = recordIds;
+    }
+
+    /**
+     * @return true if the tuples of this scan end with a record id column
+     */
+    public boolean hasRecordIdColumn() {
+        return recordIds;
+    }
+
     /**
      * @return return the table name of the table the operator scans. This should
      * be the actual name of the table in the catalog of the database
@@ -72,6 +215,9 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableID = tableid;
         this.tableAlias = tableAlias;
+        this.columns = null;  // 列下标属于原来的表
+        this.predicates = new Predicate[0];
+        this.recordIds = false;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -82,8 +228,15 @@ public class SeqScan implements OpIterator {
         // some code goes here
         try {
             DbFile dbFile = Database.getCatalog().getDatabaseFile(tableID);
-            tupleIterator = dbFile.iterator(tid);
+            if (endPage < 0) {
+                tupleIterator = dbFile.iterator(tid, columns, predicates);
+            } else if (dbFile instanceof HeapFile) {
+                tupleIterator = ((HeapFile) dbFile).iterator(tid, startPage, endPage, columns, predicates);
+            } else {
+                throw new DbException("page range scans need a HeapFile");
+            }
             tupleIterator.open();
+            ridTd = recordIds ? getTupleDesc() : null;
         } catch (DbException e) {
             throw new DbException("there are problems opening/accessing the database: " + e.getMessage());
         }
@@ -116,8 +269,13 @@ public class SeqScan implements OpIterator {
             fieldAr[i] = tableAlias + "." + name;
         }
 
-        // 返回新的TupleDesc
-        return new TupleDesc(typeAr, fieldAr);
+        // 返回新的TupleDesc，只包含扫描返回的列
+        TupleDesc aliased = new TupleDesc(typeAr, fieldAr);
+        TupleDesc projected = columns == null ? aliased : aliased.project(columns);
+        if (!recordIds)
+            return projected;
+        return TupleDesc.merge(projected, new TupleDesc(new Type[]{Type.INT_TYPE},
+                new String[]{tableAlias + "." + RECORD_ID_FIELD}));
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -134,7 +292,17 @@ public class SeqScan implements OpIterator {
         if (tupleIterator == null) {
             throw new IllegalStateException("Iterator not open");
         }
-        return tupleIterator.next();
+        Tuple t = tupleIterator.next();
+        if (!recordIds)
+            return t;
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(tableID);
+        Tuple withRid = new Tuple(ridTd);
+        withRid.setRecordId(t.getRecordId());
+        int n = ridTd.numFields() - 1;
+        for (int i = 0; i < n; i++)
+            withRid.setField(i, t.getField(i));
+        withRid.setField(n, new IntField(f.encodeRecordId(t.getRecordId())));
+        return withRid;
     }
 
     public void close() {
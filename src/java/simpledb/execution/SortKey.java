@@ -0,0 +1,151 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * SortKey describes a multi-column sort order (a list of fields, each
+ * ascending or descending) and builds normalized sort keys for it: one byte
+ * array per tuple such that comparing two keys byte by byte as unsigned
+ * values (memcmp) orders the tuples the same way as comparing their fields
+ * one after another. Sorts build the key once per tuple so that their inner
+ * loop is {@link #compareKeys} instead of polymorphic {@link Field} calls.
+ * <p>
+ * Encoding of one column:
+ * <ul>
+ * <li>INT_TYPE: the 4 big-endian bytes of the value with the sign bit
+ * flipped.</li>
+ * <li>STRING_TYPE: the big-endian UTF-16 code units of the value (the order
+ * of {@link String#compareTo}), where every 0x00 byte is escaped as 0x00 0xFF,
+ * followed by the terminator 0x00 0x01 so that a prefix sorts first.</li>
+ * </ul>
+ * All bytes of a descending column are inverted.
+ */
+public class SortKey implements Comparator<byte[]>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final int[] fields;
+    private final boolean[] asc;
+
+    /**
+     * @param fields the indexes of the fields to sort on, most significant first
+     * @param asc    for every field, true if it is sorted in ascending order
+     */
+    public SortKey(int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per sort field");
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+    }
+
+    /**
+     * A sort on a single field.
+     */
+    public SortKey(int field, boolean asc) {
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    public boolean[] getAscending() {
+        return asc.clone();
+    }
+
+    /**
+     * @return the names of the sort fields in td, separated by commas and
+     * suffixed with DESC where descending
+     */
+    public String describe(TupleDesc td) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(td.getFieldName(fields[i]));
+            if (!asc[i])
+                sb.append(" DESC");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Build the normalized key of t.
+     */
+    public byte[] encode(Tuple t) {
+        int len = 0;
+        for (int f : fields)
+            len += encodedLength(t.getField(f));
+        byte[] key = new byte[len];
+        int pos = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int start = pos;
+            Field f = t.getField(fields[i]);
+            if (f instanceof IntField) {
+                int v = ((IntField) f).getValue() ^ Integer.MIN_VALUE;
+                key[pos++] = (byte) (v >>> 24);
+                key[pos++] = (byte) (v >>> 16);
+                key[pos++] = (byte) (v >>> 8);
+                key[pos++] = (byte) v;
+            } else {
+                String s = ((StringField) f).getValue();
+                for (int j = 0; j < s.length(); j++) {
+                    char c = s.charAt(j);
+                    pos = putEscaped(key, pos, (byte) (c >>> 8));
+                    pos = putEscaped(key, pos, (byte) c);
+                }
+                key[pos++] = 0;
+                key[pos++] = 1;
+            }
+            if (!asc[i]) {
+                for (int j = start; j < pos; j++)
+                    key[j] = (byte) ~key[j];
+            }
+        }
+        return key;
+    }
+
+    private static int encodedLength(Field f) {
+        if (f instanceof IntField)
+            return 4;
+        String s = ((StringField) f).getValue();
+        int len = 2;
+        for (int j = 0; j < s.length(); j++) {
+            char c = s.charAt(j);
+            len += (c >>> 8) == 0 ? 3 : 2;
+            if ((c & 0xFF) == 0)
+                len++;
+        }
+        return len;
+    }
+
+    private static int putEscaped(byte[] key, int pos, byte b) {
+        key[pos++] = b;
+        if (b == 0)
+            key[pos++] = (byte) 0xFF;
+        return pos;
+    }
+
+    /**
+     * Compare two normalized keys as unsigned byte strings.
+     */
+    public static int compareKeys(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+    public int compare(byte[] a, byte[] b) {
+        return compareKeys(a, b);
+    }
+}
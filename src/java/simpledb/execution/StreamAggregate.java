@@ -0,0 +1,111 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * StreamAggregate is a sort-based {@link Aggregate} for input that is
+ * already ordered (or at least clustered) on the group-by fields, e.g. from
+ * an {@link OrderBy} or a scan of a BTreeFile on its key. Each group is
+ * aggregated while its tuples arrive and emitted as soon as the group-by key
+ * changes, so only the state of the current group is held in memory and the
+ * first group is returned without reading the whole input.
+ * <p>
+ * The output is the same as that of {@link Aggregate}. If the input is not
+ * clustered on the group-by fields, a group is returned once per run of
+ * adjacent tuples.
+ */
+public class StreamAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+    private final int[] gbfields;
+    private final MultiAggregator current;   // 当前组的聚合状态，不分组
+    private transient Field[] key;           // 当前组的分组键
+    private transient Tuple pending;         // 已读出的下一组的第一个元组
+
+    /**
+     * Constructor.
+     *
+     * @param child   The OpIterator that is feeding us tuples, ordered on gfields.
+     * @param afields The columns over which we are computing aggregates.
+     * @param aops    The aggregation operator of each column of afields.
+     * @param gfields The columns over which we are grouping the result, empty
+     *                if there is no grouping
+     */
+    public StreamAggregate(OpIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        super(child, afields, aops, gfields);
+        this.gbfields = gfields.clone();
+        Type[] aTypes = new Type[afields.length];
+        for (int j = 0; j < afields.length; j++)
+            aTypes[j] = child.getTupleDesc().getFieldType(afields[j]);
+        this.current = new MultiAggregator(new int[0], new Type[0], afields, aTypes, aops);
+    }
+
+    private OpIterator child() {
+        return getChildren()[0];
+    }
+
+    @Override
+    protected void aggregateChild() throws DbException, TransactionAbortedException {
+        // 只预读第一个元组，各组在fetchNext中逐个计算
+        pending = child().hasNext() ? child().next() : null;
+    }
+
+    /**
+     * Aggregates the tuples of the next group and returns its result.
+     */
+    @Override
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pending == null)
+            return null;
+        key = new Field[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            key[i] = pending.getField(gbfields[i]);
+        current.reset();
+        current.mergeTupleIntoGroup(pending);
+        pending = null;
+        OpIterator child = child();
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (!inCurrentGroup(t)) {
+                pending = t;
+                break;
+            }
+            current.mergeTupleIntoGroup(t);
+        }
+
+        OpIterator it = current.iterator();
+        it.open();
+        Tuple values = it.next();
+        Tuple result = new Tuple(getTupleDesc());
+        for (int i = 0; i < key.length; i++)
+            result.setField(i, key[i]);
+        for (int j = 0; j < values.getTupleDesc().numFields(); j++)
+            result.setField(key.length + j, values.getField(j));
+        return result;
+    }
+
+    private boolean inCurrentGroup(Tuple t) {
+        for (int i = 0; i < gbfields.length; i++) {
+            if (!t.getField(gbfields[i]).equals(key[i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        child().rewind();
+        aggregateChild();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        pending = null;
+        key = null;
+    }
+}
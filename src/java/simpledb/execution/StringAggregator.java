@@ -83,6 +83,21 @@ public class StringAggregator implements Aggregator {
         }
     }
 
+    /**
+     * Merge the counts of another StringAggregator with the same aggregate
+     * field and group-by field into this one.
+     */
+    public void merge(Aggregator other) {
+        if (!(other instanceof StringAggregator))
+            throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName());
+        StringAggregator o = (StringAggregator) other;
+        if (o.afield != afield || o.gbfield != gbfield || o.type != type)
+            throw new IllegalArgumentException("cannot merge a different aggregate");
+        for (Map.Entry<Field, Integer> e : o.aggregates.entrySet()) {
+            aggregates.merge(e.getKey(), e.getValue(), Integer::sum);
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
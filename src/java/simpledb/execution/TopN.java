@@ -0,0 +1,162 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * TopN implements ORDER BY ... LIMIT n: it returns the first n tuples of the
+ * child in sort order. Instead of sorting the whole input it keeps the best n
+ * tuples seen so far in a bounded heap whose root is the worst of them, so it
+ * runs in O(m log n) time and O(n) memory for m input tuples. Like
+ * {@link OrderBy} it compares normalized {@link SortKey}s, and tuples with
+ * equal sort keys are returned in input order.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final SortKey sortKey;
+    private final int limit;
+    private transient List<Tuple> result;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField the field to which the sort is applied.
+     * @param asc          true if the sort order is ascending.
+     * @param limit        the number of tuples to return.
+     * @param child        the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        this(new SortKey(orderbyField, asc), limit, child);
+    }
+
+    /**
+     * Creates a new TopN node which sorts on several fields.
+     *
+     * @param sortKey the fields to sort on, most significant first, and
+     *                their directions.
+     * @param limit   the number of tuples to return.
+     * @param child   the tuples to sort.
+     */
+    public TopN(SortKey sortKey, int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.sortKey = sortKey;
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if the first sort field is sorted in ascending order
+     */
+    public boolean isASC() {
+        return this.sortKey.getAscending()[0];
+    }
+
+    /**
+     * @return the first sort field
+     */
+    public int getOrderByField() {
+        return this.sortKey.getFields()[0];
+    }
+
+    public String getOrderFieldName() {
+        return td.getFieldName(getOrderByField());
+    }
+
+    public SortKey getSortKey() {
+        return this.sortKey;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        // 堆顶是当前保留的元组中排序最靠后的一个；相等时后到的更靠后
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, limit),
+                (a, b) -> {
+                    int c = SortKey.compareKeys(b.key, a.key);
+                    return c != 0 ? c : Long.compare(b.seq, a.seq);
+                });
+        if (limit > 0) {
+            child.open();
+            long seq = 0;
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                byte[] key = sortKey.encode(t);
+                if (heap.size() < limit) {
+                    heap.add(new Entry(key, t, seq++));
+                } else if (SortKey.compareKeys(key, heap.peek().key) < 0) {
+                    heap.poll();
+                    heap.add(new Entry(key, t, seq++));
+                }
+            }
+            child.close();
+        }
+        Tuple[] sorted = new Tuple[heap.size()];
+        for (int i = sorted.length - 1; i >= 0; i--)
+            sorted[i] = heap.poll().tuple;
+        result = Arrays.asList(sorted);
+        it = result.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        result = null;
+        it = null;
+    }
+
+    public void rewind() {
+        it = result.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the retained tuples in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+    private static class Entry {
+        final byte[] key;
+        final Tuple tuple;
+        final long seq;
+
+        Entry(byte[] key, Tuple tuple, long seq) {
+            this.key = key;
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+}
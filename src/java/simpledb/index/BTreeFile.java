@@ -6,6 +6,7 @@ import java.util.*;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
@@ -1053,6 +1054,37 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for the tuples of this file satisfying all of the given
+	 * predicates, see {@link DbFile#iterator(TransactionId, int[], Predicate[])}.
+	 * If one of the predicates compares the key field, only the part of the
+	 * tree it selects is searched; the other predicates are tested on every
+	 * tuple found.
+	 *
+	 * @param tid - the transaction id
+	 * @param columns - the columns to return, or null for all columns
+	 * @param predicates - the predicates over the columns of the file, or null for none
+	 * @return an iterator for the matching tuples, in sorted order
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid, int[] columns, Predicate[] predicates) {
+		Predicate onKey = null;
+		if (predicates != null) {
+			for (Predicate p : predicates) {
+				if (p.getField() != keyField || p.getOp() == Op.LIKE || p.getOp() == Op.NOT_EQUALS)
+					continue;
+				// 等值条件选中的范围最小，优先使用
+				if (onKey == null || p.getOp() == Op.EQUALS)
+					onKey = p;
+			}
+		}
+		DbFileIterator it = onKey == null ? iterator(tid)
+				: indexIterator(tid, new IndexPredicate(onKey.getOp(), onKey.getOperand()));
+		if (columns == null && (predicates == null || predicates.length == 0))
+			return it;
+		return new FilterProjectIterator(it, td, columns, predicates);
+	}
+
 }
 
 /**
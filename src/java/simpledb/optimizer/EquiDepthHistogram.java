@@ -0,0 +1,337 @@
+package simpledb.optimizer;
+
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The distribution of the values of a column, of INT_TYPE or STRING_TYPE:
+ * a list of its most common values with their counts, and an equi-depth
+ * histogram of the other values.
+ * <p>
+ * The most common values are the ones that are clearly more frequent than
+ * the average value; if a column has few distinct values, all of them are.
+ * The bounds of the histogram buckets are chosen so that each bucket holds
+ * about as many of the other values. Skewed columns are thus described by
+ * the common values, whose selectivity is exact, and the rest of the
+ * column by buckets that are narrow where the values are dense. Whole
+ * strings are compared, not only their first characters.
+ * <p>
+ * The histogram is built from a sample of the column, and its counts are
+ * scaled to the number of tuples in the table. Like {@link IntHistogram},
+ * values can be added and removed afterwards; the bucket bounds stay.
+ */
+public class EquiDepthHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Compares fields of the same type in their natural order */
+    static final Comparator<Field> ORDER = (a, b) ->
+            a.compare(Predicate.Op.LESS_THAN, b) ? -1 : a.equals(b) ? 0 : 1;
+
+    private final Field[] mcvValues;  // 最常见值，按值排序
+    private final double[] mcvCounts;
+    private final Field[] bounds;     // 桶i为[bounds[i], bounds[i+1])，最后一个桶包含上界
+    private final double[] counts;    // 每个桶中其余值的元组个数
+    private final double[] distinct;  // 每个桶中不同值个数的估计
+    private double total;
+
+    /**
+     * Build the histogram of a column.
+     *
+     * @param sample      the values of a sample of the tuples, or of all of them
+     * @param numTuples   the number of tuples in the table
+     * @param numDistinct the estimated number of distinct values in the table
+     * @param buckets     the maximum number of buckets
+     * @param maxMcvs     the maximum number of most common values
+     */
+    public EquiDepthHistogram(List<Field> sample, int numTuples, double numDistinct,
+                              int buckets, int maxMcvs) {
+        int n = sample.size();
+        double scale = n == 0 ? 0 : (double) numTuples / n;
+        this.total = n == 0 ? 0 : numTuples;
+        Map<Field, Integer> frequencies = new HashMap<>();
+        for (Field f : sample)
+            frequencies.merge(f, 1, Integer::sum);
+
+        // 选出最常见值：样本含有全部不同值且不多时全部选出，否则选出明显高于平均频数的值
+        List<Map.Entry<Field, Integer>> byCount = new ArrayList<>(frequencies.entrySet());
+        byCount.sort((a, b) -> b.getValue() - a.getValue());
+        boolean allSeen = n >= numTuples || byCount.isEmpty() || byCount.get(byCount.size() - 1).getValue() > 1;
+        List<Map.Entry<Field, Integer>> mcvs = new ArrayList<>();
+        if (frequencies.size() <= maxMcvs && allSeen) {
+            mcvs.addAll(byCount);
+        } else {
+            double avg = n / Math.max(numDistinct, frequencies.size());
+            for (Map.Entry<Field, Integer> e : byCount) {
+                if (mcvs.size() == maxMcvs || e.getValue() < 2 || e.getValue() <= 1.25 * avg)
+                    break;
+                mcvs.add(e);
+            }
+        }
+        mcvs.sort((a, b) -> ORDER.compare(a.getKey(), b.getKey()));
+        this.mcvValues = new Field[mcvs.size()];
+        this.mcvCounts = new double[mcvs.size()];
+        for (int i = 0; i < mcvs.size(); i++) {
+            mcvValues[i] = mcvs.get(i).getKey();
+            mcvCounts[i] = mcvs.get(i).getValue() * scale;
+            frequencies.remove(mcvValues[i]);
+        }
+
+        // 其余值排序后按元组个数等分成桶
+        List<Field> rest = new ArrayList<>();
+        for (Field f : sample) {
+            if (frequencies.containsKey(f))
+                rest.add(f);
+        }
+        rest.sort(ORDER);
+        int k = Math.min(buckets, frequencies.size());
+        this.bounds = new Field[k == 0 ? 0 : k + 1];
+        for (int i = 0; i < k; i++)
+            bounds[i] = rest.get((int) ((long) i * rest.size() / k));
+        if (k > 0)
+            bounds[k] = rest.get(rest.size() - 1);
+        this.counts = new double[k];
+        this.distinct = new double[k];
+        Field previous = null;
+        for (Field f : rest) {
+            int b = bucketOf(f);
+            counts[b] += scale;
+            if (!f.equals(previous))
+                distinct[b]++;
+            previous = f;
+        }
+        // 样本中的不同值个数按全表的估计放大
+        double restDistinct = Math.max(numDistinct - mcvValues.length, frequencies.size());
+        for (int b = 0; b < k; b++)
+            distinct[b] *= restDistinct / frequencies.size();
+    }
+
+    /**
+     * @return the index of the most common value v, or -1
+     */
+    private int mcvIndex(Field v) {
+        int i = Arrays.binarySearch(mcvValues, v, ORDER);
+        return i >= 0 ? i : -1;
+    }
+
+    /**
+     * @return the bucket of v, the first or last one if v is outside the
+     * bounds; only called if there are buckets
+     */
+    private int bucketOf(Field v) {
+        int i = Arrays.binarySearch(bounds, v, ORDER);
+        if (i < 0)
+            i = -i - 2;  // 最后一个不大于v的下界
+        else
+            while (i + 1 < bounds.length - 1 && bounds[i + 1].equals(v))
+                i++;     // 重复的下界取最后一个
+        return Math.max(0, Math.min(counts.length - 1, i));
+    }
+
+    /**
+     * Add a value to the histogram.
+     */
+    public void addValue(Field v) {
+        total++;
+        int i = mcvIndex(v);
+        if (i >= 0) {
+            mcvCounts[i]++;
+        } else if (counts.length > 0) {
+            counts[bucketOf(v)]++;
+        }
+    }
+
+    /**
+     * Remove a value added before from the histogram.
+     */
+    public void removeValue(Field v) {
+        int i = mcvIndex(v);
+        if (i >= 0) {
+            if (mcvCounts[i] >= 1) {
+                mcvCounts[i]--;
+                total--;
+            }
+        } else if (counts.length > 0) {
+            int b = bucketOf(v);
+            if (counts[b] >= 1) {
+                counts[b]--;
+                total--;
+            }
+        }
+    }
+
+    /**
+     * @return the fraction of the tuples whose value equals v
+     */
+    private double equalFraction(Field v) {
+        int i = mcvIndex(v);
+        if (i >= 0)
+            return mcvCounts[i] / total;
+        if (counts.length == 0 || ORDER.compare(v, bounds[0]) < 0
+                || ORDER.compare(v, bounds[bounds.length - 1]) > 0)
+            return 0.0;
+        int b = bucketOf(v);
+        return counts[b] / Math.max(1.0, distinct[b]) / total;
+    }
+
+    /**
+     * @return the fraction of the tuples whose value is less than v
+     */
+    private double lessFraction(Field v) {
+        double less = 0;
+        for (int i = 0; i < mcvValues.length && ORDER.compare(mcvValues[i], v) < 0; i++)
+            less += mcvCounts[i];
+        if (counts.length > 0 && ORDER.compare(v, bounds[0]) > 0) {
+            int b = bucketOf(v);
+            for (int i = 0; i < b; i++)
+                less += counts[i];
+            less += counts[b] * position(bounds[b], bounds[b + 1], v);
+        }
+        return less / total;
+    }
+
+    /**
+     * @return where v lies between lo and hi, from 0 to 1, interpolating
+     * linearly between the values or between the strings as numbers
+     */
+    private static double position(Field lo, Field hi, Field v) {
+        if (ORDER.compare(v, hi) >= 0)
+            return 1.0;
+        double l, h, x;
+        if (v instanceof IntField) {
+            l = ((IntField) lo).getValue();
+            h = ((IntField) hi).getValue();
+            x = ((IntField) v).getValue();
+        } else {
+            // 去掉两个边界的公共前缀，把后面的字符当作小数
+            String ls = ((StringField) lo).getValue(), hs = ((StringField) hi).getValue();
+            String xs = ((StringField) v).getValue();
+            int p = 0;
+            while (p < ls.length() && p < hs.length() && ls.charAt(p) == hs.charAt(p))
+                p++;
+            l = fraction(ls, p);
+            h = fraction(hs, p);
+            x = xs.startsWith(ls.substring(0, p)) ? fraction(xs, p) : l;
+        }
+        return h > l ? Math.max(0.0, Math.min(1.0, (x - l) / (h - l))) : 0.0;
+    }
+
+    private static double fraction(String s, int from) {
+        double v = 0, unit = 1;
+        for (int i = from; i < s.length() && i < from + 4; i++) {
+            unit /= 65536;
+            v += s.charAt(i) * unit;
+        }
+        return v;
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this
+     * column.
+     *
+     * @param op Operator
+     * @param v  Value, of the type of the column
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, Field v) {
+        if (total <= 0)
+            return 0.0;
+        double sel;
+        switch (op) {
+            case EQUALS:
+                sel = equalFraction(v);
+                break;
+            case NOT_EQUALS:
+                sel = 1 - equalFraction(v);
+                break;
+            case LESS_THAN:
+                sel = lessFraction(v);
+                break;
+            case LESS_THAN_OR_EQ:
+                sel = lessFraction(v) + equalFraction(v);
+                break;
+            case GREATER_THAN:
+                sel = 1 - lessFraction(v) - equalFraction(v);
+                break;
+            case GREATER_THAN_OR_EQ:
+                sel = 1 - lessFraction(v);
+                break;
+            case LIKE:
+                sel = likeFraction(v);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported op: " + op);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * @return the fraction of the common values matching v, assuming the
+     * other values match in the same proportion
+     */
+    private double likeFraction(Field v) {
+        double common = 0, matching = 0;
+        for (int i = 0; i < mcvValues.length; i++) {
+            common += mcvCounts[i];
+            if (mcvValues[i].compare(Predicate.Op.LIKE, v))
+                matching += mcvCounts[i];
+        }
+        if (common <= 0)
+            return 1.0;
+        return (matching + (total - common) * matching / common) / total;
+    }
+
+    /**
+     * @return the expected selectivity of an equality with the value of a
+     * random tuple of the table: the sum of the squared frequencies of the
+     * values
+     */
+    public double avgSelectivity() {
+        if (total <= 0)
+            return 1.0;
+        double sum = 0;
+        for (double c : mcvCounts)
+            sum += (c / total) * (c / total);
+        for (int b = 0; b < counts.length; b++) {
+            double d = Math.max(1.0, distinct[b]);
+            sum += d * (counts[b] / d / total) * (counts[b] / d / total);
+        }
+        return sum > 0 ? sum : 1.0;
+    }
+
+    /**
+     * @return the number of most common values
+     */
+    public int numCommonValues() {
+        return mcvValues.length;
+    }
+
+    /**
+     * @return the number of buckets of the histogram of the other values
+     */
+    public int numBuckets() {
+        return counts.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("EquiDepthHistogram: %d tuples%n", (long) total));
+        for (int i = 0; i < mcvValues.length; i++)
+            sb.append(String.format("MCV %s: %.0f%n", mcvValues[i], mcvCounts[i]));
+        for (int b = 0; b < counts.length; b++)
+            sb.append(String.format("Bucket %d [%s, %s]: %.0f, ~%.0f distinct%n",
+                    b, bounds[b], bounds[b + 1], counts[b], distinct[b]));
+        return sb.toString();
+    }
+}
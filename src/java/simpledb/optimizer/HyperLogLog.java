@@ -0,0 +1,124 @@
+package simpledb.optimizer;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch of the distinct values of a column.
+ * <p>
+ * Each value is hashed to 64 bits; the first bits choose one of 2^precision
+ * registers, which keeps the longest run of leading zeros seen in the rest
+ * of the hashes sent to it. The number of distinct values is estimated from
+ * the registers with a relative error of about 1.04 / sqrt(2^precision),
+ * in space independent of the number of values.
+ * <p>
+ * Sketches of the same precision can be {@link #merge merged}: the merge of
+ * the sketches of parts of a column, collected separately, is the sketch of
+ * the whole column.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The precision used for the column statistics, 4096 registers */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Create an empty sketch.
+     *
+     * @param precision the number of bits of the hash choosing the register,
+     *                  between 4 and 16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision out of range: " + precision);
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Add a value to the sketch.
+     */
+    public void addValue(Field f) {
+        addHash(hash(f));
+    }
+
+    private void addHash(long h) {
+        int index = (int) (h >>> (64 - precision));
+        // 剩余位的前导零个数加一；剩余位全为零时取最大值
+        int rank = Math.min(Long.numberOfLeadingZeros(h << precision), 64 - precision) + 1;
+        if (rank > registers[index])
+            registers[index] = (byte) rank;
+    }
+
+    /**
+     * Add the values of another sketch to this one.
+     *
+     * @throws IllegalArgumentException if the precisions differ
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("cannot merge sketches of precision "
+                    + precision + " and " + other.precision);
+        for (int i = 0; i < registers.length; i++)
+            registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public double estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        if (e <= 2.5 * m && zeros > 0)  // 基数较小时用线性计数更准确
+            return m * Math.log((double) m / zeros);
+        return e;
+    }
+
+    /**
+     * @return a 64-bit hash of the value of f; equal fields hash equally
+     */
+    static long hash(Field f) {
+        long h;
+        if (f instanceof IntField) {
+            h = ((IntField) f).getValue();
+        } else {
+            String s = ((StringField) f).getValue();
+            h = 0xcbf29ce484222325L;  // FNV-1a
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        // MurmurHash3的64位终结混合，使各位均匀分布
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HyperLogLog(%d registers, ~%.0f distinct)", registers.length, estimate());
+    }
+}
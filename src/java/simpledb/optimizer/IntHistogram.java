@@ -2,11 +2,15 @@ package simpledb.optimizer;
 
 import simpledb.execution.Predicate;
 
+import java.io.Serializable;
+
 /**
  * A class to represent a fixed-width histogram over a single integer-based field.
  * 选择性（selectivity），即查询条件匹配的记录占总记录数的比例
  */
-public class IntHistogram {
+public class IntHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private int bucketNum, min, max, sum;
     private int[] buckets;
@@ -49,10 +53,32 @@ public class IntHistogram {
      */
     public void addValue(int v) {
         // some code goes here
-        int index;
-        index = (int) ((v - min) / bucketSize);  // 计算所在桶的索引
         sum++;
-        buckets[index]++;
+        buckets[bucketOf(v)]++;
+    }
+
+    /**
+     * Remove a value added before, to keep the histogram approximately up
+     * to date as values are deleted. Like {@link #addValue}, a value outside
+     * [min, max] counts for the nearest bucket.
+     *
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        int index = bucketOf(v);
+        if (buckets[index] > 0) {
+            buckets[index]--;
+            sum--;
+        }
+    }
+
+    /**
+     * @return the bucket of v; values outside [min, max], which can only be
+     * added after the histogram was built, go to the first or last bucket
+     */
+    private int bucketOf(int v) {
+        int index = (int) ((v - (double) min) / bucketSize);  // 计算所在桶的索引
+        return Math.max(0, Math.min(buckets.length - 1, index));
     }
 
     /**
@@ -151,7 +177,17 @@ public class IntHistogram {
      */
     public double avgSelectivity() {
         // some code goes here
-        return 1.0;
+        // 等值选择性的期望：桶内各值均分桶的元组，各值频率的平方和
+        if (sum == 0) {
+            return 1.0;
+        }
+        double width = Math.max(1.0, bucketSize);
+        double avg = 0.0;
+        for (int count : buckets) {
+            double f = (double) count / sum;
+            avg += f * f / width;
+        }
+        return avg;
     }
 
     /**
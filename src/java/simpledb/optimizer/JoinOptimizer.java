@@ -3,9 +3,12 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
 import simpledb.storage.DbFile;
-import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
 
 import java.util.*;
 
@@ -18,8 +21,17 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /**
+     * Default number of joins up to which {@link #orderJoins} finds the
+     * cheapest order
+     */
+    public static final int DEFAULT_DP_JOIN_LIMIT = 15;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
+    private int dpJoinLimit = DEFAULT_DP_JOIN_LIMIT;
+    private int parallelism = 1;
+    private Map<String, CostCard> inputs = new HashMap<>();  // 表别名 -> 已计算的子计划
 
     /**
      * Constructor
@@ -46,6 +58,29 @@ public class JoinOptimizer {
      */
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, 1);
+    }
+
+    /**
+     * Like {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)},
+     * but a join the optimizer costed as
+     * {@link LogicalJoinNode.Algorithm#PARALLEL_HASH} is computed by a
+     * {@link ParallelHashJoin} on the given number of worker threads if there
+     * is more than one.
+     * <p>
+     * The join is computed with the {@link LogicalJoinNode#algorithm} the
+     * optimizer costed it with; if there is none, an equi-join is computed
+     * as a chunked {@link HashEquiJoin}, whose memory use is bounded, and any
+     * other join with nested loops.
+     *
+     * @param lj      The join being considered
+     * @param plan1   The left join node's child
+     * @param plan2   The right join node's child
+     * @param workers The number of threads the join may use
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2,
+                                             int workers) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -70,7 +105,11 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        boolean hash = lj.p == Predicate.Op.EQUALS
+                && lj.algorithm != LogicalJoinNode.Algorithm.NESTED_LOOPS;
+        if (hash && workers > 1 && lj.algorithm == LogicalJoinNode.Algorithm.PARALLEL_HASH) {
+            j = new ParallelHashJoin(p, plan1, plan2, workers);
+        } else if (hash) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -80,16 +119,82 @@ public class JoinOptimizer {
                 j = (OpIterator) ct
                         .newInstance(new Object[]{p, plan1, plan2});
             } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
+                j = new Join(p, plan1, plan2, Join.DEFAULT_BLOCK_PAGES);
             }
         } else {
-            j = new Join(p, plan1, plan2);
+            j = new Join(p, plan1, plan2, Join.DEFAULT_BLOCK_PAGES);
         }
 
         return j;
 
     }
 
+    /**
+     * Return an {@link IndexNestLoopJoin} computing the given logical join by
+     * probing the B+ tree index of lj.t2 for every tuple of plan1. plan2 must
+     * be the base table plan of lj.t2, i.e. a SeqScan or BTreeScan possibly
+     * wrapped in Filters; the filters, and the predicate of the BTreeScan,
+     * are applied on top of the join instead. Falls back on
+     * {@link #instantiateJoin} if plan2 does not have this form.
+     *
+     * @param tid   The transaction the index scan runs as a part of
+     * @param lj    The join being considered, to be computed with
+     *              {@link LogicalJoinNode.Algorithm#INDEX}
+     * @param plan1 The left join node's child
+     * @param plan2 The base table plan of the right join node
+     */
+    public static OpIterator instantiateIndexJoin(TransactionId tid, LogicalJoinNode lj,
+                                                  OpIterator plan1, OpIterator plan2) throws ParsingException {
+        List<Predicate> innerFilters = new ArrayList<>();
+        OpIterator inner = plan2;
+        while (inner instanceof Filter) {
+            innerFilters.add(((Filter) inner).getPredicate());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        String tableName, alias;
+        if (inner instanceof SeqScan) {
+            tableName = ((SeqScan) inner).getTableName();
+            alias = ((SeqScan) inner).getAlias();
+        } else if (inner instanceof BTreeScan) {
+            tableName = ((BTreeScan) inner).getTableName();
+            alias = ((BTreeScan) inner).getAlias();
+            // 访问路径的索引条件改为连接之上的过滤条件，索引用于探测连接键
+            IndexPredicate ip = ((BTreeScan) inner).getIndexPredicate();
+            if (ip != null) {
+                int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(
+                        Database.getCatalog().getTableId(tableName))).keyField();
+                innerFilters.add(new Predicate(keyField, ip.getOp(), ip.getField()));
+            }
+        } else {
+            return instantiateJoin(lj, plan1, plan2);
+        }
+        int tableId = Database.getCatalog().getTableId(tableName);
+        BTreeScan bs = new BTreeScan(tid, tableId, alias, null);
+
+        int t1id, t2id;
+        try {
+            t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+        }
+        try {
+            t2id = bs.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f2QuantifiedName);
+        }
+
+        OpIterator j = new IndexNestLoopJoin(new JoinPredicate(t1id, lj.p, t2id), plan1, bs);
+        // 内表上的过滤条件移到连接之上，字段下标需要偏移外表的宽度；
+        // 索引扫描返回所有列，而顺序扫描可能只返回部分列，按名字换算下标
+        int offset = plan1.getTupleDesc().numFields();
+        for (int i = innerFilters.size() - 1; i >= 0; i--) {
+            Predicate f = innerFilters.get(i);
+            int field = bs.getTupleDesc().fieldNameToIndex(inner.getTupleDesc().getFieldName(f.getField()));
+            j = new Filter(new Predicate(field + offset, f.getOp(), f.getOperand()), j);
+        }
+        return j;
+    }
+
     /**
      * Estimate the cost of a join.
      * <p>
@@ -108,7 +213,8 @@ public class JoinOptimizer {
      * @param cost2 Estimated cost of one full scan of the table on the right-hand
      *              side of the query
      * @return An estimate of the cost of this query, in terms of cost1 and
-     * cost2
+     * cost2: that of the cheapest algorithm that can compute j, see
+     * {@link #estimateJoinCost(LogicalJoinNode, LogicalJoinNode.Algorithm, int, int, double, double, double)}
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
@@ -117,17 +223,195 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
 
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 +  // IO
-                    card1 * card2;          // CPU
+        }
+        // 最便宜的算法，内表每次重新扫描都按完整代价计算
+        return Math.min(
+                estimateJoinCost(j, LogicalJoinNode.Algorithm.NESTED_LOOPS, card1, card2, cost1, cost2, cost2),
+                estimateJoinCost(j, LogicalJoinNode.Algorithm.HASH, card1, card2, cost1, cost2, cost2));
+    }
+
+    /**
+     * Estimate the cost of computing j with the given algorithm, as run by
+     * the operator {@link #instantiateJoin} creates for it. Both inputs are
+     * computed once; what differs is how often the inner is scanned again
+     * and how many tuples are compared:
+     * <ul>
+     * <li>NESTED_LOOPS: a block nested loops {@link Join} scans the inner
+     * once per {@link Join#DEFAULT_BLOCK_PAGES} pages of outer tuples and
+     * compares every pair.</li>
+     * <li>HASH: a {@link HashEquiJoin} builds its hash table from at most
+     * {@link HashEquiJoin#MAP_SIZE} outer tuples at a time and scans the
+     * inner once per such chunk, so an outer that does not fit in memory
+     * spills into extra passes over the inner.</li>
+     * <li>PARALLEL_HASH: a {@link ParallelHashJoin} reads both inputs once
+     * and partitions, builds and probes on all workers; only with more than
+     * one worker. The fraction of the outer that does not fit in the pages
+     * it keeps in memory, see {@link ParallelHashJoin#residentPages}, is
+     * written to disk and read back once, together with the same fraction
+     * of the inner.</li>
+     * <li>INDEX: see {@link #estimateIndexJoinCost}; not costed here.</li>
+     * </ul>
+     *
+     * @param j         the join being considered
+     * @param algorithm the algorithm to compute it with
+     * @param card1     Estimated cardinality of the outer input
+     * @param card2     Estimated cardinality of the inner input
+     * @param cost1     Estimated cost of computing the outer input once
+     * @param cost2     Estimated cost of computing the inner input once
+     * @param rescan2   Estimated cost of each further scan of the inner: cost2
+     *                  if it is recomputed, less if its pages stay in the
+     *                  buffer pool
+     * @return the estimated cost, or Double.MAX_VALUE if the algorithm cannot
+     * compute j, or cannot hold inputs of these sizes in its memory budget
+     */
+    public double estimateJoinCost(LogicalJoinNode j, LogicalJoinNode.Algorithm algorithm,
+                                   int card1, int card2, double cost1, double cost2, double rescan2) {
+        return estimateJoinCost(j, algorithm, card1, card2, cost1, cost2, rescan2,
+                outerBlockTuples(Collections.singleton(j.t1Alias)));
+    }
+
+    /**
+     * Like {@link #estimateJoinCost(LogicalJoinNode, LogicalJoinNode.Algorithm, int, int, double, double, double)},
+     * for an outer input of which blockTuples tuples fit in a block of a
+     * block nested loops join.
+     */
+    private double estimateJoinCost(LogicalJoinNode j, LogicalJoinNode.Algorithm algorithm,
+                                    int card1, int card2, double cost1, double cost2, double rescan2,
+                                    int blockTuples) {
+        switch (algorithm) {
+            case NESTED_LOOPS: {
+                // 块嵌套循环连接：每个外表块扫描一次内表
+                double blocks = Math.max(1, Math.ceil((double) card1 / blockTuples));
+                return cost1 + cost2 + (blocks - 1) * rescan2 +  // IO
+                        (double) card1 * card2;                    // CPU
+            }
+            case HASH: {
+                if (j.p != Predicate.Op.EQUALS)
+                    return Double.MAX_VALUE;
+                // 外表每MAP_SIZE个元组建一次哈希表，每次都扫描一遍内表
+                double chunks = Math.max(1, Math.ceil((double) card1 / HashEquiJoin.MAP_SIZE));
+                return cost1 + cost2 + (chunks - 1) * rescan2 +  // IO
+                        card1 + chunks * card2;                    // CPU
+            }
+            case PARALLEL_HASH: {
+                if (j.p != Predicate.Op.EQUALS || parallelism <= 1)
+                    return Double.MAX_VALUE;
+                // 两边各读一遍，分区、建表和探测由各线程分担；按外表的宽度估计内存中能放下的元组数
+                double tuplesPerPage = Math.max(1.0, (double) blockTuples / Join.DEFAULT_BLOCK_PAGES);
+                double resident = tuplesPerPage * ParallelHashJoin.residentPages(ParallelHashJoin.DEFAULT_JOIN_PAGES);
+                double spilled = card1 > resident ? (1 - resident / card1) * (card1 + card2) : 0;
+                return cost1 + cost2 +
+                        2 * Math.ceil(spilled / tuplesPerPage) * TableStats.IOCOSTPERPAGE +  // IO：写出再读回
+                        (card1 + card2 + spilled) / parallelism;                            // CPU
+            }
+            default:
+                return Double.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Estimate the cost of scanning a base table again: only reading its
+     * tuples if all its pages stay in the buffer pool between the scans.
+     * The pool evicts the least recently used page, so a table with as many
+     * pages as the pool, or more, is read from disk on every scan.
+     */
+    private static double rescanCost(TableStats stats) {
+        if (stats.numPages() < BufferPool.getNumPages())
+            return Math.min(stats.totalTuples(), stats.estimateScanCost());
+        return stats.estimateScanCost();
+    }
+
+    /**
+     * Estimate the cost of computing j as an index nested loops join, i.e.
+     * probing a B+ tree on j.t2 keyed on j.f2 once per outer tuple.
+     *
+     * @param j          the join being considered
+     * @param card1      Estimated cardinality of the left-hand side of the query
+     * @param cost1      Estimated cost of one full scan of the left-hand side
+     * @param innerStats statistics of the base table j.t2
+     * @return the estimated cost, or Double.MAX_VALUE if j.t2 has no usable index
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1,
+                                         TableStats innerStats) {
+        if (!isIndexable(j)) {
+            return Double.MAX_VALUE;
+        }
+        int innerTuples = Math.max(1, innerStats.totalTuples());
+        // 等值按唯一键估计，范围连接与estimateTableJoinCardinality一样按0.3估计
+        double sel = j.p == Predicate.Op.EQUALS ? 1.0 / innerTuples : 0.3;
+        return cost1 + card1 * innerStats.estimateIndexLookupCost(sel) +  // IO
+                card1 * Math.max(1.0, sel * innerTuples);                  // CPU
+    }
 
+    /**
+     * Return true if the inner table of j is stored in a {@link BTreeFile}
+     * keyed on the join field and j's predicate can be answered by probing it.
+     */
+    private boolean isIndexable(LogicalJoinNode j) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null
+                || !IndexNestLoopJoin.supportsOp(j.p)) {
+            return false;
+        }
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null) {
+            return false;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile)) {
+            return false;
+        }
+        try {
+            return file.getTupleDesc().fieldNameToIndex(j.f2PureName) == ((BTreeFile) file).keyField();
+        } catch (NoSuchElementException e) {
+            return false;
         }
     }
 
+    /**
+     * Number of outer tuples a block nested loops join created by
+     * {@link #instantiateJoin} buffers per scan of its inner relation, based on
+     * the width of the tuples of the outer input, which joins the tables
+     * with the given aliases (1 if none of the aliases is known).
+     */
+    private int outerBlockTuples(Set<String> tableAliases) {
+        TupleDesc td = null;
+        for (String alias : tableAliases) {
+            Integer tableId = alias == null ? null : p.getTableId(alias);
+            if (tableId == null)
+                continue;
+            TupleDesc t = Database.getCatalog().getTupleDesc(tableId);
+            td = td == null ? t : TupleDesc.merge(td, t);
+        }
+        if (td == null) {
+            return 1;
+        }
+        return Join.blockTuples(Join.DEFAULT_BLOCK_PAGES, td);
+    }
+
+    /**
+     * @return the aliases of the tables joined by side, the plan containing
+     * the table alias, or alias alone if side is null
+     */
+    private Set<String> aliasesOf(CostCard side, String alias) {
+        Set<String> tables = new HashSet<>();
+        tables.add(alias);
+        if (side != null) {
+            for (LogicalJoinNode j : side.plan) {
+                tables.add(j.t1Alias);
+                if (j.t2Alias != null)
+                    tables.add(j.t2Alias);
+            }
+            // 已计算的子计划不列出它的连接
+            for (Map.Entry<String, CostCard> e : inputs.entrySet()) {
+                if (tables.contains(e.getKey()))
+                    for (Map.Entry<String, CostCard> f : inputs.entrySet())
+                        if (f.getValue() == e.getValue())
+                            tables.add(f.getKey());
+            }
+        }
+        return tables;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -156,6 +440,12 @@ public class JoinOptimizer {
 
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * An equi-join of a primary key is as large as the other side. Any
+     * other equi-join is estimated from the number of distinct values of
+     * the join fields, assuming that the values of the side with fewer of
+     * them all occur on the other side: card1 * card2 / max(ndv1, ndv2),
+     * where a side has at most as many distinct values as tuples.
      */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
                                                    String table1Alias, String table2Alias, String field1PureName,
@@ -163,12 +453,8 @@ public class JoinOptimizer {
                                                    boolean t2pkey, Map<String, TableStats> stats,
                                                    Map<String, Integer> tableAliasToId) {
         // some code goes here
-        int t1Id = tableAliasToId.get(table1Alias);
-        int t2Id = tableAliasToId.get(table2Alias);
-        HeapFile file1 = (HeapFile) Database.getCatalog().getDatabaseFile(t1Id);
-        HeapFile file2 = (HeapFile) Database.getCatalog().getDatabaseFile(t2Id);
-        TableStats stats1 = stats.get(table1Alias);
-        TableStats stats2 = stats.get(table2Alias);
+        TableStats stats1 = baseTableStats(table1Alias, stats, tableAliasToId);
+        TableStats stats2 = baseTableStats(table2Alias, stats, tableAliasToId);
         if (joinOp == Predicate.Op.EQUALS) {  // 等值连接
             if (t1pkey && t2pkey) {  // 连接的是俩个主键字段
                 return Math.min(card1, card2);
@@ -176,16 +462,55 @@ public class JoinOptimizer {
                 return card2;
             } else if (t2pkey) {     // 2是主键，1不是主键
                 return card1;
-            } else {                 // 二者都不是主键，返回二者中元组数量的较大者
-                return Math.max(stats1.totalTuples(), stats2.totalTuples());
             }
+            double ndv1 = numDistinct(stats1, table1Alias, field1PureName, tableAliasToId, card1);
+            double ndv2 = numDistinct(stats2, table2Alias, field2PureName, tableAliasToId, card2);
+            double ndv = Math.max(ndv1, ndv2);
+            if (ndv >= 1)
+                return (int) Math.min(Integer.MAX_VALUE, Math.round((double) card1 * card2 / ndv));
+            // 没有不同值的统计信息时，返回二者中元组数量的较大者
+            return Math.max(card1, card2);
         } else {  // 范围连接
             int fixedFractionMul = (int) (card1 * card2 * 0.3);
-            int maxTuple = Math.max(stats1.totalTuples(), stats2.totalTuples());
+            int maxTuple = Math.max(stats1 == null ? card1 : stats1.totalTuples(),
+                    stats2 == null ? card2 : stats2.totalTuples());
             return Math.max(fixedFractionMul, maxTuple);
         }
     }
 
+    /**
+     * @return the statistics of the base table with the given alias, or
+     * null if the alias is not a base table or it has no statistics
+     */
+    private static TableStats baseTableStats(String alias, Map<String, TableStats> stats,
+                                             Map<String, Integer> tableAliasToId) {
+        Integer tableId = alias == null ? null : tableAliasToId.get(alias);
+        if (tableId == null)
+            return null;
+        try {
+            return stats.get(Database.getCatalog().getTableName(tableId));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values of field in the card
+     * tuples of alias that reach the join, or 0 if it is not known
+     */
+    private static double numDistinct(TableStats stats, String alias, String field,
+                                      Map<String, Integer> tableAliasToId, int card) {
+        if (stats == null || field == null)
+            return 0;
+        int index;
+        try {
+            index = Database.getCatalog().getTupleDesc(tableAliasToId.get(alias)).fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+        return Math.min(stats.numDistinct(index), card);
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -220,6 +545,10 @@ public class JoinOptimizer {
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
      * 确定多表连接（joins）的最优顺序
+     * <p>
+     * Up to {@link #getDpJoinLimit()} joins are ordered exactly by dynamic
+     * programming over the connected sets of joins, see {@link #orderJoinsExactly};
+     * more joins are ordered greedily, see {@link #orderJoinsGreedily}.
      *
      * @param stats               Statistics for each table involved in the join, referenced by
      *                            base table names, not alias
@@ -228,8 +557,8 @@ public class JoinOptimizer {
      *                            name)
      * @param explain             Indicates whether your code should explain its query plan or
      *                            simply execute it
-     * @return A List<LogicalJoinNode> that stores joins in the left-deep
-     * order in which they should be executed.
+     * @return A List<LogicalJoinNode> that stores joins in the order in which
+     * they should be executed, or null if the joins do not connect all tables
      * @throws ParsingException when stats or filter selectivities is missing a table in the
      *                          join, or when another internal error occurs
      */
@@ -238,191 +567,467 @@ public class JoinOptimizer {
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
 
-        // some code goes here
-        // Replace the following
-        // 初始化PlanCache，用于存储中间的最优计划
-        PlanCache pc = new PlanCache();             // 全局的planCache
-        List<LogicalJoinNode> bestOrder = null;     // 全局的最优joinNode序列
-        double bestCost = Double.MAX_VALUE;         // 全局的最小代价
-
         // j为所有的join节点集合
         List<LogicalJoinNode> j = new ArrayList<>(this.joins);
+        if (j.isEmpty()) {  // 单表查询，没有需要排序的连接
+            return j;
+        }
 
-        // 外层循环，逐步构建最优连接计划
-        for (int i = 1; i <= j.size(); i++) {
-            // 遍历每个大小为i的子集
-            for (Set<LogicalJoinNode> s : enumerateSubsets(j, i)) {
-                List<LogicalJoinNode> partBestOrder = null;  // 长度为i的子集局部最优joinNode序列
-                double partBestCost = Double.MAX_VALUE;      // 长度为i的子集局部最小代价
-                int partBestCard = Integer.MAX_VALUE;        // 长度为i的子集局部最小基数
-
-                // 遍历当前这个大小为i的集合中的每个元素，认为是移除待重新加入的元素
-                for (LogicalJoinNode joinToRemove : s) {
-                    Set<LogicalJoinNode> sPrime = new HashSet<>(s);
-                    sPrime.remove(joinToRemove);
-
-                    // 计算子计划的成本和基数
-                    CostCard cc = computeCostAndCardOfSubplan(stats, filterSelectivities, joinToRemove, sPrime, bestCost, pc);
-                    if (cc != null && cc.cost < partBestCost) {
-                        partBestCost = cc.cost;
-                        partBestOrder = cc.plan;
-                        partBestCard = cc.card;
-                    }
+        // 连接集合和表集合都用long的位表示，最多63个连接、64个表
+        Map<Object, Integer> tableIndex = indexTables(j);
+        List<LogicalJoinNode> bestOrder = j.size() <= Math.min(dpJoinLimit, 63) && tableIndex.size() <= 64
+                ? orderJoinsExactly(stats, filterSelectivities, j, tableIndex)
+                : orderJoinsGreedily(stats, filterSelectivities, j);
+
+        // 如果explain为真，打印join计划
+        if (explain && bestOrder != null) {
+            printJoins(bestOrder, costPrefixes(stats, filterSelectivities, bestOrder),
+                    stats, filterSelectivities);
+        }
+
+        return bestOrder;
+    }
+
+    /**
+     * Set the number of joins up to which {@link #orderJoins} finds the
+     * cheapest order; the time it takes grows exponentially with the number
+     * of joins, so more joins are ordered greedily.
+     */
+    public void setDpJoinLimit(int joins) {
+        this.dpJoinLimit = Math.max(1, joins);
+    }
+
+    public int getDpJoinLimit() {
+        return dpJoinLimit;
+    }
+
+    /**
+     * Set the number of worker threads equi-joins may be computed with, see
+     * {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator, int)},
+     * so that {@link LogicalJoinNode.Algorithm#PARALLEL_HASH} is costed for
+     * them. Defaults to 1.
+     */
+    public void setParallelism(int workers) {
+        this.parallelism = Math.max(1, workers);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the subplans that have already been computed, so that the joins
+     * are ordered on top of them: each alias maps to the subplan containing
+     * its table, whose plan lists no joins since they need not be performed,
+     * and whose cost and cardinality are those of reading its result. The
+     * joins between tables of one subplan are already performed by it.
+     */
+    public void setInputs(Map<String, CostCard> inputs) {
+        this.inputs = new HashMap<>(inputs);
+    }
+
+    /**
+     * @return the estimated cardinality of the result of each join of order,
+     * the joins being performed in that order
+     * @throws ParsingException when stats or filter selectivities is missing a table in the
+     *                          join
+     */
+    public int[] estimateJoinCardinalities(Map<String, TableStats> stats,
+                                           Map<String, Double> filterSelectivities,
+                                           List<LogicalJoinNode> order) throws ParsingException {
+        List<CostCard> prefixes = prefixPlans(stats, filterSelectivities, order);
+        int[] cards = new int[prefixes.size()];
+        for (int i = 0; i < cards.length; i++)
+            cards[i] = prefixes.get(i).card;
+        return cards;
+    }
+
+    // ===================== Private Methods =================================
+
+    /**
+     * Find the cheapest order of the joins by dynamic programming, bushy
+     * plans included. A set of joins is represented by a bitmap of their
+     * indexes in joins, and only connected sets are enumerated: the sets of
+     * size k + 1 are made by adding to a set of size k a join that shares a
+     * table with it, so no plan with a cross product is ever costed.
+     * <p>
+     * Each join of a set may be its last: the other joins of the set then
+     * form the subplans on either side of it, which are smaller connected
+     * sets and have been planned already. If one side has no joins, it is a
+     * base table, which gives the left-deep plans.
+     *
+     * @param tableIndex the bit of each table of the joins, see
+     * {@link #indexTables}; there may be at most 64
+     * @return the cheapest order, or null if the joins do not connect all
+     * tables
+     */
+    private List<LogicalJoinNode> orderJoinsExactly(Map<String, TableStats> stats,
+                                                    Map<String, Double> filterSelectivities,
+                                                    List<LogicalJoinNode> joins,
+                                                    Map<Object, Integer> tableIndex) throws ParsingException {
+        int n = joins.size();
+        // 每个连接的两个表的位
+        long[] t1 = new long[n], t2 = new long[n];
+        CostCard[] in1 = new CostCard[n], in2 = new CostCard[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            in1[i] = inputs.get(j.t1Alias);
+            in2[i] = j.t2Alias == null ? null : inputs.get(j.t2Alias);
+            t1[i] = 1L << tableIndex.get(in1[i] != null ? in1[i] : j.t1Alias);
+            t2[i] = j.t2Alias == null ? 0 : 1L << tableIndex.get(in2[i] != null ? in2[i] : j.t2Alias);
+        }
+
+        Map<Long, CostCard> best = new HashMap<>();  // 连通的连接集合 -> 最优计划
+        Set<Long> level = new HashSet<>();
+        for (int i = 0; i < n; i++)
+            level.add(1L << i);
+        for (int size = 1; ; size++) {
+            for (long s : level)
+                best.put(s, bestPlan(stats, filterSelectivities, joins, t1, t2, in1, in2, s, best));
+            if (size == n)
+                break;
+            // 只加入与集合共享表的连接
+            Set<Long> next = new HashSet<>();
+            for (long s : level) {
+                long st = tablesOf(s, t1, t2);
+                for (int i = 0; i < n; i++) {
+                    if ((s & 1L << i) == 0 && ((t1[i] | t2[i]) & st) != 0)
+                        next.add(s | 1L << i);
                 }
+            }
+            level = next;
+        }
 
-                // 更新最优计划
-                if (partBestOrder != null) {
-                    // 将大小为i的子集中最优的集合信息存储cache
-                    pc.addPlan(s, partBestCost, partBestCard, partBestOrder);
-                    if (i == j.size()) {
-                        bestCost = partBestCost;
-                        bestOrder = partBestOrder;
-                    }
+        CostCard all = best.get((1L << n) - 1);
+        return all == null ? null : all.plan;
+    }
+
+    /**
+     * Number the tables of joins in the order they appear; the tables of the
+     * same computed subplan are one table.
+     *
+     * @return the index of each table, keyed by its alias, or by its subplan
+     * if it is in one
+     */
+    private Map<Object, Integer> indexTables(List<LogicalJoinNode> joins) {
+        Map<Object, Integer> tableIndex = new HashMap<>();
+        for (LogicalJoinNode j : joins) {
+            CostCard in1 = inputs.get(j.t1Alias);
+            tableIndex.computeIfAbsent(in1 != null ? in1 : j.t1Alias, a -> tableIndex.size());
+            if (j.t2Alias != null) {
+                CostCard in2 = inputs.get(j.t2Alias);
+                tableIndex.computeIfAbsent(in2 != null ? in2 : j.t2Alias, a -> tableIndex.size());
+            }
+        }
+        return tableIndex;
+    }
+
+    /**
+     * @return the cheapest plan of the connected set of joins s, given the
+     * cheapest plans of its connected subsets in best, and the computed
+     * subplans in1 and in2 containing the tables of each join, if any
+     */
+    private CostCard bestPlan(Map<String, TableStats> stats, Map<String, Double> filterSelectivities,
+                              List<LogicalJoinNode> joins, long[] t1, long[] t2,
+                              CostCard[] in1, CostCard[] in2, long s,
+                              Map<Long, CostCard> best) throws ParsingException {
+        CostCard bestCc = null;
+        for (long bits = s; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            LogicalJoinNode j = joins.get(i);
+            long rest = s & ~(1L << i);
+            // 其余连接中与j的两个表分别连通的部分
+            long left = reachable(rest, t1[i], t1, t2);
+            long right = rest & ~left;
+            double bestCost = bestCc == null ? Double.MAX_VALUE : bestCc.cost;
+            CostCard cc;
+            if (t2[i] != 0 && ((tablesOf(left, t1, t2) | t1[i]) & t2[i]) != 0) {
+                // 两个表已经连接，j只过滤结果
+                if (right != 0)
+                    continue;
+                cc = filterJoin(left == 0 ? in1[i] : best.get(left), j);
+                if (cc.cost >= bestCost)
+                    cc = null;
+            } else {
+                // 其余连接须全部在j的两侧，否则j不能是最后一个连接
+                if (right != 0 && (t2[i] == 0 || reachable(right, t2[i], t1, t2) != right))
+                    continue;
+                CostCard side1 = left == 0 ? in1[i] : best.get(left);
+                CostCard side2 = right == 0 ? in2[i] : best.get(right);
+                if (left != 0 && side1 == null || right != 0 && side2 == null)
+                    continue;
+                cc = joinSubplans(stats, filterSelectivities, j, side1, side2, bestCost);
+            }
+            if (cc != null)
+                bestCc = cc;
+        }
+        return bestCc;
+    }
+
+    /**
+     * @return the joins of s connected to the tables in from, directly or
+     * through other joins of s
+     */
+    private static long reachable(long s, long from, long[] t1, long[] t2) {
+        long reached = 0, tables = from;
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (long bits = s & ~reached; bits != 0; bits &= bits - 1) {
+                int i = Long.numberOfTrailingZeros(bits);
+                if (((t1[i] | t2[i]) & tables) != 0) {
+                    reached |= 1L << i;
+                    tables |= t1[i] | t2[i];
+                    grown = true;
                 }
             }
         }
+        return reached;
+    }
 
-        // 如果explain为真，打印join计划
-        if (explain && bestOrder != null) {
-            printJoins(bestOrder, pc, stats, filterSelectivities);
+    /**
+     * @return the bitmap of the tables joined by the joins in s
+     */
+    private static long tablesOf(long s, long[] t1, long[] t2) {
+        long tables = 0;
+        for (long bits = s; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            tables |= t1[i] | t2[i];
         }
+        return tables;
+    }
 
-        return bestOrder;
+    /**
+     * Order the joins greedily: starting from the base tables, repeatedly
+     * perform the join whose result is estimated to be smallest, until one
+     * plan joins all tables. The order is not necessarily left-deep; a join
+     * may combine the results of two earlier joins.
+     *
+     * @return the order, or null if the joins do not connect all tables
+     */
+    private List<LogicalJoinNode> orderJoinsGreedily(Map<String, TableStats> stats,
+                                                     Map<String, Double> filterSelectivities,
+                                                     List<LogicalJoinNode> joins) throws ParsingException {
+        Map<String, CostCard> components = new HashMap<>(inputs);  // 表别名 -> 所在的已连接子计划，基表不在其中
+        List<LogicalJoinNode> remaining = new ArrayList<>(joins);
+        CostCard last = null;
+        while (!remaining.isEmpty()) {
+            int bestIndex = -1;
+            CostCard best = null;
+            for (int i = 0; i < remaining.size(); i++) {
+                CostCard cc = joinComponents(stats, filterSelectivities, components, remaining.get(i));
+                if (best == null || cc.card < best.card || cc.card == best.card && cc.cost < best.cost) {
+                    best = cc;
+                    bestIndex = i;
+                }
+            }
+            LogicalJoinNode j = remaining.remove(bestIndex);
+            mergeComponents(components, j, best);
+            last = best;
+        }
+        // 所有表都应在最后一个子计划中
+        for (CostCard c : components.values()) {
+            if (c != last)
+                return null;
+        }
+        return last.plan;
     }
 
-    // ===================== Private Methods =================================
+    /**
+     * @return the costs and cardinalities of the prefixes of order, for
+     * {@link #printJoins}
+     */
+    private PlanCache costPrefixes(Map<String, TableStats> stats, Map<String, Double> filterSelectivities,
+                                   List<LogicalJoinNode> order) throws ParsingException {
+        PlanCache pc = new PlanCache();
+        List<CostCard> prefixes = prefixPlans(stats, filterSelectivities, order);
+        Set<LogicalJoinNode> prefix = new HashSet<>();
+        for (int i = 0; i < order.size(); i++) {
+            prefix.add(order.get(i));
+            CostCard cc = prefixes.get(i);
+            pc.addPlan(new HashSet<>(prefix), cc.cost, cc.card, cc.plan);
+        }
+        return pc;
+    }
+
+    /**
+     * @return for each join of order, the plan of the subplan it creates
+     * when the joins are performed in that order
+     */
+    private List<CostCard> prefixPlans(Map<String, TableStats> stats, Map<String, Double> filterSelectivities,
+                                       List<LogicalJoinNode> order) throws ParsingException {
+        List<CostCard> plans = new ArrayList<>();
+        Map<String, CostCard> components = new HashMap<>(inputs);
+        for (LogicalJoinNode j : order) {
+            CostCard cc = joinComponents(stats, filterSelectivities, components, j);
+            mergeComponents(components, j, cc);
+            plans.add(cc);
+        }
+        return plans;
+    }
+
+    /**
+     * @return the plan performing j on the subplans containing its tables,
+     * given in components
+     */
+    private CostCard joinComponents(Map<String, TableStats> stats, Map<String, Double> filterSelectivities,
+                                    Map<String, CostCard> components, LogicalJoinNode j) throws ParsingException {
+        CostCard c1 = components.get(j.t1Alias);
+        CostCard c2 = j.t2Alias == null ? null : components.get(j.t2Alias);
+        if (c1 != null && c1 == c2)
+            return filterJoin(c1, j);
+        return joinSubplans(stats, filterSelectivities, j, c1, c2, Double.MAX_VALUE);
+    }
+
+    /**
+     * Record that the tables of j, and of the subplans containing them, are
+     * now in the plan cc.
+     */
+    private static void mergeComponents(Map<String, CostCard> components, LogicalJoinNode j, CostCard cc) {
+        CostCard c1 = components.get(j.t1Alias);
+        CostCard c2 = j.t2Alias == null ? null : components.get(j.t2Alias);
+        for (Map.Entry<String, CostCard> e : components.entrySet()) {
+            if (e.getValue() != null && (e.getValue() == c1 || e.getValue() == c2))
+                e.setValue(cc);
+        }
+        components.put(j.t1Alias, cc);
+        if (j.t2Alias != null)
+            components.put(j.t2Alias, cc);
+    }
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * A join between two tables of a plan that already joins them only
+     * filters its result: the predicate is evaluated on each tuple, and the
+     * cardinality is assumed not to grow.
+     */
+    private static CostCard filterJoin(CostCard prev, LogicalJoinNode j) {
+        CostCard cc = new CostCard();
+        cc.cost = prev.cost + prev.card;
+        cc.card = prev.card;
+        cc.plan = new ArrayList<>(prev.plan);
+        cc.plan.add(j);
+        return cc;
+    }
+
+    /**
+     * This is a helper method that computes the cost and cardinality of
+     * performing join j on two subplans, choosing which one is the outer and
+     * whether to probe an index of the inner if it is a base table.
      *
      * @param stats               table stats for all of the tables, referenced by table names
      *                            rather than alias (see {@link #orderJoins}) （tableName->stats）
      * @param filterSelectivities the selectivities of the filters over each of the tables
      *                            (where tables are indentified by their alias or name if no
      *                            alias is given)  （alias/name->selective）
-     * @param joinToRemove        the join to remove from joinSet  （移除之后，试图加入该序列的joinNode）
-     * @param joinSet             the set of joins being considered （包含移除的node的node集合）
-     * @param bestCostSoFar       the best way to join joinSet so far (minimum of previous
-     *                            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *                            from returned CostCard)
-     * @param pc                  the PlanCache for this join; should have subplans for all
-     *                            plans of size joinSet.size()-1 （joinSet.size()-1大小的序列的最小代价缓存）
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     * optimal subplan
-     * @throws ParsingException when stats, filterSelectivities, or pc object is missing
+     * @param j                   the join to perform
+     * @param side1               the plan containing j.t1Alias, or null if it is the base
+     *                            table alone
+     * @param side2               the plan containing j.t2Alias, or null if it is the base
+     *                            table alone or j joins a subquery
+     * @param bestCostSoFar       the cost of the best plan found so far for the same joins
+     * @return A {@link CostCard} objects desribing the cost, cardinality and
+     * plan, which performs the joins of side1, those of side2 and then j; or
+     * null if it costs bestCostSoFar or more
+     * @throws ParsingException when stats or filterSelectivities is missing
      *                          tables involved in join
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
+    private CostCard joinSubplans(
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        List<LogicalJoinNode> preBestOrder;
+            LogicalJoinNode j, CostCard side1, CostCard side2,
+            double bestCostSoFar) throws ParsingException {
 
         // 验证表
         if (this.p.getTableId(j.t1Alias) == null)
             throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
+        if (j.t2Alias != null && this.p.getTableId(j.t2Alias) == null)
             throw new ParsingException("Unknown table " + j.t2Alias);
 
-        // 获取当前待加入的joinNode的俩个表名和别名
+        // 获取当前待加入的joinNode的俩个表名
         String table1Name = Database.getCatalog().getTableName(
                 this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
+        String table2Name = j.t2Alias == null ? null : Database.getCatalog().getTableName(
                 this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = new HashSet<>(joinSet);
-        news.remove(j);
 
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean t1IsBase = side1 == null, t2IsBase = side2 == null && j.t2Alias != null;  // 是否为未连接的基表
 
-        if (news.isEmpty()) { // base case -- 加入后只有一个joinNode的情况，只需要计算该node的代价
-            preBestOrder = new ArrayList<>();
-            // 根据stats获取俩个表的扫描代价、基数和是否PK
+        if (side1 == null) {
             t1cost = stats.get(table1Name).estimateScanCost();
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias != null && isPkey(table2Alias,
-                    j.f2PureName);
         } else {
-            // news is not empty -- figure best way to join j to news
-            preBestOrder = pc.getOrder(news);  // 获取未加入序列的最佳order
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (preBestOrder == null) {
-                return null;
-            }
-
-            double prevBestCost = pc.getCost(news);  // 获取未加入序列的最佳order的最小代价
-            int bestCard = pc.getCard(news);         // 获取未加入序列的最佳order的最小基数
-
-            // estimate cost of right subtree
-            if (doesJoin(preBestOrder, table1Alias)) { // 如果j.t1在preOrder中
-                t1cost = prevBestCost; // left side just has cost of whatever
-                // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(preBestOrder);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(preBestOrder, j.t2Alias)) { // // 如果j.t2在preOrder中
-                // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(preBestOrder);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+            t1cost = side1.cost;
+            t1card = side1.card;
+            leftPkey = hasPkey(side1.plan);
+        }
+        if (j.t2Alias == null) {
+            t2cost = 0;
+            t2card = 0;
+            rightPkey = false;
+        } else if (side2 == null) {
+            t2cost = stats.get(table2Name).estimateScanCost();
+            t2card = stats.get(table2Name).estimateTableCardinality(
+                    filterSelectivities.get(j.t2Alias));
+            rightPkey = isPkey(j.t2Alias, j.f2PureName);
+        } else {
+            t2cost = side2.cost;
+            t2card = side2.card;
+            rightPkey = hasPkey(side2.plan);
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        // 依次尝试俩表的内外顺序和各连接算法，选代价最小的；子查询只能作内表
+        double cost1 = Double.MAX_VALUE;
+        LogicalJoinNode chosen = j;
+        LogicalJoinNode.Algorithm algorithm = null;
+        boolean swapped = false;
+        if (j instanceof LogicalSubplanJoinNode) {
+            cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        } else {
+            // 扫描之后再次扫描内表的代价：连接结果需要重新计算，基表可能还在缓冲池中
+            double rescan1 = t1IsBase ? rescanCost(stats.get(table1Name)) : t1cost;
+            double rescan2 = t2IsBase ? rescanCost(stats.get(table2Name)) : t2cost;
+            // 外表元组的宽度决定嵌套循环连接每块能放下的元组数
+            int block1 = outerBlockTuples(aliasesOf(side1, j.t1Alias));
+            int block2 = outerBlockTuples(aliasesOf(side2, j.t2Alias));
+            for (int swap = 0; swap < 2; swap++) {
+                LogicalJoinNode o = swap == 0 ? j : j.swapInnerOuter();
+                int outerCard = swap == 0 ? t1card : t2card, innerCard = swap == 0 ? t2card : t1card;
+                double outerCost = swap == 0 ? t1cost : t2cost, innerCost = swap == 0 ? t2cost : t1cost;
+                boolean innerIsBase = swap == 0 ? t2IsBase : t1IsBase;
+                for (LogicalJoinNode.Algorithm a : LogicalJoinNode.Algorithm.values()) {
+                    double c;
+                    if (a == LogicalJoinNode.Algorithm.INDEX) {
+                        // 内表是基表时还可以用索引嵌套循环连接
+                        c = innerIsBase ? estimateIndexJoinCost(o, outerCard, outerCost,
+                                stats.get(swap == 0 ? table2Name : table1Name)) : Double.MAX_VALUE;
+                    } else {
+                        c = estimateJoinCost(o, a, outerCard, innerCard, outerCost, innerCost,
+                                swap == 0 ? rescan2 : rescan1, swap == 0 ? block1 : block2);
+                    }
+                    if (c < cost1) {
+                        cost1 = c;
+                        chosen = o;
+                        algorithm = a;
+                        swapped = swap == 1;
+                    }
+                }
             }
+            // 不修改joins中共享的节点，记录选择的算法
+            j = new LogicalJoinNode(chosen.t1Alias, chosen.t2Alias,
+                    chosen.f1PureName, chosen.f2PureName, chosen.p);
+            j.algorithm = algorithm;
         }
-
-        // case where prevbest is left ---- 计算加入之后的新序列（prevBest序列（可能是空）->joinNode）的cost,card,order
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        // 尝试交换待加入node俩表的左右序列，选小的代价
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
+        if (swapped) {
+            boolean tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            int card = t1card;
+            t1card = t2card;
+            t2card = card;
         }
         if (cost1 >= bestCostSoFar)
             return null;
@@ -432,25 +1037,15 @@ public class JoinOptimizer {
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
         cc.cost = cost1;
-        // 在前序列的基础上，将当前node加入序列
-        cc.plan = new ArrayList<>(preBestOrder);
-        cc.plan.add(j); // prevbest is left -- add new join to end
+        cc.plan = new ArrayList<>();
+        if (side1 != null)
+            cc.plan.addAll(side1.plan);
+        if (side2 != null)
+            cc.plan.addAll(side2.plan);
+        cc.plan.add(j);
         return cc;
     }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(List<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
-        }
-        return false;
-    }
-
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
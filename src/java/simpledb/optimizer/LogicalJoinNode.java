@@ -25,6 +25,25 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The physical algorithms a join can be computed with */
+    public enum Algorithm {
+        /** Block nested loops, see {@link simpledb.execution.Join} */
+        NESTED_LOOPS,
+        /** Hash join building on t1 one chunk at a time, see
+         * {@link simpledb.execution.HashEquiJoin}; equality only */
+        HASH,
+        /** Hash join on several threads holding both inputs in memory, see
+         * {@link simpledb.execution.ParallelHashJoin}; equality only */
+        PARALLEL_HASH,
+        /** Probe the B+ tree index of t2 for every t1 tuple, see
+         * {@link simpledb.execution.IndexNestLoopJoin} */
+        INDEX
+    }
+
+    /** Set by the optimizer to the algorithm it costed the join with; null
+     * leaves the choice to {@link JoinOptimizer#instantiateJoin} */
+    public Algorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
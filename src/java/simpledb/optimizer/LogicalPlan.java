@@ -2,9 +2,12 @@ package simpledb.optimizer;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -16,9 +19,9 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All aggregates of a query are computed by a single Aggregate node
+ * grouped by all of the group by fields.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -33,12 +36,18 @@ public class LogicalPlan {
     private final Map<String, Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private final List<String> groupByFields = new ArrayList<>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private boolean hasOrderBy = false;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAsc = new ArrayList<>();
+    private int limit = -1;
+    private int parallelism = 1;
+    private boolean lateMaterialization = false;
+    private int dpJoinLimit = JoinOptimizer.DEFAULT_DP_JOIN_LIMIT;
+    private double reoptimizationThreshold = 0;
     private String query;
 //    private Query owner;
 
@@ -205,27 +214,39 @@ public class LogicalPlan {
 
     /**
      * Add an aggregate over the field with the specified grouping to
-     * the query.  SimpleDb only supports a single aggregate
-     * expression and GROUP BY field.
+     * the query. Calling this again adds another aggregate expression;
+     * all of them are computed in the same pass.
      *
      * @param op     the aggregation operator
      * @param afield the field to aggregate over
-     * @param gfield the field to group by
+     * @param gfield the field to group by, or null; see {@link #addGroupBy}
      * @throws ParsingException
      */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield = disambiguateName(afield);
         if (gfield != null)
-            gfield = disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        aggOps.add(op);
+        aggFields.add(afield);
         hasAgg = true;
     }
 
     /**
-     * Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-     * a single ORDER BY field.
+     * Add a GROUP BY field to the query. Calling this again adds another
+     * field; adding the same field twice has no effect.
+     *
+     * @param gfield the field to group by
+     * @throws ParsingException
+     */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield = disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /**
+     * Add an ORDER BY expression in the specified order on the specified field. Calling this again
+     * adds a less significant sort field.
      *
      * @param field the field to order by
      * @param asc   true if should be ordered in ascending order, false for descending order
@@ -233,11 +254,91 @@ public class LogicalPlan {
      */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field = disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAsc.add(asc);
         hasOrderBy = true;
     }
 
+    /**
+     * Limit the result of the query to the first n tuples.
+     *
+     * @param n the number of tuples to return
+     * @throws ParsingException if n is negative
+     */
+    public void setLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("Invalid LIMIT " + n);
+        limit = n;
+    }
+
+    /**
+     * @return the LIMIT of the query, or -1 if it has none
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Set the number of workers a single-table query may scan its table
+     * with, and that equi-joins may be computed with, see
+     * {@link ParallelHashJoin}; 1 runs the whole plan on the calling
+     * thread. Defaults to 1; {@link Exchange#DEFAULT_WORKERS} uses
+     * every core.
+     */
+    public void setParallelism(int workers) {
+        this.parallelism = Math.max(1, workers);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set whether a query with joins may carry only the columns it computes
+     * with, plus the record ids of the tuples, through its joins, and read
+     * the columns it only returns at the top of the plan, see
+     * {@link Materialize}. Every returned tuple then costs a random read, so
+     * the planner only does so if the query has a LIMIT bounding their
+     * number. Defaults to false.
+     */
+    public void setLateMaterialization(boolean late) {
+        this.lateMaterialization = late;
+    }
+
+    public boolean getLateMaterialization() {
+        return lateMaterialization;
+    }
+
+    /**
+     * Set the number of joins up to which the joins of this query are
+     * ordered exactly; a query with more joins has them ordered greedily,
+     * see {@link JoinOptimizer#setDpJoinLimit}. Defaults to
+     * {@link JoinOptimizer#DEFAULT_DP_JOIN_LIMIT}.
+     */
+    public void setDpJoinLimit(int joins) {
+        this.dpJoinLimit = joins;
+    }
+
+    public int getDpJoinLimit() {
+        return dpJoinLimit;
+    }
+
+    /**
+     * Set the factor by which the size of the result of joins that a hash
+     * join builds its table on may differ from its estimate before the joins
+     * above it are ordered again for the true size, see {@link Reoptimize};
+     * 0 never orders them again. Queries with subqueries are not ordered
+     * again. Defaults to 0; {@link Reoptimize#DEFAULT_THRESHOLD} is a
+     * reasonable factor.
+     */
+    public void setReoptimizationThreshold(double factor) {
+        this.reoptimizationThreshold = factor;
+    }
+
+    public double getReoptimizationThreshold() {
+        return reoptimizationThreshold;
+    }
+
     /**
      * Given a name of a field, try to figure out what table it belongs to by looking
      * through all of the tables added via {@link #addScan}.
@@ -282,6 +383,231 @@ public class LogicalPlan {
 
     }
 
+    /**
+     * @return the qualified names of all fields the query reads: in the
+     * select list, aggregates, GROUP BY, filters, joins and ORDER BY
+     */
+    private Set<String> referencedFields() {
+        Set<String> names = computedFields();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        return names;
+    }
+
+    /**
+     * @return the qualified names of the fields the plan computes with below
+     * the final projection: in aggregates, GROUP BY, filters, joins and
+     * ORDER BY. The other referenced fields are only returned.
+     */
+    private Set<String> computedFields() {
+        Set<String> names = new HashSet<>(aggFields);
+        names.addAll(groupByFields);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        names.addAll(oByFields);
+        return names;
+    }
+
+    /**
+     * @return the indexes of the columns of table alias (of schema td) among
+     * referenced, ascending, or null if the query reads all of them
+     */
+    static int[] requiredColumns(String alias, TupleDesc td, Set<String> referenced) {
+        if (referenced.contains("null.*") || referenced.contains(alias + ".*"))
+            return null;
+        List<Integer> cols = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (referenced.contains(alias + "." + td.getFieldName(i)))
+                cols.add(i);
+        }
+        if (cols.size() == td.numFields())
+            return null;
+        if (cols.isEmpty())
+            cols.add(0);  // 元组至少要有一列
+        int[] result = new int[cols.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = cols.get(i);
+        return result;
+    }
+
+    /**
+     * Push the predicates of every chain of Filters directly over a SeqScan
+     * down into the scan, so that they are evaluated by the storage iterator
+     * inside its page loop and the rejected tuples never reach the plan.
+     * The rest of the plan is kept; the children of other operators are
+     * rewritten in place.
+     *
+     * @return the rewritten plan
+     */
+    static OpIterator pushDownFilters(OpIterator node) {
+        if (node instanceof Filter) {
+            List<Predicate> preds = new ArrayList<>();
+            OpIterator child = node;
+            while (child instanceof Filter) {
+                preds.add(0, ((Filter) child).getPredicate());  // 最内层的过滤条件先求值
+                child = ((Filter) child).getChildren()[0];
+            }
+            if (child instanceof SeqScan) {
+                SeqScan ss = (SeqScan) child;
+                // 过滤条件的下标属于扫描返回的元组，换算为表的列下标
+                int[] columns = ss.getColumns();
+                List<Predicate> pushed = new ArrayList<>(Arrays.asList(ss.getPredicates()));
+                for (Predicate p : preds) {
+                    int col = columns == null ? p.getField() : columns[p.getField()];
+                    pushed.add(new Predicate(col, p.getOp(), p.getOperand()));
+                }
+                int tableId = Database.getCatalog().getTableId(ss.getTableName());
+                Predicate[] conjunction = pushed.toArray(new Predicate[0]);
+                SeqScan scan = ss.getEndPage() < 0
+                        ? new SeqScan(ss.getTransactionId(), tableId, ss.getAlias(), columns, conjunction)
+                        : new SeqScan(ss.getTransactionId(), tableId, ss.getAlias(),
+                        ss.getStartPage(), ss.getEndPage(), columns, conjunction);
+                scan.setRecordIdColumn(ss.hasRecordIdColumn());
+                return scan;
+            }
+        }
+        if (node instanceof Operator) {
+            OpIterator[] children = ((Operator) node).getChildren();
+            for (int i = 0; i < children.length; i++)
+                children[i] = pushDownFilters(children[i]);
+            ((Operator) node).setChildren(children);
+        }
+        return node;
+    }
+
+    /**
+     * @return the constant lf compares with, as a field of the given type
+     */
+    private static Field constant(LogicalFilterNode lf, Type type) {
+        if (type == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c));
+        return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /**
+     * Choose the access path of table alias, stored in file. If the table is
+     * a {@link BTreeFile} and filters compare its key with a constant, a
+     * {@link BTreeScan} can answer one of them by reading only the pages on
+     * the way down to the matching leaves, instead of the whole table.
+     *
+     * @return the most selective such filter, if looking it up in the index
+     * is estimated to be cheaper than scanning the table; otherwise null,
+     * to scan the table
+     */
+    private LogicalFilterNode indexFilter(String alias, DbFile file, TableStats stats) {
+        if (!(file instanceof BTreeFile) || stats == null)
+            return null;
+        int key = ((BTreeFile) file).keyField();
+        Type keyType = file.getTupleDesc().getFieldType(key);
+        String keyName = file.getTupleDesc().getFieldName(key);
+        LogicalFilterNode best = null;
+        double bestSel = 1.0;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias) || !lf.fieldPureName.equals(keyName)
+                    || !IndexNestLoopJoin.supportsOp(lf.p))
+                continue;
+            double sel;
+            try {
+                sel = stats.estimateSelectivity(key, lf.p, constant(lf, keyType));
+            } catch (NumberFormatException e) {
+                continue;  // 常量类型不符，留给过滤条件报错
+            }
+            if (best == null || sel < bestSel) {
+                best = lf;
+                bestSel = sel;
+            }
+        }
+        if (best == null || stats.estimateIndexLookupCost(bestSel) >= stats.estimateScanCost())
+            return null;
+        return best;
+    }
+
+    /**
+     * @return the columns of table alias, stored in file, that the query
+     * returns but does not compute with, ascending; or null if there are
+     * none or the table cannot be materialized late
+     */
+    private static int[] deferredColumns(String alias, DbFile file, Set<String> referenced,
+                                         Set<String> computed) {
+        if (!(file instanceof HeapFile) || !((HeapFile) file).canEncodeRecordIds()
+                || referenced.contains(alias + ".*"))
+            return null;
+        TupleDesc td = file.getTupleDesc();
+        List<Integer> cols = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            String name = alias + "." + td.getFieldName(i);
+            if (referenced.contains(name) && !computed.contains(name))
+                cols.add(i);
+        }
+        if (cols.isEmpty())
+            return null;
+        int[] result = new int[cols.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = cols.get(i);
+        return result;
+    }
+
+    /**
+     * @return the names of the fields node returns its tuples sorted on, most
+     * significant first, as far as known; empty if the order is unknown. A
+     * scan of a BTreeFile is sorted on the key, an OrderBy on its sort
+     * fields, and a Filter keeps the order of its child.
+     */
+    static List<String> sortOrder(OpIterator node) {
+        List<String> order = new ArrayList<>();
+        if (node instanceof Filter) {
+            return sortOrder(((Filter) node).getChildren()[0]);
+        } else if (node instanceof OrderBy) {
+            SortKey key = ((OrderBy) node).getSortKey();
+            for (int f : key.getFields())
+                order.add(node.getTupleDesc().getFieldName(f));
+        } else if (node instanceof SeqScan || node instanceof BTreeScan) {
+            String table = node instanceof SeqScan ? ((SeqScan) node).getTableName()
+                    : ((BTreeScan) node).getTableName();
+            DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(table));
+            if (f instanceof BTreeFile) {
+                // 扫描可能只返回部分列，按名字找键所在的列
+                String alias = node instanceof SeqScan ? ((SeqScan) node).getAlias()
+                        : ((BTreeScan) node).getAlias();
+                String key = alias + "." + f.getTupleDesc().getFieldName(((BTreeFile) f).keyField());
+                try {
+                    node.getTupleDesc().fieldNameToIndex(key);
+                    order.add(key);
+                } catch (NoSuchElementException e) {
+                    // 键没有被扫描
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return true if the tuples of node with equal values of fields are
+     * adjacent, i.e. its sort order starts with all of fields in any order
+     */
+    static boolean isSortedOn(OpIterator node, List<String> fields) {
+        List<String> order = sortOrder(node);
+        if (order.size() < fields.size())
+            return false;
+        return new HashSet<>(order.subList(0, fields.size())).equals(new HashSet<>(fields));
+    }
+
+    /**
+     * @return the position of the aggregate op(fname) among the aggregates
+     * of the query, or -1 if there is no such aggregate
+     */
+    private int indexOfAggregate(String op, String fname) {
+        for (int j = 0; j < aggOps.size(); j++) {
+            if (aggOps.get(j).equals(op) && aggFields.get(j).equals(fname))
+                return j;
+        }
+        return -1;
+    }
+
     /**
      * Convert the aggregate operator name s into an Aggregator.op operation.
      *
@@ -297,6 +623,105 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Instantiate the joins of order, in that order, over the subplans of
+     * their tables. The subplan of tables that have been joined is in
+     * subplans under the alias of one of them, and equivMap maps the others
+     * to it; so is the only subplan left when all joins are instantiated.
+     *
+     * @param cards     the estimated cardinality of the result of each join
+     * @param joined    the aliases whose subplans are results of joins
+     * @param performed receives the joins performed by each subplan made,
+     *                  including those of the subplans it is made of
+     * @return true if a hash join made checks the size of its build input
+     * against its estimate, see {@link #setReoptimizationThreshold}
+     * @throws ParsingException if a join refers to an unknown table or field
+     */
+    private boolean instantiateJoins(TransactionId t, List<LogicalJoinNode> order, int[] cards,
+                                     Map<String, OpIterator> subplans, Map<String, String> equivMap,
+                                     Set<String> joined, Map<OpIterator, List<LogicalJoinNode>> performed)
+            throws ParsingException {
+        boolean check = reoptimizationThreshold > 0;
+        for (LogicalJoinNode lj : order) {
+            check &= !(lj instanceof LogicalSubplanJoinNode);
+        }
+        Set<OpIterator> made = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean checked = false;
+        for (int i = 0; i < order.size(); i++) {
+            LogicalJoinNode lj = order.get(i);
+            OpIterator plan1;
+            OpIterator plan2;
+            boolean isSubqueryJoin = lj instanceof LogicalSubplanJoinNode;
+            String t1name, t2name;
+
+            if (equivMap.get(lj.t1Alias) != null)
+                t1name = equivMap.get(lj.t1Alias);
+            else
+                t1name = lj.t1Alias;
+
+            if (equivMap.get(lj.t2Alias) != null)
+                t2name = equivMap.get(lj.t2Alias);
+            else
+                t2name = lj.t2Alias;
+
+            plan1 = subplans.get(t1name);
+
+            if (isSubqueryJoin) {
+                plan2 = ((LogicalSubplanJoinNode) lj).subPlan;
+                if (plan2 == null)
+                    throw new ParsingException("Invalid subquery.");
+            } else {
+                plan2 = subplans.get(t2name);
+            }
+
+            if (plan1 == null)
+                throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+            if (plan2 == null)
+                throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
+
+            OpIterator j;
+            // 只有内表仍是基表时才能探测它的索引；浓密计划的内表可能是连接结果
+            if (lj.algorithm == LogicalJoinNode.Algorithm.INDEX && !isSubqueryJoin && t2name.equals(lj.t2Alias) && !joined.contains(t2name)) {
+                j = JoinOptimizer.instantiateIndexJoin(t, lj, plan1, plan2);
+            } else {
+                j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, parallelism);
+            }
+            if (j instanceof Operator) {
+                ((Operator) j).setEstimatedCardinality(cards[i]);
+                // 构建输入是本次产生的连接结果时检查它的基数，重新规划时它成为已计算的子计划
+                if (check && made.contains(plan1) && (j instanceof HashEquiJoin || j instanceof ParallelHashJoin)) {
+                    ((Operator) j).setCardinalityThreshold(reoptimizationThreshold);
+                    checked = true;
+                }
+            }
+            List<LogicalJoinNode> done = new ArrayList<>(performed.getOrDefault(plan1, Collections.emptyList()));
+            if (!isSubqueryJoin)
+                done.addAll(performed.getOrDefault(plan2, Collections.emptyList()));
+            done.add(lj);
+            performed.put(j, done);
+            made.add(j);
+            subplans.put(t1name, j);
+            joined.add(t1name);
+
+            if (!isSubqueryJoin) {
+                subplans.remove(t2name);
+                equivMap.put(t2name, t1name);  //keep track of the fact that this new node contains both tables
+                //make sure anything that was equiv to lj.t2 (which we are just removed) is
+                // marked as equiv to lj.t1 (which we are replacing lj.t2 with.)
+                for (Map.Entry<String, String> s : equivMap.entrySet()) {
+                    String val = s.getValue();
+                    if (val.equals(t2name)) {
+                        s.setValue(t1name);
+                    }
+                }
+
+                // subplanMap.put(lj.t2, j);
+            }
+
+        }
+        return checked;
+    }
+
     /**
      * Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      * find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
@@ -318,11 +743,38 @@ public class LogicalPlan {
         Map<String, Double> filterSelectivities = new HashMap<>();
         Map<String, TableStats> statsMap = new HashMap<>();
 
+        Set<String> referenced = referencedFields();
+        // 延迟物化：连接只携带参与计算的列和记录号，只返回的列在计划顶部回表读取；
+        // 每个输出行回表一次随机读，只有LIMIT限制了回表次数时才划算
+        boolean late = lateMaterialization && limit >= 0 && !joins.isEmpty() && !hasAgg
+                && !referenced.contains("null.*");
+        Set<String> computed = computedFields();
+        Map<String, int[]> deferred = new LinkedHashMap<>();
+        Set<LogicalFilterNode> indexed = new HashSet<>();  // 由索引扫描求值的过滤条件
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                // 只扫描查询用到的列，其余的列不进入计划
+                int[] columns = requiredColumns(table.alias, file.getTupleDesc(), referenced);
+                int[] returnedOnly = late ? deferredColumns(table.alias, file, referenced, computed) : null;
+                LogicalFilterNode keyFilter = indexFilter(table.alias, file,
+                        baseTableStats.get(Database.getCatalog().getTableName(table.t)));
+                if (keyFilter != null) {
+                    Type keyType = file.getTupleDesc().getFieldType(((BTreeFile) file).keyField());
+                    ss = new BTreeScan(t, file.getId(), table.alias,
+                            new IndexPredicate(keyFilter.p, constant(keyFilter, keyType)));
+                    indexed.add(keyFilter);
+                } else if (returnedOnly != null) {
+                    SeqScan scan = new SeqScan(t, file.getId(), table.alias,
+                            requiredColumns(table.alias, file.getTupleDesc(), computed));
+                    scan.setRecordIdColumn(true);
+                    ss = scan;
+                    deferred.put(table.alias, returnedOnly);
+                } else {
+                    ss = new SeqScan(t, file.getId(), table.alias, columns);
+                }
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -349,88 +801,75 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = constant(lf, ftyp);
 
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+            // 索引扫描已经只返回满足条件的元组
+            if (!indexed.contains(lf)) {
+                Predicate p = null;
+                try {
+                    p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+                }
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            int tableId = this.getTableId(lf.tableAlias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // 扫描可能只返回部分列，统计信息按表的列下标查找
+            int column = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(lf.fieldPureName);
+            double sel = s.estimateSelectivity(column, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
 
         JoinOptimizer jo = new JoinOptimizer(this, joins);
+        jo.setDpJoinLimit(dpJoinLimit);
+        jo.setParallelism(parallelism);
 
         joins = jo.orderJoins(statsMap, filterSelectivities, explain);
-
-        for (LogicalJoinNode lj : joins) {
-            OpIterator plan1;
-            OpIterator plan2;
-            boolean isSubqueryJoin = lj instanceof LogicalSubplanJoinNode;
-            String t1name, t2name;
-
-            if (equivMap.get(lj.t1Alias) != null)
-                t1name = equivMap.get(lj.t1Alias);
-            else
-                t1name = lj.t1Alias;
-
-            if (equivMap.get(lj.t2Alias) != null)
-                t2name = equivMap.get(lj.t2Alias);
-            else
-                t2name = lj.t2Alias;
-
-            plan1 = subplanMap.get(t1name);
-
-            if (isSubqueryJoin) {
-                plan2 = ((LogicalSubplanJoinNode) lj).subPlan;
-                if (plan2 == null)
-                    throw new ParsingException("Invalid subquery.");
-            } else {
-                plan2 = subplanMap.get(t2name);
-            }
-
-            if (plan1 == null)
-                throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
-            if (plan2 == null)
-                throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
-
-            OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
-            subplanMap.put(t1name, j);
-
-            if (!isSubqueryJoin) {
-                subplanMap.remove(t2name);
-                equivMap.put(t2name, t1name);  //keep track of the fact that this new node contains both tables
-                //make sure anything that was equiv to lj.t2 (which we are just removed) is
-                // marked as equiv to lj.t1 (which we are replacing lj.t2 with.)
-                for (Map.Entry<String, String> s : equivMap.entrySet()) {
-                    String val = s.getValue();
-                    if (val.equals(t2name)) {
-                        s.setValue(t1name);
-                    }
-                }
-
-                // subplanMap.put(lj.t2, j);
-            }
-
+        if (joins == null) {
+            throw new ParsingException("Query does not include join expressions joining all nodes!");
         }
 
+        // 连接之前各表的子计划，重新规划连接时从它们开始
+        Map<String, OpIterator> leaves = new HashMap<>(subplanMap);
+        Map<OpIterator, List<LogicalJoinNode>> performed = new IdentityHashMap<>();
+        boolean checked = instantiateJoins(t, joins, jo.estimateJoinCardinalities(statsMap, filterSelectivities, joins),
+                subplanMap, equivMap, new HashSet<>(), performed);
+
         if (subplanMap.size() > 1) {
             throw new ParsingException("Query does not include join expressions joining all nodes!");
         }
 
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
+        if (checked) {
+            node = new Reoptimize(node, new JoinReplanner(t, statsMap, filterSelectivities, leaves, joins,
+                    performed, node.getTupleDesc()));
+        }
+        node = pushDownFilters(node);
+
+        if (joins.isEmpty() && parallelism > 1 && Exchange.canParallelize(node)) {
+            // 单表查询：扫描和过滤拆分为按页范围并行执行的多个副本
+            node = Exchange.parallelize(node, parallelism);
+        }
+
+        // 回表读取只返回的列；先确定输出的列，排序和LIMIT之后再接到计划上
+        OpIterator materialized = node;
+        Materialize bottom = null;
+        for (Map.Entry<String, int[]> e : deferred.entrySet()) {
+            String alias = e.getKey();
+            try {
+                materialized.getTupleDesc().fieldNameToIndex(alias + "." + SeqScan.RECORD_ID_FIELD);
+            } catch (NoSuchElementException ex) {
+                continue;  // 该表换成了索引扫描，已返回所有列
+            }
+            materialized = new Materialize(t, materialized, getTableId(alias), alias, e.getValue());
+            if (bottom == null)
+                bottom = (Materialize) materialized;
+        }
 
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
@@ -438,7 +877,12 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField != null ? 1 : 0);
+                // 聚合结果排在所有分组列之后
+                int agg = indexOfAggregate(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                }
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -450,16 +894,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                if (groupByField == null) {
+                int gb = groupByFields.indexOf(si.fname);
+                if (gb < 0) {
                     throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                 }
-                outFields.add(0);
+                outFields.add(gb);
                 TupleDesc td = node.getTupleDesc();
                 int id;
                 try {
-                    id = td.fieldNameToIndex(groupByField);
+                    id = td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " + groupByField + " in GROUP BY statement");
+                    throw new ParsingException("Unknown field " + si.fname + " in GROUP BY statement");
                 }
                 outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -469,7 +914,7 @@ public class LogicalPlan {
                     outTypes.add(td.getFieldType(i));
                 }
             } else {
-                TupleDesc td = node.getTupleDesc();
+                TupleDesc td = materialized.getTupleDesc();
                 int id;
                 try {
                     id = td.fieldNameToIndex(si.fname);
@@ -486,10 +931,24 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                        td.fieldNameToIndex(aggField),
-                        groupByField == null ? Aggregator.NO_GROUPING : td.fieldNameToIndex(groupByField),
-                        getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[afields.length];
+                for (int j = 0; j < afields.length; j++) {
+                    afields[j] = td.fieldNameToIndex(aggFields.get(j));
+                    ops[j] = getAggOp(aggOps.get(j));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                if (gfields.length > 0 && isSortedOn(node, groupByFields)) {
+                    // 输入已按分组列有序：流式聚合，每组结束时立即输出
+                    aggNode = new StreamAggregate(node, afields, ops, gfields);
+                } else if (node instanceof Gather) {
+                    // 并行扫描：各工作线程先做部分聚合，再合并
+                    aggNode = new ParallelAggregate(node, afields, ops, gfields, Aggregate.DEFAULT_AGG_PAGES);
+                } else {
+                    aggNode = new Aggregate(node, afields, ops, gfields, Aggregate.DEFAULT_AGG_PAGES);
+                }
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
@@ -497,12 +956,147 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                try {
+                    fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(i) + " in ORDER BY");
+                }
+                asc[i] = oByAsc.get(i);
+            }
+            SortKey sortKey = new SortKey(fields, asc);
+            if (limit >= 0) {
+                // 只需要前limit个元组，用有界堆代替全排序
+                node = new TopN(sortKey, limit, node);
+            } else {
+                node = new OrderBy(sortKey, node, OrderBy.DEFAULT_SORT_PAGES);
+            }
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
+        }
+
+        if (bottom != null) {
+            // Materialize只追加列，下面的字段下标不变
+            bottom.setChildren(new OpIterator[]{node});
+            node = materialized;
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Orders the joins of a query again when a pipeline breaker of its plan
+     * finds that the result of some of them, its input, has far more or
+     * fewer tuples than estimated, see {@link Reoptimize}. That result
+     * becomes a subplan of known size, and the {@link JoinOptimizer} orders
+     * the joins that remain on top of it and of the other subplans.
+     */
+    private class JoinReplanner implements Reoptimize.Planner {
+        private final TransactionId t;
+        private final Map<String, TableStats> stats;
+        private final Map<String, Double> filterSelectivities;
+        private final Map<String, OpIterator> leaves;                  // 表别名 -> 连接之前的子计划
+        private final Map<OpIterator, List<LogicalJoinNode>> performed;
+        private final Map<String, CostCard> inputs = new HashMap<>();  // 表别名 -> 已计算的子计划
+        private final Map<CostCard, OpIterator> inputPlans = new IdentityHashMap<>();
+        private final TupleDesc td;
+        private List<LogicalJoinNode> remaining;                       // 当前计划的连接顺序
+
+        JoinReplanner(TransactionId t, Map<String, TableStats> stats, Map<String, Double> filterSelectivities,
+                      Map<String, OpIterator> leaves, List<LogicalJoinNode> order,
+                      Map<OpIterator, List<LogicalJoinNode>> performed, TupleDesc td) {
+            this.t = t;
+            this.stats = stats;
+            this.filterSelectivities = filterSelectivities;
+            this.leaves = leaves;
+            this.remaining = new ArrayList<>(order);
+            this.performed = performed;
+            this.td = td;
+        }
+
+        @Override
+        public OpIterator replan(CardinalityException e) throws DbException {
+            List<LogicalJoinNode> done = performed.get(e.getInput());
+            if (done == null)
+                throw new DbException("not the result of joins of the plan: " + e.getMessage());
+
+            // 输入的元组已全部读入内存，直接使用，不再有I/O代价
+            OpIterator input = new TupleIterator(e.getInput().getTupleDesc(), e.getTuples());
+            CostCard cc = new CostCard();
+            cc.card = e.getActual();
+            cc.cost = 0;
+            cc.plan = new ArrayList<>();
+            for (LogicalJoinNode j : done) {
+                inputs.put(j.t1Alias, cc);
+                if (j.t2Alias != null)
+                    inputs.put(j.t2Alias, cc);
+            }
+            inputPlans.put(cc, input);
+            inputPlans.keySet().removeIf(c -> !inputs.containsValue(c));  // 被包含在新输入中的子计划
+            performed.put(input, done);
+            Set<LogicalJoinNode> doneSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            doneSet.addAll(done);
+            remaining.removeIf(doneSet::contains);
+
+            try {
+                JoinOptimizer jo = new JoinOptimizer(LogicalPlan.this, remaining);
+                jo.setDpJoinLimit(dpJoinLimit);
+                jo.setParallelism(parallelism);
+                jo.setInputs(inputs);
+                List<LogicalJoinNode> order = jo.orderJoins(stats, filterSelectivities, false);
+                if (order == null)
+                    throw new ParsingException("Query does not include join expressions joining all nodes!");
+
+                // 已计算的子计划放在其中一个表别名下，其余别名等价于它
+                Map<String, OpIterator> subplans = new HashMap<>();
+                Map<String, String> equivMap = new HashMap<>();
+                Set<String> joined = new HashSet<>();
+                Map<CostCard, String> names = new IdentityHashMap<>();
+                for (Map.Entry<String, OpIterator> leaf : leaves.entrySet()) {
+                    String alias = leaf.getKey();
+                    CostCard in = inputs.get(alias);
+                    if (in == null) {
+                        subplans.put(alias, leaf.getValue());
+                    } else if (names.containsKey(in)) {
+                        equivMap.put(alias, names.get(in));
+                    } else {
+                        names.put(in, alias);
+                        subplans.put(alias, inputPlans.get(in));
+                        joined.add(alias);
+                    }
+                }
+                instantiateJoins(t, order, jo.estimateJoinCardinalities(stats, filterSelectivities, order),
+                        subplans, equivMap, joined, performed);
+                if (subplans.size() > 1)
+                    throw new ParsingException("Query does not include join expressions joining all nodes!");
+                remaining = order;
+                return reorder(pushDownFilters(subplans.values().iterator().next()));
+            } catch (ParsingException ex) {
+                throw new DbException("cannot order the joins again: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * @return plan, with its fields in the order of the plan it replaces,
+         * on which the rest of the query refers to them by index
+         */
+        private OpIterator reorder(OpIterator plan) {
+            TupleDesc planTd = plan.getTupleDesc();
+            List<Integer> fields = new ArrayList<>();
+            List<Type> types = new ArrayList<>();
+            boolean same = true;
+            for (int i = 0; i < td.numFields(); i++) {
+                int f = planTd.fieldNameToIndex(td.getFieldName(i));
+                fields.add(f);
+                types.add(td.getFieldType(i));
+                same &= f == i;
+            }
+            return same ? plan : new Project(fields, types, plan);
+        }
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
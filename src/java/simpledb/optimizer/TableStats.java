@@ -5,39 +5,66 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import java.io.IOException;
-import java.util.Arrays;
+import java.io.*;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query.
  * <p>
  * This class is not needed in implementing lab1 and lab2.
+ * <p>
+ * The statistics of all tables can be kept in a stats file next to the
+ * catalog, see {@link #loadStatistics}. They are then read from the file
+ * table by table when first needed, instead of scanning every table at
+ * startup, and kept approximately up to date by the inserts and deletes
+ * done through the {@link BufferPool}; {@link #analyze} recomputes them.
+ * <p>
+ * The statistics of a large HeapFile are estimated from a random sample of
+ * its pages, see {@link #setSampleSize}, instead of reading all of them.
  */
-public class TableStats {
+public class TableStats implements Serializable {
 
-    private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
+    private static final long serialVersionUID = 4L;
+    private static final ConcurrentMap<String, TableStats> statsMap = new StatsMap();
+    private static volatile File statsFile = null;  // 持久化统计信息的文件，null表示不持久化
+    private static final ConcurrentMap<String, Integer> sampleSizes = new ConcurrentHashMap<>();
 
     static final int IOCOSTPERPAGE = 1000;
 
-    private IntHistogram stats;
+    /**
+     * The number of pages sampled from a table that has more pages, unless
+     * another sample size is set for it
+     */
+    public static final int DEFAULT_SAMPLE_PAGES = 2000;
+
     private int tableId;
     private int ioCostPerPage = IOCOSTPERPAGE;
     private int sumCost;
-    private int minFieldValue[];
-    private int maxFieldValue[];
     private int tupleNum;
     private int pageNum;
+    private EquiDepthHistogram[] hists;    // 每列的最常见值和等深直方图
+    private int samplePages;               // 构造时要求的采样页数，0表示全表扫描
+    private double sampleFraction = 1.0;   // 直方图所基于的样本占全表的比例
+    private HyperLogLog[] sketches;        // 每列不同值的草图
+    private double[] distinctValues;       // 采样时每列不同值个数的估计，全表扫描时为null
 
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
@@ -74,6 +101,250 @@ public class TableStats {
         System.out.println("Done.");
     }
 
+    /**
+     * Collect the statistics of a table from now on by reading a random
+     * sample of pages pages from it, if it is stored in a HeapFile with more
+     * pages than that; or from all of its pages if pages is 0. The sample
+     * size is stored with the statistics. Tables without a sample size of
+     * their own are sampled {@value #DEFAULT_SAMPLE_PAGES} pages at a time.
+     *
+     * @param tableName the name of the table
+     * @param pages     the number of pages to sample, or 0
+     * @throws IllegalArgumentException if pages is negative
+     */
+    public static void setSampleSize(String tableName, int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException("negative sample size " + pages);
+        sampleSizes.put(tableName, pages);
+    }
+
+    /**
+     * @return the number of pages sampled from table tableName when its
+     * statistics are computed, or 0 if all of them are read
+     */
+    public static int getSampleSize(String tableName) {
+        return sampleSizes.getOrDefault(tableName, DEFAULT_SAMPLE_PAGES);
+    }
+
+    private static int sampleSize(int tableId) {
+        try {
+            return getSampleSize(Database.getCatalog().getTableName(tableId));
+        } catch (NoSuchElementException e) {
+            return DEFAULT_SAMPLE_PAGES;
+        }
+    }
+
+    /**
+     * @return the stats file kept next to the catalog file catalogFile
+     */
+    public static File statisticsFile(String catalogFile) {
+        return new File(catalogFile + ".stats");
+    }
+
+    /**
+     * Use the statistics stored in file, and store them there from now on.
+     * Nothing is read from the tables here: the statistics of a table are
+     * read from the file when first needed, or computed then if the file has
+     * none for it or its table has changed size since they were stored.
+     *
+     * @param file the stats file, which need not exist yet; or null to keep
+     *             the statistics in memory only
+     */
+    public static void loadStatistics(File file) throws IOException {
+        statsMap.clear();
+        statsFile = file;
+        if (!(statsMap instanceof StatsMap))
+            return;
+        Map<String, byte[]> stored = ((StatsMap) statsMap).stored;
+        stored.clear();
+        if (file == null || !file.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                stored.put(name, b);
+            }
+        }
+        System.out.println("Loaded stats of " + stored.size() + " tables from " + file + ".");
+    }
+
+    /**
+     * Write the statistics of all tables to the file given to
+     * {@link #loadStatistics}, if any.
+     */
+    public static void saveStatistics() throws IOException {
+        File file = statsFile;
+        if (file == null)
+            return;
+        Map<String, byte[]> entries = new HashMap<>();
+        if (statsMap instanceof StatsMap)
+            entries.putAll(((StatsMap) statsMap).stored);
+        for (Map.Entry<String, TableStats> e : statsMap.entrySet())
+            entries.put(e.getKey(), e.getValue().toBytes());
+        // 先写临时文件再改名，写到一半时不会破坏原来的统计信息
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(entries.size());
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file))
+            throw new IOException("cannot replace " + file);
+    }
+
+    /**
+     * Recompute the statistics of a table from its current contents and
+     * store them.
+     *
+     * @param tableName the name of the table in the catalog
+     * @return the new statistics
+     * @throws NoSuchElementException if there is no such table
+     */
+    public static TableStats analyze(String tableName) throws IOException {
+        TableStats s = new TableStats(Database.getCatalog().getTableId(tableName), IOCOSTPERPAGE);
+        setTableStats(tableName, s);
+        saveStatistics();
+        return s;
+    }
+
+    /**
+     * Account for tuple t inserted into table tableId, if its statistics
+     * are known. Called by {@link BufferPool#insertTuple}.
+     */
+    public static void tupleInserted(int tableId, Tuple t) {
+        TableStats s = knownStats(tableId);
+        if (s != null)
+            s.update(t, 1);
+    }
+
+    /**
+     * Account for tuple t deleted from table tableId, if its statistics are
+     * known. Called by {@link BufferPool#deleteTuple}.
+     */
+    public static void tupleDeleted(int tableId, Tuple t) {
+        TableStats s = knownStats(tableId);
+        if (s != null)
+            s.update(t, -1);
+    }
+
+    /**
+     * @return the statistics of table tableId if they are in memory or in
+     * the stats file, without computing them
+     */
+    private static TableStats knownStats(int tableId) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        if (statsMap instanceof StatsMap)
+            return ((StatsMap) statsMap).load(name, false);
+        return statsMap.get(name);
+    }
+
+    /**
+     * The map of the statistics of all tables. Looking up a table whose
+     * statistics are not in memory yet reads them from the stats file, or
+     * computes them.
+     */
+    private static class StatsMap extends ConcurrentHashMap<String, TableStats> {
+        private static final long serialVersionUID = 1L;
+        /** The serialized statistics read from the stats file but not used yet */
+        final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+
+        @Override
+        public TableStats get(Object key) {
+            TableStats s = super.get(key);
+            if (s != null || !(key instanceof String))
+                return s;
+            return load((String) key, true);
+        }
+
+        /**
+         * @param compute whether to compute the statistics if they are not
+         *                stored, or stale
+         * @return the statistics of table name, or null if there is no such
+         * table or they are not known and compute is false
+         */
+        synchronized TableStats load(String name, boolean compute) {
+            TableStats s = super.get(name);
+            if (s != null)
+                return s;
+            int tableId;
+            try {
+                tableId = Database.getCatalog().getTableId(name);
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+            byte[] b = stored.remove(name);
+            if (b != null)
+                s = fromBytes(b, tableId);
+            if (s == null && compute)
+                s = new TableStats(tableId, IOCOSTPERPAGE);
+            if (s != null)
+                put(name, s);
+            return s;
+        }
+    }
+
+    private byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            synchronized (this) {
+                out.writeObject(this);
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return the statistics serialized in b for table tableId, or null if
+     * they cannot be read or the table no longer has as many pages as when
+     * they were stored
+     */
+    private static TableStats fromBytes(byte[] b, int tableId) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(b))) {
+            TableStats s = (TableStats) in.readObject();
+            if (s.samplePages != DEFAULT_SAMPLE_PAGES)  // 即使统计信息已过期，也沿用其采样页数
+                sampleSizes.putIfAbsent(Database.getCatalog().getTableName(tableId), s.samplePages);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (s.pageNum != numPages(file) || s.hists.length != file.getTupleDesc().numFields())
+                return null;
+            s.tableId = tableId;  // 表号由文件路径决定，以目录中的为准
+            return s;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Add (delta = 1) or remove (delta = -1) t to or from these statistics.
+     * The histograms keep their most common values and bucket bounds, so
+     * new values count for the bucket they fall in, or the first or last
+     * one, until the table is analyzed again. Inserted values are added to
+     * the distinct value sketches; deleted ones cannot be taken out.
+     */
+    private synchronized void update(Tuple t, int delta) {
+        tupleNum = Math.max(0, tupleNum + delta);
+        pageNum = numPages(Database.getCatalog().getDatabaseFile(tableId));
+        for (int i = 0; i < hists.length; i++) {
+            Field f = t.getField(i);
+            if (delta > 0) {
+                sketches[i].addValue(f);
+                hists[i].addValue(f);
+            } else {
+                hists[i].removeValue(f);
+            }
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -81,16 +352,42 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * Number of most common values kept per column
+     */
+    static final int NUM_MCVS = 100;
+
+    /**
+     * Number of tuples sampled from those read to build the histograms
+     */
+    static final int HIST_SAMPLE_TUPLES = 30000;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
-     * column of a table
-     * 构造时对所有元组进行第一遍扫描，记录下所有int字段的最大和最小值
+     * column of a table, sampling the table as set by {@link #setSampleSize}.
      *
      * @param tableid       The table over which to compute statistics
      * @param ioCostPerPage The cost per page of IO. This doesn't differentiate between
      *                      sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, sampleSize(tableid));
+    }
+
+    /**
+     * Create a new TableStats object, that keeps track of statistics on each
+     * column of a table
+     * 构造时只扫描一遍：统计元组个数和不同值草图，并用蓄水池抽样留下部分元组，扫描后由其建立直方图
+     * 采样时只读取随机选出的页，再按页数比例放大元组个数
+     *
+     * @param tableid       The table over which to compute statistics
+     * @param ioCostPerPage The cost per page of IO. This doesn't differentiate between
+     *                      sequential-scan IO and disk seeks.
+     * @param samplePages   The number of random pages to read, or 0 to read the
+     *                      whole table. Tables not stored in a HeapFile, and
+     *                      tables with no more pages than that, are read whole.
+     */
+    public TableStats(int tableid, int ioCostPerPage, int samplePages) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -103,35 +400,106 @@ public class TableStats {
         this.ioCostPerPage = ioCostPerPage;
         this.sumCost = 0;
         this.tupleNum = 0;
-        HeapFile dbFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        this.pageNum = dbFile.numPages();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        this.pageNum = numPages(dbFile);
+        this.samplePages = samplePages;
         TupleDesc tupleDesc = dbFile.getTupleDesc();
         int fieldNum = tupleDesc.numFields();
-        this.maxFieldValue = new int[fieldNum];
-        this.minFieldValue = new int[fieldNum];
-        Arrays.fill(maxFieldValue, Integer.MIN_VALUE);
-        Arrays.fill(minFieldValue, Integer.MAX_VALUE);
-        DbFileIterator dbIt = dbFile.iterator(new TransactionId());
+        Random random = ThreadLocalRandom.current();
+        TransactionId tid = new TransactionId();
+        DbFileIterator dbIt;
+        if (dbFile instanceof HeapFile && samplePages > 0 && samplePages < pageNum) {
+            dbIt = ((HeapFile) dbFile).pageIterator(tid, randomPages(pageNum, samplePages, random));
+            this.sampleFraction = (double) samplePages / pageNum;
+        } else {
+            dbIt = dbFile.iterator(tid);
+        }
+        this.sketches = new HyperLogLog[fieldNum];
+        for (int i = 0; i < fieldNum; i++)
+            sketches[i] = new HyperLogLog();
+        // 样本有界，可以精确统计各值的频数；全表只用草图
+        List<Map<Field, Integer>> frequencies = isSampled() ? newFrequencies(fieldNum) : null;
+        List<Tuple> reservoir = new ArrayList<>();
         try {
             dbIt.open();
-            while (dbIt.hasNext()) {  // 遍历tuple找出每个字段的最大值和最小值
+            while (dbIt.hasNext()) {
                 Tuple t = dbIt.next();
                 this.tupleNum++;
                 for (int i = 0; i < fieldNum; i++) {
-                    Field f = t.getField(i);
-                    if (f.getType() == Type.INT_TYPE) {
-                        IntField intF = (IntField) f;
-                        if (intF.getValue() > maxFieldValue[i])
-                            maxFieldValue[i] = intF.getValue();
-                        if (intF.getValue() < minFieldValue[i])
-                            minFieldValue[i] = intF.getValue();
-                    }
+                    sketches[i].addValue(t.getField(i));
+                    if (frequencies != null)
+                        frequencies.get(i).merge(t.getField(i), 1, Integer::sum);
+                }
+                if (reservoir.size() < HIST_SAMPLE_TUPLES) {
+                    reservoir.add(t);
+                } else {
+                    int j = random.nextInt(tupleNum);
+                    if (j < HIST_SAMPLE_TUPLES)
+                        reservoir.set(j, t);
                 }
             }
+            dbIt.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
+        int sampleTuples = tupleNum;
+        this.tupleNum = (int) Math.round(sampleTuples / sampleFraction);
+        if (frequencies != null) {
+            this.distinctValues = new double[fieldNum];
+            for (int i = 0; i < fieldNum; i++)
+                distinctValues[i] = estimateDistinct(frequencies.get(i), sampleTuples, tupleNum);
+        }
 
+        this.hists = new EquiDepthHistogram[fieldNum];
+        List<Field> values = new ArrayList<>(reservoir.size());
+        for (int i = 0; i < fieldNum; i++) {
+            values.clear();
+            for (Tuple t : reservoir)
+                values.add(t.getField(i));
+            hists[i] = new EquiDepthHistogram(values, tupleNum, numDistinct(i), NUM_HIST_BINS, NUM_MCVS);
+        }
+    }
+
+    private static List<Map<Field, Integer>> newFrequencies(int n) {
+        List<Map<Field, Integer>> maps = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            maps.add(new HashMap<>());
+        return maps;
+    }
+
+    /**
+     * @return k distinct page numbers in [0, numPages), in increasing order
+     */
+    static int[] randomPages(int numPages, int k, Random random) {
+        // Floyd的抽样算法，排序后按文件顺序读取
+        Set<Integer> chosen = new TreeSet<>();
+        for (int j = numPages - k; j < numPages; j++) {
+            int p = random.nextInt(j + 1);
+            if (!chosen.add(p))
+                chosen.add(j);
+        }
+        return chosen.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Estimate the number of distinct values of a column of n tuples from
+     * the frequencies of its values in a sample of sampleSize of them, with
+     * the guaranteed-error estimator: a value seen once in the sample stands
+     * for sqrt(n / sampleSize) values of the table, the others for one each.
+     *
+     * @return the number of values seen if the sample is the whole column
+     */
+    static double estimateDistinct(Map<Field, Integer> frequencies, int sampleSize, int n) {
+        int seen = frequencies.size();
+        if (sampleSize >= n || seen == 0)
+            return seen;
+        int once = 0;
+        for (int f : frequencies.values()) {
+            if (f == 1)
+                once++;
+        }
+        double estimate = Math.sqrt((double) n / sampleSize) * once + (seen - once);
+        return Math.max(seen, Math.min(n, estimate));
     }
 
     /**
@@ -151,6 +519,29 @@ public class TableStats {
         return this.pageNum * this.ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of one probe of the B+ tree this table is stored in:
+     * one page per level of the tree down to the leaves, plus the leaf pages
+     * holding the fraction of tuples the probe returns.
+     *
+     * @param selectivity The fraction of the table's tuples returned by a probe
+     * @return The estimated cost of one index lookup, or -1 if the table is
+     * not stored in a {@link BTreeFile}
+     */
+    public double estimateIndexLookupCost(double selectivity) {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (!(dbFile instanceof BTreeFile)) {
+            return -1;
+        }
+        BTreeFile btree = (BTreeFile) dbFile;
+        Type keyType = btree.getTupleDesc().getFieldType(btree.keyField());
+        // 内部节点每项为 key + 子页指针
+        int fanout = Math.max(2, BufferPool.getPageSize() / (keyType.getLen() + Type.INT_TYPE.getLen()));
+        int height = pageNum <= 1 ? 0 : (int) Math.ceil(Math.log(pageNum) / Math.log(fanout));
+        double leafPages = Math.max(1.0, Math.ceil(selectivity * pageNum));
+        return (height + leafPages) * this.ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -173,16 +564,31 @@ public class TableStats {
      *              The semantic of the method is that, given the table, and then given a
      *              tuple, of which we do not know the value of the field, return the
      *              expected selectivity. You may estimate this value from the histograms.
+     *              对等值取各值频率的平方和；范围比较时随机值以下的元组平均占其余部分的一半
      */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        double eq = hists[field].avgSelectivity();
+        switch (op) {
+            case EQUALS:
+                return eq;
+            case NOT_EQUALS:
+                return 1 - eq;
+            case LESS_THAN:
+            case GREATER_THAN:
+                return (1 - eq) / 2;
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN_OR_EQ:
+                return (1 + eq) / 2;
+            default:
+                return 1.0;
+        }
     }
 
     /**
      * Estimate the selectivity of predicate <tt>field op constant</tt> on the
      * table.
-     * 通过遍历tuple，将每个tuple中field索引的字段值加入hist，并返回选择性的值
+     * 使用构造时缓存的直方图估计，不再扫描表
      *
      * @param field    The field over which the predicate ranges
      * @param op       The logical operation in the predicate
@@ -192,39 +598,56 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        HeapFile dbFile = (HeapFile) Database.getCatalog().getDatabaseFile(this.tableId);
-        TupleDesc td = dbFile.getTupleDesc();
-        double selectivity = 0.0;
-        if (td.getFieldType(field) == Type.INT_TYPE) {
-            IntHistogram hist = new IntHistogram(NUM_HIST_BINS, minFieldValue[field], maxFieldValue[field]);
-            DbFileIterator dbIt = dbFile.iterator(new TransactionId());
-            try {
-                dbIt.open();
-                while (dbIt.hasNext()) {
-                    Tuple t = dbIt.next();
-                    IntField f = (IntField) t.getField(field);
-                    hist.addValue(f.getValue());
-                }
-                selectivity = hist.estimateSelectivity(op, ((IntField) constant).getValue());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        } else {
-            StringHistogram hist = new StringHistogram(NUM_HIST_BINS);
-            DbFileIterator dbIt = dbFile.iterator(new TransactionId());
-            try {
-                dbIt.open();
-                while (dbIt.hasNext()) {
-                    Tuple t = dbIt.next();
-                    StringField f = (StringField) t.getField(field);
-                    hist.addValue(f.getValue());
-                }
-                selectivity = hist.estimateSelectivity(op, ((StringField) constant).getValue());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        if (tupleNum == 0)
+            return 0.0;
+        return hists[field].estimateSelectivity(op, constant);
+    }
+
+    private static int numPages(DbFile dbFile) {
+        if (dbFile instanceof BTreeFile) {
+            return ((BTreeFile) dbFile).numPages();
         }
-        return selectivity;
+        return ((HeapFile) dbFile).numPages();
+    }
+
+    /**
+     * @return the most common values and histogram of field
+     */
+    public EquiDepthHistogram histogram(int field) {
+        return hists[field];
+    }
+
+    /**
+     * @return the estimated number of distinct values of field in this
+     * table, from its HyperLogLog sketch, or from the frequencies of the
+     * values in the sample if these statistics are sampled
+     */
+    public double numDistinct(int field) {
+        double d = distinctValues != null ? distinctValues[field] : sketches[field].estimate();
+        return Math.min(d, tupleNum);
+    }
+
+    /**
+     * @return the HyperLogLog sketch of the values of field read when
+     * collecting these statistics, plus those inserted since
+     */
+    public HyperLogLog distinctSketch(int field) {
+        return sketches[field];
+    }
+
+    /**
+     * @return true if these statistics were estimated from a sample of the
+     * pages of the table
+     */
+    public boolean isSampled() {
+        return sampleFraction < 1.0;
+    }
+
+    /**
+     * @return the number of pages of the table
+     */
+    public int numPages() {
+        return this.pageNum;
     }
 
     /**
@@ -3,6 +3,7 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
+import simpledb.optimizer.TableStats;
 import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -64,6 +65,13 @@ public class BufferPool {
         return pageSize;
     }
 
+    /**
+     * @return the maximum number of pages the buffer pool caches
+     */
+    public static int getNumPages() {
+        return numPages;
+    }
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
         BufferPool.pageSize = pageSize;
@@ -97,21 +105,32 @@ public class BufferPool {
         } else if (perm == Permissions.READ_WRITE) {
             lockManager.acquireSharedLock(tid, pid);
         }
-        Page page = pages.get(pid);
-        // 页面在缓冲池中
-        if (page != null) {
-            LRUQueue.remove(pid);       // 删除pid
-            LRUQueue.add(pid);          // 从队尾重新插入页面号
-            return page;
+        // 并行扫描的多个线程会同时取页面：缓冲池状态互斥访问，读磁盘在锁外进行
+        synchronized (this) {
+            Page page = pages.get(pid);
+            // 页面在缓冲池中
+            if (page != null) {
+                LRUQueue.remove(pid);       // 删除pid
+                LRUQueue.add(pid);          // 从队尾重新插入页面号
+                return page;
+            }
         }
         // 页面不在缓冲池中,从HeapFile读取page
-        page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        if (pages.size() == numPages) {  // 缓冲池已满，驱逐页面
-            this.evictPage();
+        Page read = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        synchronized (this) {
+            Page page = pages.get(pid);
+            if (page != null) {  // 其他线程已经读入了这个页面
+                LRUQueue.remove(pid);
+                LRUQueue.add(pid);
+                return page;
+            }
+            if (pages.size() == numPages) {  // 缓冲池已满，驱逐页面
+                this.evictPage();
+            }
+            LRUQueue.add(pid);          // 从队尾插入
+            pages.put(pid, read);
+            return read;
         }
-        LRUQueue.add(pid);          // 从队尾插入
-        pages.put(pid, page);
-        return page;
     }
 
     /**
@@ -182,13 +201,9 @@ public class BufferPool {
         List<Page> dirtyPages = file.insertTuple(tid, t);
         for (Page page : dirtyPages) {            // 对于插入操作影响的每一页
             page.markDirty(true, tid);            // 更新dirty位
-            if (this.pages.size() == numPages) {  // 检查当前缓冲池是否已满
-                this.evictPage();                 // 如果已满，则写回一页
-            }
-            PageId pid = page.getId();
-            LRUQueue.add(pid);                       // 从队尾插入
-            this.pages.put(page.getId(), page);   // 将新页加入缓冲池
+            cacheDirtyPage(page);                 // 将新页加入缓冲池
         }
+        TableStats.tupleInserted(tableId, t);     // 增量维护统计信息
     }
 
     /**
@@ -214,12 +229,26 @@ public class BufferPool {
         List<Page> dirtyPages = file.deleteTuple(tid, t);  // 将tuple从表文件中删除
         for (Page page : dirtyPages) {                     // 对于删除操作影响的每一页
             page.markDirty(true, tid);               // 更新dirty位
-            if (this.pages.size() == numPages) {           // 检查当前缓冲池是否已满
-                this.evictPage();                          // 如果已满，则写回一页
-            }
-            LRUQueue.add(pid);                       // 从队尾插入
-            this.pages.put(page.getId(), page);             // 将新页加入缓冲池
+            cacheDirtyPage(page);                          // 将新页加入缓冲池
+        }
+        TableStats.tupleDeleted(tableId, t);
+    }
+
+    /**
+     * Put a page dirtied by an insert or delete into the buffer pool,
+     * replacing any cached version of it and evicting a page if the pool is
+     * full. Synchronized like {@link #getPage}, since a parallel scan may
+     * fetch or evict pages at the same time.
+     */
+    private synchronized void cacheDirtyPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        if (pages.containsKey(pid)) {
+            LRUQueue.remove(pid);               // 已在缓冲池中，只更新使用顺序
+        } else if (pages.size() == numPages) {  // 检查当前缓冲池是否已满
+            this.evictPage();                   // 如果已满，则写回一页
         }
+        LRUQueue.add(pid);                      // 从队尾插入
+        this.pages.put(pid, page);
     }
 
     /**
@@ -3,6 +3,7 @@ package simpledb.storage;
 
 import simpledb.common.DbException;
 import simpledb.common.Catalog;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -73,6 +74,37 @@ public interface DbFile {
      */
     DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over all the tuples stored in this DbFile that only
+     * holds the given columns of each tuple, so that columns a query does not
+     * read are not carried through its plan. The tuples keep their record ids.
+     *
+     * @param columns indexes of the columns to return, in order, or null for
+     *                all columns
+     * @return an iterator over tuples of {@code getTupleDesc().project(columns)}
+     */
+    default DbFileIterator iterator(TransactionId tid, int[] columns) {
+        return iterator(tid, columns, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored in this DbFile that satisfy
+     * all of the given predicates, holding only the given columns of each.
+     * Tuples are tested where they are read, so rejected tuples are neither
+     * projected nor passed up through the operators of a plan. The default
+     * filters and projects the tuples of {@link #iterator(TransactionId)}.
+     *
+     * @param columns    indexes of the columns to return, in order, or null
+     *                   for all columns
+     * @param predicates a conjunction of predicates over the columns of
+     *                   {@link #getTupleDesc()}, or null for none
+     */
+    default DbFileIterator iterator(TransactionId tid, int[] columns, Predicate[] predicates) {
+        if (columns == null && (predicates == null || predicates.length == 0))
+            return iterator(tid);
+        return new FilterProjectIterator(iterator(tid), getTupleDesc(), columns, predicates);
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
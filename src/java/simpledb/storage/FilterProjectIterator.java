@@ -0,0 +1,60 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.execution.Predicate;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * A DbFileIterator that skips the tuples of another DbFileIterator failing
+ * any of a conjunction of predicates and returns only some columns of the
+ * others; see {@link DbFile#iterator(simpledb.transaction.TransactionId, int[], Predicate[])}.
+ * The predicates refer to the columns of the tuples of the underlying
+ * iterator, before projection.
+ */
+public class FilterProjectIterator extends AbstractDbFileIterator {
+
+    private final DbFileIterator it;
+    private final Predicate[] predicates;
+    private final int[] columns;
+    private final TupleDesc td;
+
+    /**
+     * @param it         the iterator to filter
+     * @param fileTd     the schema of the tuples of it
+     * @param columns    the columns to return, or null for all columns
+     * @param predicates the predicates tuples must satisfy, or null for none
+     */
+    public FilterProjectIterator(DbFileIterator it, TupleDesc fileTd, int[] columns, Predicate[] predicates) {
+        this.it = it;
+        this.predicates = predicates == null ? new Predicate[0] : predicates.clone();
+        this.columns = columns == null ? null : columns.clone();
+        this.td = columns == null ? fileTd : fileTd.project(columns);
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        it.open();
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (Predicate.filter(predicates, t))
+                return columns == null ? t : t.project(td, columns);
+        }
+        return null;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        it.rewind();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        it.close();
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -206,6 +207,57 @@ public class HeapFile implements DbFile {
         return new ArrayList<Page>(Arrays.asList(page));
     }
 
+    /**
+     * @return the number of tuple slots on each page of this file
+     */
+    public int slotsPerPage() {
+        return (BufferPool.getPageSize() * 8) / (tupleDesc.getSize() * 8 + 1);
+    }
+
+    /**
+     * @return true if the record ids of all tuples of this file, as it is
+     * now, fit in the ints of {@link #encodeRecordId}
+     */
+    public boolean canEncodeRecordIds() {
+        return (long) numPages() * slotsPerPage() <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Encode the record id of a tuple of this file as a single int, so that
+     * it can be carried through a plan as an INT_TYPE field.
+     *
+     * @see #decodeRecordId
+     */
+    public int encodeRecordId(RecordId rid) {
+        return rid.getPageId().getPageNumber() * slotsPerPage() + rid.getTupleNumber();
+    }
+
+    /**
+     * @return the record id encoded by {@link #encodeRecordId}
+     */
+    public RecordId decodeRecordId(int encoded) {
+        int slots = slotsPerPage();
+        return new RecordId(new HeapPageId(getId(), encoded / slots), encoded % slots);
+    }
+
+    /**
+     * Read a single tuple of this file through the BufferPool.
+     *
+     * @param tid the transaction reading the tuple
+     * @param rid the record id of the tuple
+     * @return the tuple, which must not be modified
+     * @throws DbException if there is no such tuple
+     */
+    public Tuple readTuple(TransactionId tid, RecordId rid) throws DbException, TransactionAbortedException {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        try {
+            return page.getTuple(rid.getTupleNumber());
+        } catch (NoSuchElementException e) {
+            throw new DbException("no tuple " + rid.getTupleNumber() + " on page "
+                    + rid.getPageId().getPageNumber() + " of table " + getId());
+        }
+    }
+
     public Iterator<Tuple> getEachPageIt(TransactionId tid, PageId pid) throws TransactionAbortedException, DbException {
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);  //find the page via pid
         return page.iterator();       //return the tuples in the page with id pid
@@ -214,28 +266,106 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
+        return iterator(tid, 0, numPages());
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public DbFileIterator iterator(TransactionId tid, int[] columns, Predicate[] predicates) {
+        return iterator(tid, 0, numPages(), columns, predicates);
+    }
+
+    /**
+     * Returns an iterator over the tuples of the pages [startPage, endPage)
+     * of this file. Iterators over disjoint ranges can be used concurrently
+     * to scan the file in parallel.
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
+        return iterator(tid, startPage, endPage, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of the given pages of this file, in
+     * the order of pages, for example a random sample of its pages.
+     *
+     * @param pages the page numbers, each less than {@link #numPages()}
+     */
+    public DbFileIterator pageIterator(TransactionId tid, int[] pages) {
+        int[] pageNos = pages.clone();
         return new AbstractDbFileIterator() {
-            private final int numPage = numPages();
-            private int pageNo = 0;
+            private int next = 0;                // 下一个要读的页在pageNos中的下标
+            private Iterator<Tuple> it = null;
+
+            @Override
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                if (it == null) return null;
+                while (!it.hasNext()) {
+                    if (next >= pageNos.length)
+                        return null;
+                    it = getEachPageIt(tid, new HeapPageId(getId(), pageNos[next++]));
+                }
+                return it.next();
+            }
+
+            @Override
+            public void open() {
+                next = 0;
+                it = Collections.emptyIterator();
+            }
+
+            @Override
+            public void rewind() {
+                open();
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                it = null;
+            }
+        };
+    }
+
+    /**
+     * Version of {@link #iterator(TransactionId, int, int)} that only returns
+     * the given columns of the tuples satisfying all predicates, see
+     * {@link DbFile#iterator(TransactionId, int[], Predicate[])}.
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage, int[] columns,
+                                   Predicate[] predicates) {
+        // 过滤和投影在逐页读取元组时完成，不再包一层迭代器
+        TupleDesc projected = columns == null ? null : tupleDesc.project(columns);
+        Predicate[] conjunction = predicates == null ? new Predicate[0] : predicates.clone();
+        return new AbstractDbFileIterator() {
+            private final int numPage = endPage;
+            private int pageNo = startPage;
             private PageId pid = null;
             private Iterator<Tuple> it = null;   // 页面的iterator
 
             @Override
             protected Tuple readNext() throws DbException, TransactionAbortedException {
                 if (it == null) return null;
-                while (!it.hasNext()) {  //
-                    if (pageNo < numPage - 1) {
-                        pageNo++;
-                        open();
-                    } else {
-                        return null;
+                while (true) {
+                    while (!it.hasNext()) {  //
+                        if (pageNo < numPage - 1) {
+                            pageNo++;
+                            open();
+                        } else {
+                            return null;
+                        }
                     }
+                    Tuple t = it.next();
+                    if (Predicate.filter(conjunction, t))
+                        return projected == null ? t : t.project(projected, columns);
                 }
-                return it.next();
             }
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
+                if (pageNo >= numPage) {  // 空的页范围
+                    it = Collections.emptyIterator();
+                    return;
+                }
                 // 获取当前page的it
                 try {
                     pid = new HeapPageId(getId(), pageNo);
@@ -247,7 +377,7 @@ public class HeapFile implements DbFile {
 
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
-                pageNo = 0;
+                pageNo = startPage;
                 open();
             }
 
@@ -255,9 +385,9 @@ public class HeapFile implements DbFile {
             public void close() {
                 super.close();
                 it = null;
+                pageNo = startPage;  // 再次打开时从头扫描
             }
         };
     }
 
 }
-
@@ -371,6 +371,16 @@ public class HeapPage implements Page {
         return ((header[byteIndex] >> byteOffset) & 1) == 1;
     }
 
+    /**
+     * @return the tuple in slot i of this page
+     * @throws NoSuchElementException if slot i is not used
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            throw new NoSuchElementException("slot " + i + " of page " + pid.getPageNumber() + " is not used");
+        return tuples[i];
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
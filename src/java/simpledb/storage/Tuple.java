@@ -119,6 +119,20 @@ public class Tuple implements Serializable {
         this.tupleDesc = td;
     }
 
+    /**
+     * @param td      the TupleDesc of the result, see {@link TupleDesc#project}
+     * @param columns the fields of this tuple to keep, in order
+     * @return a tuple of just the given fields, with the record id of this one
+     */
+    public Tuple project(TupleDesc td, int[] columns) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(getRecordId());
+        t.fields = new ArrayList<>(columns.length);
+        for (int c : columns)
+            t.fields.add(fields.get(c));
+        return t;
+    }
+
     public static Tuple merge(Tuple t1, Tuple t2) {
         List<Field> f = new ArrayList<>(t1.fields);
         f.addAll(t2.fields);
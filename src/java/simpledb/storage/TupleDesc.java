@@ -188,6 +188,20 @@ public class TupleDesc implements Serializable {
         return new TupleDesc(mergedList);
     }
 
+    /**
+     * @param columns indexes of fields of this TupleDesc
+     * @return the TupleDesc of just the given fields, in the given order
+     */
+    public TupleDesc project(int[] columns) {
+        List<TDItem> items = new ArrayList<>(columns.length);
+        for (int c : columns) {
+            if (c < 0 || c >= tdItems.size())
+                throw new NoSuchElementException("no field " + c);
+            items.add(tdItems.get(c));
+        }
+        return new TupleDesc(items);
+    }
+
     /**
      * Compares the specified object with this TupleDesc for equality. Two
      * TupleDescs are considered equal if they have the same number of items
@@ -0,0 +1,97 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.find;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AccessPathTest extends SimpleDbTestBase {
+
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    List<List<Integer>> tuples = new ArrayList<>();
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+    // 同一个文件，列名为c0、c1，键为c0
+    BTreeFile named = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+    Database.getCatalog().addTable(named, "bt");
+    TableStats.setTableStats("bt", new TableStats(named.getId(), 10));
+    for (List<Integer> t : tuples) {
+      Tuple tuple = new Tuple(named.getTupleDesc());
+      for (int i = 0; i < t.size(); i++)
+        tuple.setField(i, new IntField(t.get(i)));
+      TableStats.tupleInserted(named.getId(), tuple);
+    }
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A selective filter on the key is answered by the index, without a Filter
+   */
+  @Test public void keyLookupUsesIndex() throws Exception {
+    OpIterator plan = plan("SELECT * FROM bt WHERE bt.c0 = 5;");
+    BTreeScan scan = find(plan, BTreeScan.class);
+    assertTrue(scan != null);
+    assertEquals(Predicate.Op.EQUALS, scan.getIndexPredicate().getOp());
+    assertEquals(new IntField(5), scan.getIndexPredicate().getField());
+    assertEquals(null, find(plan, Filter.class));
+  }
+
+  /**
+   * A filter that keeps most of the table is cheaper to apply to a scan
+   */
+  @Test public void wideRangeScansTable() throws Exception {
+    OpIterator plan = plan("SELECT * FROM bt WHERE bt.c0 > 0;");
+    assertEquals(null, find(plan, BTreeScan.class));
+    assertTrue(find(plan, SeqScan.class) != null);
+  }
+
+  /**
+   * Filters on other columns cannot use the index
+   */
+  @Test public void otherColumnScansTable() throws Exception {
+    OpIterator plan = plan("SELECT * FROM bt WHERE bt.c1 = 5;");
+    assertEquals(null, find(plan, BTreeScan.class));
+    assertTrue(find(plan, SeqScan.class) != null);
+  }
+
+  private OpIterator plan(String q) throws Exception {
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, q);
+    lp.setParallelism(1);
+    return lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(AccessPathTest.class);
+  }
+}
@@ -12,10 +12,18 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.ExternalAggregation;
 import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 public class AggregateTest extends SimpleDbTestBase {
 
   final int width1 = 2;
@@ -191,6 +199,107 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates at once
+   */
+  @Test public void multipleAggregates() throws Exception {
+    Aggregate op = new Aggregate(scan1, new int[] { 1, 1, 1, 1, 0 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG },
+        new int[] { 0 });
+    assertEquals(6, op.getTupleDesc().numFields());
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(6,
+        new int[] { 1, 3, 12, 2, 6, 1,
+                    3, 3, 12, 2, 6, 3,
+                    5, 1, 7, 7, 7, 5 }), op);
+
+    // 没有分组时每个聚合输出一列
+    scan1.rewind();
+    op = new Aggregate(scan1, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM },
+        new int[0]);
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(2,
+        new int[] { 7, 31 }), op);
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() grouping on two fields, one of them a
+   * string
+   */
+  @Test public void multipleGroupFields() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new Object[] { "a", 1, 2,
+                       "a", 2, 4,
+                       "b", 1, 6,
+                       "a", 1, 8,
+                       "b", 1, 10 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 0 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT },
+        new int[] { 0, 1 });
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4,
+        new Object[] { "a", 1, 10, 2,
+                       "a", 2, 4, 1,
+                       "b", 1, 16, 2 }), op);
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() with far more groups than fit in a
+   * small memory budget: the groups are partitioned to disk, and every group
+   * must still come out exactly once with the right values, also after
+   * rewind.
+   */
+  @Test public void spillingAggregate() throws Exception {
+    final int groups = 5000;
+    int[] data = new int[groups * 3 * width1];
+    for (int i = 0; i < groups * 3; i++) {
+      data[i * width1] = (i * 7) % groups;
+      data[i * width1 + 1] = i;
+    }
+    Aggregate op = new Aggregate(TestUtil.createTupleList(width1, data),
+        new int[] { 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM },
+        new int[] { 0 }, 4);
+    op.open();
+    checkSpilledGroups(op, data, groups);
+    op.rewind();
+    checkSpilledGroups(op, data, groups);
+    op.close();
+
+    ExternalAggregation agg = new ExternalAggregation(
+        TestUtil.createTupleList(width1, data).getTupleDesc(),
+        new int[] { 0 }, new int[] { 1 }, new Aggregator.Op[] { Aggregator.Op.MAX }, 4);
+    assertTrue(agg.maxGroups() < groups);
+    OpIterator scan = TestUtil.createTupleList(width1, data);
+    scan.open();
+    while (scan.hasNext())
+      agg.add(scan.next());
+    agg.finish();
+    assertTrue(agg.spilled());
+    agg.close();
+  }
+
+  private void checkSpilledGroups(OpIterator op, int[] data, int groups) throws Exception {
+    Map<Integer, long[]> expected = new HashMap<>();
+    for (int i = 0; i < data.length; i += width1) {
+      long[] e = expected.computeIfAbsent(data[i], k -> new long[2]);
+      e[0]++;
+      e[1] += data[i + 1];
+    }
+    Set<Integer> seen = new HashSet<>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      assertTrue(seen.add(key));
+      long[] e = expected.get(key);
+      assertEquals(e[0], ((IntField) t.getField(1)).getValue());
+      assertEquals(e[1], ((IntField) t.getField(2)).getValue());
+    }
+    assertEquals(groups, seen.size());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,98 @@
+package simpledb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.optimizer.EquiDepthHistogram;
+import simpledb.optimizer.IntHistogram;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EquiDepthHistogramTest {
+
+	/**
+	 * 90% of a column share one value, the rest are spread over 0..999
+	 */
+	private static List<Field> skewed() {
+		List<Field> values = new ArrayList<>();
+		for (int i = 0; i < 10000; i++)
+			values.add(new IntField(i % 10 == 0 ? (i * 7) % 1000 : 7));
+		return values;
+	}
+
+	/**
+	 * The common value is estimated exactly and the rest by the buckets,
+	 * where a fixed-width histogram mixes them up
+	 */
+	@Test public void skewedInts() {
+		List<Field> values = skewed();
+		EquiDepthHistogram h = new EquiDepthHistogram(values, values.size(), 1000, 100, 100);
+		Assert.assertEquals(1, h.numCommonValues());
+		Assert.assertTrue(h.numBuckets() <= 100);
+
+		Assert.assertEquals(0.9, h.estimateSelectivity(Op.EQUALS, new IntField(7)), 0.001);
+		Assert.assertEquals(0.1 / 1000, h.estimateSelectivity(Op.EQUALS, new IntField(500)), 0.0005);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, new IntField(5000)), 0.0);
+		Assert.assertEquals(0.9 + 0.05, h.estimateSelectivity(Op.LESS_THAN, new IntField(500)), 0.01);
+		Assert.assertEquals(0.05, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, new IntField(500)), 0.01);
+		Assert.assertEquals(0.1, h.estimateSelectivity(Op.NOT_EQUALS, new IntField(7)), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, new IntField(0)), 0.001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, new IntField(999)), 0.001);
+
+		IntHistogram fixed = new IntHistogram(100, 0, 999);
+		for (Field f : values)
+			fixed.addValue(((IntField) f).getValue());
+		Assert.assertTrue(fixed.estimateSelectivity(Op.EQUALS, 7) < 0.5);
+		Assert.assertTrue(fixed.estimateSelectivity(Op.EQUALS, 5) > 0.05);
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, new IntField(5)) < 0.001);
+	}
+
+	/**
+	 * The average selectivity is dominated by the common value
+	 */
+	@Test public void avgSelectivity() {
+		List<Field> values = skewed();
+		EquiDepthHistogram h = new EquiDepthHistogram(values, values.size(), 1000, 100, 100);
+		Assert.assertEquals(0.9 * 0.9 + 0.1 * 0.1 / 1000, h.avgSelectivity(), 0.001);
+	}
+
+	/**
+	 * Counts scale from the sample to the table, and values added and
+	 * removed afterwards are accounted for
+	 */
+	@Test public void sampledAndUpdated() {
+		List<Field> values = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			values.add(new IntField(i % 4));
+		EquiDepthHistogram h = new EquiDepthHistogram(values, 100000, 4, 100, 100);
+		Assert.assertEquals(4, h.numCommonValues());
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.EQUALS, new IntField(2)), 0.001);
+		for (int i = 0; i < 100000; i++)
+			h.addValue(new IntField(2));
+		Assert.assertEquals(0.625, h.estimateSelectivity(Op.EQUALS, new IntField(2)), 0.001);
+		for (int i = 0; i < 100000; i++)
+			h.removeValue(new IntField(2));
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.EQUALS, new IntField(2)), 0.001);
+	}
+
+	/**
+	 * Strings are told apart beyond their first four characters
+	 */
+	@Test public void longStrings() {
+		List<Field> values = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			values.add(new StringField("customer_" + (char) ('a' + i % 26) + i, 32));
+		EquiDepthHistogram h = new EquiDepthHistogram(values, values.size(), 1000, 100, 100);
+		Assert.assertEquals(0, h.numCommonValues());
+		double lessM = h.estimateSelectivity(Op.LESS_THAN, new StringField("customer_m", 32));
+		Assert.assertEquals(12.0 / 26, lessM, 0.03);
+		Assert.assertEquals(0.001, h.estimateSelectivity(Op.EQUALS, new StringField("customer_c2", 32)), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, new StringField("other", 32)), 0.0);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, new StringField("customer_zz", 32)), 0.0);
+	}
+}
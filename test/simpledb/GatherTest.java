@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.counts;
+import static simpledb.systemtest.SystemTestUtil.drain;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.Gather;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class GatherTest extends SimpleDbTestBase {
+
+  private HeapFile hf;
+  private List<List<Integer>> tuples;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    tuples = new ArrayList<>();
+    hf = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, tuples);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A parallel scan returns every tuple of the table exactly once, also
+   * after rewind
+   */
+  @Test public void parallelScan() throws Exception {
+    OpIterator op = Exchange.parallelize(new SeqScan(tid, hf.getId(), "t"), 4);
+    assertTrue(op instanceof Gather);
+    assertEquals(4, ((Gather) op).getChildren().length);
+    op.open();
+    assertEquals(counts(tuples), counts(drain(op)));
+    op.rewind();
+    assertEquals(counts(tuples), counts(drain(op)));
+    op.close();
+  }
+
+  /**
+   * Filters above the scan run in every copy
+   */
+  @Test public void parallelFilter() throws Exception {
+    OpIterator plan = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)),
+        new SeqScan(tid, hf.getId(), "t"));
+    OpIterator op = Exchange.parallelize(plan, 3);
+    assertTrue(op instanceof Gather);
+    List<List<Integer>> expected = new ArrayList<>();
+    for (List<Integer> t : tuples) {
+      if (t.get(0) < 100)
+        expected.add(t);
+    }
+    op.open();
+    assertEquals(counts(expected), counts(drain(op)));
+    op.close();
+  }
+
+  /**
+   * Closing a Gather before its producers are done stops them
+   */
+  @Test public void closeEarly() throws Exception {
+    OpIterator op = Exchange.parallelize(new SeqScan(tid, hf.getId(), "t"), 4);
+    for (int i = 0; i < 3; i++) {
+      op.open();
+      for (int j = 0; j < 10; j++)
+        op.next();
+      op.close();
+    }
+  }
+
+  /**
+   * Small tables are not split
+   */
+  @Test public void smallTable() throws Exception {
+    HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    OpIterator scan = new SeqScan(tid, small.getId(), "s");
+    assertTrue(Exchange.parallelize(scan, 4) == scan);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GatherTest.class);
+  }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import simpledb.common.Database;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -125,6 +126,64 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A projected iterator returns only the requested columns, in the
+     * requested order, and keeps the record ids of the tuples
+     */
+    @Test
+    public void testProjectedIterator() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 600, null, tuples);
+        DbFileIterator full = f.iterator(tid);
+        DbFileIterator it = f.iterator(tid, new int[] { 2, 0 });
+        full.open();
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple all = full.next();
+            Tuple t = it.next();
+            assertEquals(2, t.getTupleDesc().numFields());
+            assertEquals(all.getField(2), t.getField(0));
+            assertEquals(all.getField(0), t.getField(1));
+            assertEquals(all.getRecordId(), t.getRecordId());
+            count++;
+        }
+        assertFalse(full.hasNext());
+        assertEquals(600, count);
+        it.rewind();
+        assertTrue(it.hasNext());
+        it.close();
+        full.close();
+    }
+
+    /**
+     * Unit test for HeapFile.iterator() with predicates: only the tuples
+     * satisfying all of them are returned, projected after filtering
+     */
+    @Test
+    public void testFilteredIterator() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 600, 100, null, tuples);
+        Predicate[] conjunction = {
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(20)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(70)) };
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(0) >= 20 && t.get(1) < 70)
+                expected.add(Arrays.asList(t.get(2), t.get(0)));
+        }
+
+        DbFileIterator it = f.iterator(tid, new int[] { 2, 0 }, conjunction);
+        for (int pass = 0; pass < 2; pass++) {
+            it.open();
+            List<List<Integer>> actual = new ArrayList<>();
+            while (it.hasNext())
+                actual.add(SystemTestUtil.tupleToList(it.next()));
+            assertEquals(expected, actual);
+            it.close();
+        }
+    }
+
     /**
      * JUnit suite target
      */
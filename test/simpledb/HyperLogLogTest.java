@@ -0,0 +1,63 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.optimizer.HyperLogLog;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HyperLogLogTest extends SimpleDbTestBase {
+
+  /**
+   * The estimate is within a few percent of the number of distinct values,
+   * however often each of them is added
+   */
+  @Test public void estimate() {
+    HyperLogLog sketch = new HyperLogLog();
+    for (int repeat = 0; repeat < 3; repeat++) {
+      for (int i = 0; i < 100000; i++)
+        sketch.addValue(new IntField(i * 7));
+    }
+    assertEquals(100000, sketch.estimate(), 100000 * 0.05);
+
+    HyperLogLog strings = new HyperLogLog();
+    for (int i = 0; i < 50; i++)
+      strings.addValue(new StringField("value" + (i % 25), 16));
+    assertEquals(25, strings.estimate(), 1.0);
+    assertEquals(0, new HyperLogLog().estimate(), 0.0);
+  }
+
+  /**
+   * Merging the sketches of two parts gives the sketch of the whole
+   */
+  @Test public void merge() {
+    HyperLogLog left = new HyperLogLog();
+    HyperLogLog right = new HyperLogLog();
+    HyperLogLog all = new HyperLogLog();
+    for (int i = 0; i < 20000; i++) {
+      IntField f = new IntField(i);
+      (i < 12000 ? left : right).addValue(f);
+      if (i >= 8000)  // 两部分有重叠
+        left.addValue(new IntField(i - 8000));
+      all.addValue(f);
+    }
+    left.merge(right);
+    assertEquals(all.estimate(), left.estimate(), 0.0);
+    assertEquals(20000, left.estimate(), 20000 * 0.05);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void mergeDifferentPrecision() {
+    new HyperLogLog(10).merge(new HyperLogLog(12));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HyperLogLogTest.class);
+  }
+}
@@ -0,0 +1,212 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.IndexNestLoopJoin;
+import simpledb.execution.IndexOpIterator;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+
+public class IndexNestLoopJoinTest extends SimpleDbTestBase {
+
+  final int width1 = 2;
+  final int width2 = 3;
+  OpIterator scan1;
+  MockIndexScan scan2;
+  OpIterator eqJoin;
+  OpIterator gtJoin;
+
+  /**
+   * An index access method over a tuple list whose key is field 0; a probe
+   * returns the tuples matching the current index predicate.
+   */
+  static class MockIndexScan implements IndexOpIterator {
+    private static final long serialVersionUID = 1L;
+    private final TupleIterator tuples;
+    private IndexPredicate ipred;
+    private Tuple next;
+    int probes = 0;
+
+    MockIndexScan(TupleIterator tuples) {
+      this.tuples = tuples;
+    }
+
+    public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+      this.ipred = ipred;
+      probes++;
+      tuples.open();
+      next = null;
+    }
+
+    public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+      close();
+      open(ipred);
+    }
+
+    public void open() {
+      throw new UnsupportedOperationException("an index scan needs a predicate");
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+      while (next == null && tuples.hasNext()) {
+        Tuple t = tuples.next();
+        if (t.getField(0).compare(ipred.getOp(), ipred.getField())) {
+          next = t;
+        }
+      }
+      return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException {
+      if (!hasNext()) {
+        throw new java.util.NoSuchElementException();
+      }
+      Tuple t = next;
+      next = null;
+      return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+      rewind(ipred);
+    }
+
+    public TupleDesc getTupleDesc() {
+      return tuples.getTupleDesc();
+    }
+
+    public void close() {
+      tuples.close();
+    }
+  }
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = new MockIndexScan(TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 }));
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+    this.gtJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] {
+                    3, 4, 1, 2, 3, // 1, 2 < 3
+                    3, 4, 2, 3, 4,
+                    5, 6, 1, 2, 3, // 1, 2, 3, 4 < 5
+                    5, 6, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    5, 6, 4, 5, 6,
+                    7, 8, 1, 2, 3, // 1, 2, 3, 4, 5 < 7
+                    7, 8, 2, 3, 4,
+                    7, 8, 3, 4, 5,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+  }
+
+  /**
+   * Unit test for IndexNestLoopJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestLoopJoin op = new IndexNestLoopJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    assertEquals(expected, op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for IndexNestLoopJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestLoopJoin op = new IndexNestLoopJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * The inner index is probed once per outer tuple
+   */
+  @Test public void probeOncePerOuterTuple() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestLoopJoin op = new IndexNestLoopJoin(pred, scan1, scan2);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(3, count);
+    assertEquals(4, scan2.probes);
+  }
+
+  /**
+   * Unit test for IndexNestLoopJoin.getNext() using a &gt; predicate
+   */
+  @Test public void gtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    IndexNestLoopJoin op = new IndexNestLoopJoin(pred, scan1, scan2);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Unit test for IndexNestLoopJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestLoopJoin op = new IndexNestLoopJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    Tuple expected = eqJoin.next();
+    Tuple actual = op.next();
+    assertTrue(TestUtil.compareTuples(expected, actual));
+  }
+
+  /**
+   * Predicates an index probe cannot answer are rejected
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEqualsUnsupported() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0);
+    new IndexNestLoopJoin(pred, scan1, scan2);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestLoopJoinTest.class);
+  }
+}
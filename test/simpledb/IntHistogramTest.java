@@ -175,4 +175,21 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * The average selectivity of an equality is the sum of the squared
+	 * frequencies of the values
+	 */
+	@Test public void avgSelectivityTest() {
+		IntHistogram h = new IntHistogram(10, 1, 10);
+		for (int i = 0; i < 9; i++)
+			h.addValue(3);
+		h.addValue(8);
+		Assert.assertEquals(0.9 * 0.9 + 0.1 * 0.1, h.avgSelectivity(), 0.001);
+
+		IntHistogram uniform = new IntHistogram(10, 0, 99);
+		for (int v = 0; v < 100; v++)
+			uniform.addValue(v);
+		Assert.assertEquals(0.01, uniform.avgSelectivity(), 0.001);
+	}
 }
@@ -9,10 +9,12 @@ import junit.framework.JUnit4TestAdapter;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Aggregator;
 import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -130,6 +132,108 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * AVG of large values must not overflow the running sum
+   */
+  @Test public void avgNoOverflow() throws Exception {
+    int big = Integer.MAX_VALUE - 1;
+    OpIterator scan = TestUtil.createTupleList(width1,
+        new int[] { 1, big, 1, big, 1, big - 2, 2, -big, 2, -big - 1 });
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, big - 1, 2, -big }), it);
+  }
+
+  /**
+   * A SUM that does not fit in an INT fails instead of wrapping around
+   */
+  @Test(expected = DbException.class) public void sumOverflow() throws Exception {
+    int big = Integer.MAX_VALUE - 1;
+    OpIterator scan = TestUtil.createTupleList(width1, new int[] { 1, big, 1, big });
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    it.next();
+  }
+
+  /**
+   * Many groups force the group table to grow; every group keeps its own
+   * state and the groups come out in the order they were first seen
+   */
+  @Test public void manyGroups() throws Exception {
+    final int groups = 1000;
+    int[] data = new int[groups * 2 * width1];
+    for (int i = 0; i < groups * 2; i++) {
+      data[i * width1] = (i % groups) * 7919 - 3000000;
+      data[i * width1 + 1] = i;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, data);
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    int[] expected = new int[groups * width1];
+    for (int g = 0; g < groups; g++) {
+      expected[g * width1] = g * 7919 - 3000000;
+      expected[g * width1 + 1] = 2;
+    }
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(width1, expected), it);
+  }
+
+  /**
+   * Partial aggregates over two halves of the input merge into the
+   * aggregate of the whole input; AVG merges its sums and counts, not its
+   * averages
+   */
+  @Test public void mergePartials() throws Exception {
+    int[] first = { 1, 2, 1, 4, 3, 10 };
+    int[] second = { 1, 9, 5, 7, 3, 11, 3, 12 };
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+        Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+      IntegerAggregator a = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      IntegerAggregator b = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      IntegerAggregator whole = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      OpIterator scan = TestUtil.createTupleList(width1, first);
+      scan.open();
+      while (scan.hasNext()) {
+        Tuple t = scan.next();
+        a.mergeTupleIntoGroup(t);
+        whole.mergeTupleIntoGroup(t);
+      }
+      scan = TestUtil.createTupleList(width1, second);
+      scan.open();
+      while (scan.hasNext()) {
+        Tuple t = scan.next();
+        b.mergeTupleIntoGroup(t);
+        whole.mergeTupleIntoGroup(t);
+      }
+      a.merge(b);
+      OpIterator expected = whole.iterator();
+      expected.open();
+      OpIterator it = a.iterator();
+      it.open();
+      TestUtil.matchAllTuples(expected, it);
+    }
+  }
+
+  /**
+   * Aggregators computing different aggregates cannot be merged
+   */
+  @Test(expected = IllegalArgumentException.class) public void mergeDifferentOp() {
+    new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM)
+        .merge(new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MAX));
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
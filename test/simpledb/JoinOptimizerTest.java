@@ -11,13 +11,19 @@ import org.junit.Test;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.OpIterator;
+import simpledb.execution.ParallelHashJoin;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapFile;
 import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
@@ -274,6 +280,293 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
     }
 
+    /**
+     * Without a primary key, an equi-join is estimated from the number of
+     * distinct values of the join fields: 20 here
+     */
+    @Test
+    public void estimateJoinCardinalityFromDistinctValues() throws ParsingException, IOException {
+        TransactionId tid = new TransactionId();
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName2 + " t1, " + tableName2
+                        + " t2 WHERE t1.c8 = t2.c7;"),
+                new ArrayList<>());
+        LogicalJoinNode node = new LogicalJoinNode("t1", "t2", "c" + 3, "c" + 4,
+                Predicate.Op.EQUALS);
+
+        double cardinality = j.estimateJoinCardinality(node, 800, 2000, false,
+                false, TableStats.getStatsMap());
+        Assert.assertEquals(800 * 2000 / 20, cardinality, 800 * 2000 / 20 * 0.05);
+
+        // a side has at most as many distinct values as tuples
+        cardinality = j.estimateJoinCardinality(node, 10, 10, false, false,
+                TableStats.getStatsMap());
+        Assert.assertEquals(10, cardinality, 0.0);
+    }
+
+    /**
+     * Each join algorithm is costed by how often it scans its inner input
+     */
+    @Test
+    public void estimateJoinAlgorithmCosts() throws ParsingException, IOException {
+        TransactionId tid = new TransactionId();
+        JoinOptimizer jo = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"), new ArrayList<>());
+        LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN);
+        LogicalJoinNode.Algorithm hash = LogicalJoinNode.Algorithm.HASH;
+        LogicalJoinNode.Algorithm loops = LogicalJoinNode.Algorithm.NESTED_LOOPS;
+
+        // a hash join needs an equality
+        Assert.assertEquals(Double.MAX_VALUE,
+                jo.estimateJoinCost(lt, hash, 100, 100, 10, 10, 10), 0.0);
+        Assert.assertEquals(10 + 10 + 100 + 100,
+                jo.estimateJoinCost(eq, hash, 100, 100, 10, 10, 10), 0.0);
+
+        // an outer too large for one hash table scans the inner once more per chunk
+        int chunk = HashEquiJoin.MAP_SIZE;
+        double spill = jo.estimateJoinCost(eq, hash, 2 * chunk, 100, 10, 500, 500)
+                - jo.estimateJoinCost(eq, hash, chunk, 100, 10, 500, 500);
+        Assert.assertEquals(chunk + 500 + 100, spill, 0.0);
+
+        // nested loops rescan the inner once per block, cheaply if it stays cached
+        int blocks = 3 * Join.blockTuples(Join.DEFAULT_BLOCK_PAGES, f1.getTupleDesc());
+        double recomputed = jo.estimateJoinCost(eq, loops, blocks, 10, 1, 1000, 1000);
+        double cached = jo.estimateJoinCost(eq, loops, blocks, 10, 1, 1000, 10);
+        Assert.assertEquals(2 * (1000 - 10), recomputed - cached, 0.0);
+        Assert.assertTrue(jo.estimateJoinCost(eq, hash, blocks, 10, 1, 1000, 1000) < cached);
+
+        // a parallel hash join needs several workers; a large inner streams through it
+        LogicalJoinNode.Algorithm parallel = LogicalJoinNode.Algorithm.PARALLEL_HASH;
+        Assert.assertEquals(Double.MAX_VALUE,
+                jo.estimateJoinCost(eq, parallel, 100, 100, 10, 10, 10), 0.0);
+        jo.setParallelism(4);
+        Assert.assertEquals(10 + 10 + 200 / 4,
+                jo.estimateJoinCost(eq, parallel, 100, 100, 10, 10, 10), 0.0);
+        Assert.assertEquals(Double.MAX_VALUE,
+                jo.estimateJoinCost(lt, parallel, 100, 100, 10, 10, 10), 0.0);
+        Assert.assertEquals(10 + 10 + 1000100 / 4.0,
+                jo.estimateJoinCost(eq, parallel, 100, 1000000, 10, 10, 10), 0.0);
+        Assert.assertTrue(jo.estimateJoinCost(eq, parallel, 100, 1000000, 10, 10, 10)
+                < jo.estimateJoinCost(eq, hash, 100, 1000000, 10, 10, 10));
+        // an outer larger than the budget is partly spilled, but still costed
+        int big = 1000000;
+        double spilled = jo.estimateJoinCost(eq, parallel, big, 100, 10, 10, 10);
+        Assert.assertTrue(spilled < Double.MAX_VALUE);
+        Assert.assertTrue(spilled > 10 + 10 + 2 * (big + 100) / 4.0);
+    }
+
+    /**
+     * The planner runs every join with the algorithm it costed it with
+     */
+    @Test
+    public void plannedJoinAlgorithms() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapFile one = SystemTestUtil.createRandomHeapFile(2, 1, 20, null,
+                new ArrayList<>(), "c");
+        Database.getCatalog().addTable(one, "onerow");
+        TableStats.setTableStats("onerow", new TableStats(one.getId(), 1));
+
+        Assert.assertTrue(plannedJoin(tid, "SELECT * FROM " + tableName1 + " t1, "
+                + tableName2 + " t2 WHERE t1.c1 = t2.c2;") instanceof HashEquiJoin);
+        Assert.assertTrue(plannedJoin(tid, "SELECT * FROM " + tableName1 + " t1, "
+                + tableName2 + " t2 WHERE t1.c1 < t2.c2;") instanceof Join);
+        // comparing a single tuple with every other tuple beats building a hash table
+        Assert.assertTrue(plannedJoin(tid, "SELECT * FROM onerow o, " + tableName2
+                + " t2 WHERE o.c1 = t2.c2;") instanceof Join);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * With several workers an equi-join runs in parallel; without them it is
+     * a chunked hash join
+     */
+    @Test
+    public void plannedParallelHashJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        String q = "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 = t2.c2;";
+        Assert.assertTrue(plannedJoin(tid, q, 4) instanceof ParallelHashJoin);
+        Assert.assertTrue(plannedJoin(tid, q, 1) instanceof HashEquiJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static OpIterator plannedJoin(TransactionId tid, String q) throws Exception {
+        return plannedJoin(tid, q, 1);
+    }
+
+    private static OpIterator plannedJoin(TransactionId tid, String q, int workers) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, q);
+        lp.setParallelism(workers);
+        return findJoin(lp.physicalPlan(tid, TableStats.getStatsMap(), false));
+    }
+
+    private static OpIterator findJoin(OpIterator plan) {
+        for (Class<? extends OpIterator> c : Arrays.asList(Join.class, HashEquiJoin.class, ParallelHashJoin.class)) {
+            OpIterator j = SystemTestUtil.find(plan, c);
+            if (j != null)
+                return j;
+        }
+        return null;
+    }
+
+    /**
+     * Two small chain results are joined with each other rather than one of
+     * them with a large table
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws IOException, ParsingException {
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        String[] names = { "ba", "bb", "bc", "bd" };
+        int[] rows = { 100, 1000, 1000, 100 };
+        for (int i = 0; i < names.length; i++) {
+            // c1 is constant, so joining on it is a cross product
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows[i], 1000,
+                    Collections.singletonMap(1, 1), new ArrayList<>(), "c");
+            Database.getCatalog().addTable(f, names[i]);
+            stats.put(names[i], new TableStats(f.getId(), 1));
+            filterSelectivities.put(names[i], rows[i] == 100 ? 0.1 : 1.0);
+        }
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        nodes.add(new LogicalJoinNode("ba", "bb", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("bb", "bc", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("bc", "bd", "c0", "c0", Predicate.Op.EQUALS));
+
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT COUNT(ba.c0) FROM ba, bb, bc, bd WHERE ba.c0 = bb.c0"
+                        + " AND bb.c1 = bc.c1 AND bc.c0 = bd.c0;"), nodes);
+        List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(nodes.size(), result.size());
+
+        // the join of the two chains comes last
+        LogicalJoinNode last = result.get(result.size() - 1);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("bb", "bc")),
+                new HashSet<>(Arrays.asList(last.t1Alias, last.t2Alias)));
+    }
+
+    /**
+     * A query with more joins than the dynamic programming limit is ordered
+     * greedily, quickly, into a plan that joins every table
+     */
+    @Test(timeout = 10000)
+    public void greedyOrderJoinsTest() throws IOException, ParsingException {
+        final int DIMENSIONS = 30;
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(DIMENSIONS, 1000, 100,
+                null, new ArrayList<>(), "c");
+        Database.getCatalog().addTable(fact, "star");
+        stats.put("star", new TableStats(fact.getId(), 1));
+        filterSelectivities.put("star", 1.0);
+        StringBuilder from = new StringBuilder("star");
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < DIMENSIONS; i++) {
+            HeapFile dim = SystemTestUtil.createRandomHeapFile(2, 10 + 10 * i, 100,
+                    null, new ArrayList<>(), "c");
+            Database.getCatalog().addTable(dim, "d" + i);
+            stats.put("d" + i, new TableStats(dim.getId(), 1));
+            filterSelectivities.put("d" + i, 1.0);
+            nodes.add(new LogicalJoinNode("star", "d" + i, "c" + i, "c0",
+                    Predicate.Op.EQUALS));
+            from.append(", d").append(i);
+            where.append(i == 0 ? "" : " AND ").append("star.c").append(i)
+                    .append(" = d").append(i).append(".c0");
+        }
+
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT COUNT(star.c0) FROM " + from + " WHERE " + where + ";"), nodes);
+        Assert.assertTrue(nodes.size() > j.getDpJoinLimit());
+        List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(nodes.size(), result.size());
+
+        Set<String> tables = new HashSet<>();
+        for (LogicalJoinNode n : result) {
+            tables.add(n.t1Alias);
+            tables.add(n.t2Alias);
+        }
+        Assert.assertEquals(DIMENSIONS + 1, tables.size());
+    }
+
+    /**
+     * Joins of more than 64 tables are ordered greedily even within the
+     * dynamic programming limit, since the exact order numbers the tables
+     * with the bits of a long: two disconnected chains of 63 joins over 65
+     * tables must not be planned as if they were connected
+     */
+    @Test(timeout = 10000)
+    public void exactOrderLimitedTo64Tables() throws IOException, ParsingException {
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, 100,
+                null, new ArrayList<>(), "c");
+        Database.getCatalog().addTable(f, "wide");
+        TableStats ts = new TableStats(f.getId(), 1);
+        stats.put("wide", ts);
+        String[] aliases = new String[65];
+        for (int i = 0; i < aliases.length; i++) {
+            aliases[i] = (i < 59 ? "a" : "b") + i;
+            stats.put(aliases[i], ts);
+            filterSelectivities.put(aliases[i], 1.0);
+        }
+        StringBuilder from = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < aliases.length; i++) {
+            from.append(i == 0 ? "" : ", ").append("wide ").append(aliases[i]);
+            if (i == 0 || i == 59)  // 每条链的第一个表
+                continue;
+            nodes.add(new LogicalJoinNode(aliases[i - 1], aliases[i], "c0", "c0",
+                    Predicate.Op.EQUALS));
+            where.append(where.length() == 0 ? "" : " AND ").append(aliases[i - 1])
+                    .append(".c0 = ").append(aliases[i]).append(".c0");
+        }
+
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT COUNT(a0.c0) FROM " + from + " WHERE " + where + ";"), nodes);
+        j.setDpJoinLimit(63);
+        Assert.assertEquals(63, nodes.size());
+        Assert.assertNull(j.orderJoins(stats, filterSelectivities, false));
+    }
+
+    /**
+     * The exact and the greedy join orders compute the same result
+     */
+    @Test
+    public void greedyPlanMatchesExactPlan() throws Exception {
+        TransactionId tid = new TransactionId();
+        String[] names = { "ga", "gb", "gc", "gd", "ge" };
+        for (int i = 0; i < names.length; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20 + 40 * i, 10,
+                    null, new ArrayList<>(), "c");
+            Database.getCatalog().addTable(f, names[i]);
+            TableStats.setTableStats(names[i], new TableStats(f.getId(), 1));
+        }
+        String q = "SELECT COUNT(ga.c0) FROM ga, gb, gc, gd, ge WHERE ga.c0 = gb.c0"
+                + " AND gb.c1 = gc.c1 AND gc.c0 = gd.c0 AND gd.c1 = ge.c1 AND gb.c0 < 5;";
+
+        LogicalPlan exact = new Parser().generateLogicalPlan(tid, q);
+        LogicalPlan greedy = new Parser().generateLogicalPlan(tid, q);
+        greedy.setDpJoinLimit(1);
+        Assert.assertEquals(count(exact.physicalPlan(tid, TableStats.getStatsMap(), false)),
+                count(greedy.physicalPlan(tid, TableStats.getStatsMap(), false)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int count(OpIterator plan) throws Exception {
+        plan.open();
+        int count = ((IntField) plan.next().getField(0)).getValue();
+        plan.close();
+        return count;
+    }
+
     /**
      * Determine whether the orderJoins implementation is doing a reasonable job
      * of ordering joins, and not taking an unreasonable amount of time to do so
@@ -13,6 +13,7 @@ import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -112,6 +113,44 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for a block nested loops Join using a &gt; predicate
+   */
+  @Test public void blockGtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2, 1);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Unit test for a block nested loops Join whose outer relation spans
+   * several blocks, checking that every match is produced exactly once
+   */
+  @Test public void blockJoinMultipleBlocks() throws Exception {
+    OpIterator outer = new TestUtil.MockScan(0, 5000, 2);
+    OpIterator inner = new TestUtil.MockScan(0, 10, 1);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    Join op = new Join(pred, outer, inner, 1);
+    assertTrue(Join.blockTuples(1, outer.getTupleDesc()) < 5000);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(((IntField) t.getField(0)).getValue() < ((IntField) t.getField(2)).getValue());
+      count++;
+    }
+    assertEquals(45, count);
+    op.rewind();
+    count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(45, count);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,164 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.counts;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Filter;
+import simpledb.execution.Materialize;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MaterializeTest extends SimpleDbTestBase {
+
+  private HeapFile hf;
+  private List<List<Integer>> tuples;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    tuples = new ArrayList<>();
+    hf = SystemTestUtil.createRandomHeapFile(4, 1500, 100, null, tuples, "c");
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Record ids survive the round trip through an int
+   */
+  @Test public void encodeRecordId() throws Exception {
+    SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+    scan.open();
+    while (scan.hasNext()) {
+      RecordId rid = scan.next().getRecordId();
+      assertEquals(rid, hf.decodeRecordId(hf.encodeRecordId(rid)));
+    }
+    scan.close();
+  }
+
+  /**
+   * A scan that carries one column and the record ids, filtered and then
+   * materialized, returns the same rows as filtering a full scan
+   */
+  @Test public void fetchesDeferredColumns() throws Exception {
+    SeqScan scan = new SeqScan(tid, hf.getId(), "t", new int[] { 1 });
+    scan.setRecordIdColumn(true);
+    TupleDesc td = scan.getTupleDesc();
+    assertEquals(2, td.numFields());
+    assertEquals("t." + SeqScan.RECORD_ID_FIELD, td.getFieldName(1));
+
+    OpIterator filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(30)), scan);
+    Materialize op = new Materialize(tid, filter, hf.getId(), "t", new int[] { 3, 0 });
+    assertEquals(4, op.getTupleDesc().numFields());
+    assertEquals(hf.getTupleDesc().getFieldName(3), op.getTupleDesc().getFieldName(2).substring(2));
+
+    List<List<Integer>> expected = new ArrayList<>();
+    for (List<Integer> t : tuples) {
+      if (t.get(1) < 30)
+        expected.add(Arrays.asList(t.get(1), t.get(3), t.get(0)));
+    }
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      List<List<Integer>> actual = new ArrayList<>();
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        actual.add(Arrays.asList(((IntField) t.getField(0)).getValue(),
+            ((IntField) t.getField(2)).getValue(), ((IntField) t.getField(3)).getValue()));
+      }
+      assertEquals(expected, actual);
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * Without a record id column there is nothing to materialize from
+   */
+  @Test(expected = IllegalArgumentException.class) public void needsRecordIds() {
+    new Materialize(tid, new SeqScan(tid, hf.getId(), "t"), hf.getId(), "t", new int[] { 0 });
+  }
+
+  /**
+   * If enabled, the planner only carries the join and filter columns
+   * through a join of a query with a LIMIT and fetches the returned columns
+   * at the top, returning tuples of the same result
+   */
+  @Test public void planned() throws Exception {
+    List<List<Integer>> small = new ArrayList<>();
+    HeapFile hf2 = SystemTestUtil.createRandomHeapFile(3, 200, 100, null, small, "d");
+    Database.getCatalog().addTable(hf, "mt1");
+    Database.getCatalog().addTable(hf2, "mt2");
+    TableStats.setTableStats("mt1", new TableStats(hf.getId(), 10));
+    TableStats.setTableStats("mt2", new TableStats(hf2.getId(), 10));
+    String q = "SELECT mt1.c3, mt2.d2 FROM mt1, mt2 WHERE mt1.c0 = mt2.d1 AND mt1.c2 < 40;";
+
+    Map<List<Integer>, Integer> expected = new HashMap<>();
+    for (List<Integer> a : tuples) {
+      for (List<Integer> b : small) {
+        if (a.get(0).equals(b.get(1)) && a.get(2) < 40)
+          expected.merge(Arrays.asList(a.get(3), b.get(2)), 1, Integer::sum);
+      }
+    }
+
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, q.replace(";", " LIMIT 20;"));
+    lp.setLateMaterialization(true);
+    Operator plan = (Operator) lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator fetch = plan.getChildren()[0];
+    assertTrue(fetch instanceof Materialize);
+    assertTrue(((Materialize) fetch).getChildren()[0] instanceof Materialize);
+    Map<List<Integer>, Integer> limited = counts(plan);
+    int n = 0;
+    for (Map.Entry<List<Integer>, Integer> e : limited.entrySet()) {
+      assertTrue(e.getValue() <= expected.getOrDefault(e.getKey(), 0));
+      n += e.getValue();
+    }
+    assertEquals(20, n);
+
+    // 没有LIMIT时回表次数不受限制，不使用延迟物化
+    lp = new Parser().generateLogicalPlan(tid, q);
+    lp.setLateMaterialization(true);
+    plan = (Operator) lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertFalse(plan.getChildren()[0] instanceof Materialize);
+    assertEquals(expected, counts(plan));
+
+    lp = new Parser().generateLogicalPlan(tid, q);
+    assertFalse(lp.getLateMaterialization());
+    plan = (Operator) lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertFalse(plan.getChildren()[0] instanceof Materialize);
+    assertEquals(expected, counts(plan));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MaterializeTest.class);
+  }
+}
@@ -0,0 +1,174 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SortKey;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.Random;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  final int width = 2;
+  OpIterator scan;
+  OpIterator ascending;
+  OpIterator descending;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() {
+    this.scan = TestUtil.createTupleList(width,
+        new int[] { 3, 0,
+                    1, 1,
+                    4, 2,
+                    1, 3,
+                    5, 4 });
+    this.ascending = TestUtil.createTupleList(width,
+        new int[] { 1, 1,
+                    1, 3,
+                    3, 0,
+                    4, 2,
+                    5, 4 });
+    this.descending = TestUtil.createTupleList(width,
+        new int[] { 5, 4,
+                    4, 2,
+                    3, 0,
+                    1, 1,
+                    1, 3 });
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() with an ascending in-memory sort
+   */
+  @Test public void ascending() throws Exception {
+    OrderBy op = new OrderBy(0, true, scan);
+    op.open();
+    ascending.open();
+    TestUtil.compareDbIterators(ascending, op);
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() with a descending in-memory sort
+   */
+  @Test public void descending() throws Exception {
+    OrderBy op = new OrderBy(0, false, scan);
+    op.open();
+    descending.open();
+    TestUtil.compareDbIterators(descending, op);
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() on two fields, the second descending
+   */
+  @Test public void multipleFields() throws Exception {
+    SortKey key = new SortKey(new int[] { 0, 1 }, new boolean[] { true, false });
+    OrderBy op = new OrderBy(key, scan, OrderBy.DEFAULT_SORT_PAGES);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width,
+        new int[] { 1, 3,
+                    1, 1,
+                    3, 0,
+                    4, 2,
+                    5, 4 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Normalized keys compare like the fields they encode, for negative
+   * integers, string prefixes, embedded zero characters and non-ASCII text,
+   * in both directions
+   */
+  @Test public void normalizedKeys() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    int[] ints = { Integer.MIN_VALUE, -256, -1, 0, 1, 255, 256, Integer.MAX_VALUE };
+    String[] strs = { "", "\0", "\0\0", "a", "a\0", "a\0b", "ab", "b", "\u0100", "\u00ff", "\uffff" };
+    for (boolean asc : new boolean[] { true, false }) {
+      SortKey intKey = new SortKey(0, asc);
+      SortKey strKey = new SortKey(1, asc);
+      for (int a : ints) {
+        for (int b : ints) {
+          int expected = Integer.signum(Integer.compare(a, b));
+          int actual = Integer.signum(SortKey.compareKeys(
+              intKey.encode(tuple(td, a, "")), intKey.encode(tuple(td, b, ""))));
+          assertEquals(asc ? expected : -expected, actual);
+        }
+      }
+      for (String a : strs) {
+        for (String b : strs) {
+          int expected = Integer.signum(a.compareTo(b));
+          int actual = Integer.signum(SortKey.compareKeys(
+              strKey.encode(tuple(td, 0, a)), strKey.encode(tuple(td, 0, b))));
+          assertEquals(asc ? expected : -expected, actual);
+        }
+      }
+    }
+  }
+
+  private static Tuple tuple(TupleDesc td, int i, String s) {
+    Tuple t = new Tuple(td);
+    t.setField(0, new IntField(i));
+    t.setField(1, new StringField(s, Type.STRING_LEN));
+    return t;
+  }
+
+  /**
+   * Sort an input many times larger than a one page budget, which spills
+   * dozens of runs and needs several merge passes; the output must be
+   * complete, ordered, stable, and repeatable after rewind.
+   */
+  @Test public void externalSort() throws Exception {
+    final int n = 20000;
+    int[] data = new int[n * width];
+    Random rand = new Random(42);
+    for (int i = 0; i < n; i++) {
+      data[i * width] = rand.nextInt(1000);
+      data[i * width + 1] = i;
+    }
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(width, data), 1);
+    op.open();
+    assertEquals(n, checkSorted(op));
+    op.rewind();
+    assertEquals(n, checkSorted(op));
+    op.close();
+  }
+
+  private int checkSorted(OpIterator op) throws Exception {
+    int count = 0;
+    int lastKey = Integer.MIN_VALUE;
+    int lastSeq = -1;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      int seq = ((IntField) t.getField(1)).getValue();
+      assertTrue(key >= lastKey);
+      if (key == lastKey) {
+        assertTrue(seq > lastSeq);
+      }
+      lastKey = key;
+      lastSeq = seq;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Exchange;
+import simpledb.execution.Gather;
+import simpledb.execution.OpIterator;
+import simpledb.execution.ParallelAggregate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] OPS = { Aggregator.Op.SUM, Aggregator.Op.AVG,
+      Aggregator.Op.MIN, Aggregator.Op.COUNT };
+  private static final int[] AFIELDS = { 1, 1, 2, 2 };
+
+  private HeapFile hf;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    hf = SystemTestUtil.createRandomHeapFile(3, 20000, 20, null, new ArrayList<List<Integer>>());
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private OpIterator parallelScan() {
+    return Exchange.parallelize(new SeqScan(tid, hf.getId(), "t"), 4);
+  }
+
+  /**
+   * Grouped partial aggregates merge into the same groups as a serial
+   * Aggregate, also after rewind
+   */
+  @Test public void groupedMatchesAggregate() throws Exception {
+    OpIterator gather = parallelScan();
+    assertTrue(gather instanceof Gather);
+    ParallelAggregate op = new ParallelAggregate(gather, AFIELDS, OPS, new int[] { 0 }, 0);
+    Aggregate serial = new Aggregate(new SeqScan(tid, hf.getId(), "t"), AFIELDS, OPS, new int[] { 0 });
+    assertEquals(serial.getTupleDesc(), op.getTupleDesc());
+    op.open();
+    serial.open();
+    TestUtil.matchAllTuples(serial, op);
+    op.rewind();
+    TestUtil.matchAllTuples(serial, op);
+    op.close();
+  }
+
+  /**
+   * Without grouping the result is a single tuple
+   */
+  @Test public void ungrouped() throws Exception {
+    ParallelAggregate op = new ParallelAggregate(parallelScan(), AFIELDS, OPS, new int[0], 0);
+    Aggregate serial = new Aggregate(new SeqScan(tid, hf.getId(), "t"), AFIELDS, OPS, new int[0]);
+    op.open();
+    serial.open();
+    TestUtil.compareDbIterators(serial, op);
+  }
+
+  /**
+   * If the groups do not fit in the budget, the aggregation falls back on
+   * the spilling Aggregate and still gets every group right
+   */
+  @Test public void fallBackOverBudget() throws Exception {
+    int[] gfields = { 0, 1 };
+    ParallelAggregate op = new ParallelAggregate(parallelScan(), AFIELDS, OPS, gfields, 1);
+    Aggregate serial = new Aggregate(new SeqScan(tid, hf.getId(), "t"), AFIELDS, OPS, gfields);
+    op.open();
+    assertTrue(op.fellBack());
+    serial.open();
+    TestUtil.matchAllTuples(serial, op);
+    op.close();
+
+    op = new ParallelAggregate(parallelScan(), AFIELDS, OPS, new int[] { 0 }, 50);
+    op.open();
+    assertFalse(op.fellBack());
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelAggregateTest.class);
+  }
+}
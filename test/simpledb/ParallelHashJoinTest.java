@@ -0,0 +1,154 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.counts;
+import static simpledb.systemtest.SystemTestUtil.drain;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.ParallelHashJoin;
+import simpledb.execution.Predicate;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.List;
+import java.util.Map;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+
+  /**
+   * @return width-column tuples whose first column is i % keys
+   */
+  private static int[] data(int rows, int width, int keys) {
+    int[] d = new int[rows * width];
+    for (int i = 0; i < rows; i++) {
+      d[i * width] = i % keys;
+      for (int j = 1; j < width; j++)
+        d[i * width + j] = i * width + j;
+    }
+    return d;
+  }
+
+  /**
+   * The parallel join returns the same tuples as HashEquiJoin, with
+   * duplicate keys on both sides, also after rewind
+   */
+  @Test public void matchesHashEquiJoin() throws Exception {
+    int[] left = data(3000, 2, 500);
+    int[] right = data(2000, 3, 700);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ParallelHashJoin op = new ParallelHashJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(3, right), 4);
+    HashEquiJoin expected = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(3, right));
+    assertEquals(expected.getTupleDesc(), op.getTupleDesc());
+    Map<List<Integer>, Integer> counts = counts(expected);
+    op.open();
+    assertEquals(counts, counts(drain(op)));
+    op.rewind();
+    assertEquals(counts, counts(drain(op)));
+    op.close();
+  }
+
+  /**
+   * With a budget far smaller than the build input, partitions are spilled
+   * and joined from disk, and the results still match HashEquiJoin
+   */
+  @Test public void spillsOverBudget() throws Exception {
+    int[] left = data(20000, 2, 3000);
+    int[] right = data(5000, 3, 4000);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ParallelHashJoin op = new ParallelHashJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(3, right), 4, 20);
+    HashEquiJoin expected = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(3, right));
+    Map<List<Integer>, Integer> counts = counts(expected);
+    op.open();
+    assertTrue(op.spilledPartitions() > 0);
+    assertTrue(op.spilledPartitions() < op.numPartitions());
+    assertEquals(counts, counts(drain(op)));
+    op.rewind();
+    assertEquals(counts, counts(drain(op)));
+    op.close();
+
+    // 每个线程的哈希表放不下一个分区，分块建表
+    op = new ParallelHashJoin(pred, TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(3, right), 4, 2);
+    op.open();
+    assertEquals(op.numPartitions(), op.spilledPartitions());
+    assertEquals(counts, counts(drain(op)));
+    op.close();
+  }
+
+  /**
+   * The build side of each partition is the smaller one, but the columns of
+   * child1 always come first
+   */
+  @Test public void columnOrder() throws Exception {
+    OpIterator small = TestUtil.createTupleList(2, new int[] { 1, 10, 2, 20 });
+    OpIterator big = TestUtil.createTupleList(2, data(400, 2, 4));
+    ParallelHashJoin op = new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        big, small, 2);
+    op.open();
+    Map<List<Integer>, Integer> counts = counts(drain(op));
+    assertEquals(200, total(counts));
+    for (List<Integer> t : counts.keySet()) {
+      assertEquals(t.get(0), t.get(2));
+      assertEquals(t.get(0) * 10, (int) t.get(3));
+    }
+  }
+
+  /**
+   * Joins with an empty side, or with one worker, still work
+   */
+  @Test public void emptyAndSingleWorker() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ParallelHashJoin op = new ParallelHashJoin(pred, TestUtil.createTupleList(2, new int[0]),
+        TestUtil.createTupleList(2, data(100, 2, 10)), 3);
+    op.open();
+    assertEquals(0, total(counts(drain(op))));
+
+    op = new ParallelHashJoin(pred, TestUtil.createTupleList(2, data(100, 2, 10)),
+        TestUtil.createTupleList(2, data(50, 2, 10)), 1);
+    op.open();
+    assertEquals(100 * 5, total(counts(drain(op))));
+  }
+
+  /**
+   * Closing the join before the workers are done stops them
+   */
+  @Test public void closeEarly() throws Exception {
+    ParallelHashJoin op = new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(2, data(2000, 2, 10)),
+        TestUtil.createTupleList(2, data(2000, 2, 10)), 4);
+    for (int i = 0; i < 3; i++) {
+      op.open();
+      for (int j = 0; j < 10; j++)
+        op.next();
+      op.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void notEquiJoin() {
+    new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+        TestUtil.createTupleList(2, new int[0]), TestUtil.createTupleList(2, new int[0]), 2);
+  }
+
+  private static int total(Map<List<Integer>, Integer> counts) {
+    int n = 0;
+    for (int c : counts.values())
+      n += c;
+    return n;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelHashJoinTest.class);
+  }
+}
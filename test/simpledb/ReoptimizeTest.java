@@ -0,0 +1,167 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static simpledb.systemtest.SystemTestUtil.counts;
+import static simpledb.systemtest.SystemTestUtil.find;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.CardinalityException;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Reoptimize;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ReoptimizeTest extends SimpleDbTestBase {
+
+  private List<List<Integer>> a, b, c;
+  private HeapFile fa, fb, fc;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    a = new ArrayList<>();
+    b = new ArrayList<>();
+    c = new ArrayList<>();
+    fa = SystemTestUtil.createRandomHeapFile(2, 200, 20, null, a, "c");
+    fb = SystemTestUtil.createRandomHeapFile(2, 200, 20, null, b, "d");
+    fc = SystemTestUtil.createRandomHeapFile(2, 200, 20, null, c, "e");
+    Database.getCatalog().addTable(fa, "ra");
+    Database.getCatalog().addTable(fb, "rb");
+    Database.getCatalog().addTable(fc, "rc");
+    // ra和rb的统计信息来自只有5个元组的表，估计的连接结果远小于实际
+    HeapFile tinyA = SystemTestUtil.createRandomHeapFile(2, 5, 1000, null, new ArrayList<>(), "c");
+    HeapFile tinyB = SystemTestUtil.createRandomHeapFile(2, 5, 1000, null, new ArrayList<>(), "d");
+    TableStats.setTableStats("ra", new TableStats(tinyA.getId(), 10));
+    TableStats.setTableStats("rb", new TableStats(tinyB.getId(), 10));
+    TableStats.setTableStats("rc", new TableStats(fc.getId(), 10));
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Operators count the tuples they return since they were opened
+   */
+  @Test public void countsTuples() throws Exception {
+    Filter f = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)), new SeqScan(tid, fa.getId(), "t"));
+    int expected = 0;
+    for (List<Integer> t : a) {
+      if (t.get(0) < 10)
+        expected++;
+    }
+    f.open();
+    while (f.hasNext())
+      f.next();
+    assertEquals(expected, f.getActualCardinality());
+    f.close();
+    f.open();
+    assertEquals(0, f.getActualCardinality());
+    f.close();
+  }
+
+  /**
+   * A hash join whose build input is much larger than estimated fails to
+   * open, and passes on the tuples it has read
+   */
+  @Test public void hashJoinChecksBuildInput() throws Exception {
+    Filter build = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), new SeqScan(tid, fa.getId(), "a"));
+    build.setEstimatedCardinality(2);
+    HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), build, new SeqScan(tid, fb.getId(), "b"));
+    j.open();  // 默认不检查
+    j.close();
+
+    j.setCardinalityThreshold(10);
+    try {
+      j.open();
+      fail("expected CardinalityException");
+    } catch (CardinalityException e) {
+      assertEquals(build, e.getInput());
+      assertEquals(a.size(), e.getActual());
+      assertEquals(a.size(), e.getTuples().size());
+    }
+    j.close();
+
+    build.setEstimatedCardinality(a.size() / 2);
+    j.open();
+    j.close();
+  }
+
+  /**
+   * A build input too large for the hash table is joined in parts without
+   * being checked, since its tuples could not be passed on
+   */
+  @Test public void hashJoinSkipsLargeBuildInput() throws Exception {
+    HeapFile big = SystemTestUtil.createRandomHeapFile(1, HashEquiJoin.MAP_SIZE + 10, 20, null, new ArrayList<>(), "c");
+    Filter build = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), new SeqScan(tid, big.getId(), "a"));
+    build.setEstimatedCardinality(2);
+    HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), build, new SeqScan(tid, fb.getId(), "b"));
+    j.setCardinalityThreshold(10);
+    j.open();
+    j.close();
+  }
+
+  /**
+   * The joins above a misestimated join are ordered again when enabled, and
+   * the query still returns the same tuples
+   */
+  @Test public void replansMisestimatedJoin() throws Exception {
+    String q = "SELECT ra.c1, rc.e1 FROM ra, rb, rc WHERE ra.c0 = rb.d0 AND rb.d1 = rc.e0;";
+    Map<List<Integer>, Integer> expected = new HashMap<>();
+    for (List<Integer> x : a) {
+      for (List<Integer> y : b) {
+        if (!x.get(0).equals(y.get(0)))
+          continue;
+        for (List<Integer> z : c) {
+          if (y.get(1).equals(z.get(0)))
+            expected.merge(Arrays.asList(x.get(1), z.get(1)), 1, Integer::sum);
+        }
+      }
+    }
+
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, q);
+    lp.setParallelism(1);
+    lp.setReoptimizationThreshold(Reoptimize.DEFAULT_THRESHOLD);
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    Reoptimize r = find(plan, Reoptimize.class);
+    assertTrue(r != null);
+    assertEquals(expected, counts(plan));
+    assertTrue(r.getReplans() > 0);
+
+    lp = new Parser().generateLogicalPlan(tid, q);
+    lp.setParallelism(1);
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertEquals(null, find(plan, Reoptimize.class));
+    assertEquals(expected, counts(plan));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ReoptimizeTest.class);
+  }
+}
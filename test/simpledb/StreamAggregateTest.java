@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SortKey;
+import simpledb.execution.StreamAggregate;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+  final int width = 3;
+
+  /**
+   * Unit test for StreamAggregate.getNext() over input clustered on the
+   * group-by field; groups come out in input order
+   */
+  @Test public void clusteredInput() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(width,
+        new int[] { 5, 1, 2,
+                    5, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 2, 4,
+                    3, 1, 9 });
+    StreamAggregate op = new StreamAggregate(scan, new int[] { 2, 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MAX, Aggregator.Op.COUNT },
+        new int[] { 0 });
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(4,
+        new int[] { 5, 6, 4, 2,
+                    1, 6, 6, 1,
+                    3, 15, 9, 3 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * StreamAggregate over two group-by fields of sorted input gives the same
+   * groups as the hash-based Aggregate
+   */
+  @Test public void sortedInputMatchesAggregate() throws Exception {
+    int[] data = new int[300 * width];
+    for (int i = 0; i < 300; i++) {
+      data[i * width] = (i * 7) % 5;
+      data[i * width + 1] = (i * 11) % 3;
+      data[i * width + 2] = i;
+    }
+    int[] afields = { 2, 2 };
+    Aggregator.Op[] ops = { Aggregator.Op.AVG, Aggregator.Op.MIN };
+    int[] gfields = { 1, 0 };
+    OpIterator sorted = new OrderBy(new SortKey(new int[] { 0, 1 }, new boolean[] { true, false }),
+        TestUtil.createTupleList(width, data), OrderBy.DEFAULT_SORT_PAGES);
+    StreamAggregate op = new StreamAggregate(sorted, afields, ops, gfields);
+    Aggregate hash = new Aggregate(TestUtil.createTupleList(width, data), afields, ops, gfields);
+    assertEquals(hash.getTupleDesc(), op.getTupleDesc());
+    op.open();
+    hash.open();
+    TestUtil.matchAllTuples(hash, op);
+  }
+
+  /**
+   * Empty input gives no groups
+   */
+  @Test public void emptyInput() throws Exception {
+    StreamAggregate op = new StreamAggregate(TestUtil.createTupleList(width, new int[0]),
+        new int[] { 2 }, new Aggregator.Op[] { Aggregator.Op.SUM }, new int[] { 0 });
+    op.open();
+    assertTrue(!op.hasNext());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StreamAggregateTest.class);
+  }
+}
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,12 +13,15 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -160,4 +164,127 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * The histograms are built when the stats are, so estimates do not read
+	 * the table again: they still work once its file is gone
+	 */
+	@Test public void histogramsCached() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		double lt = s.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(16));
+		double eq = s.estimateSelectivity(3, Predicate.Op.EQUALS, new IntField(16));
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		Assert.assertTrue(f.getFile().delete());
+		Assert.assertEquals(lt, s.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(16)), 0.0);
+		Assert.assertEquals(eq, s.estimateSelectivity(3, Predicate.Op.EQUALS, new IntField(16)), 0.0);
+		Assert.assertEquals(0.5, lt, 0.1);
+	}
+
+	/**
+	 * Nothing is selected from an empty table
+	 */
+	@Test public void emptyTable() throws Exception {
+		HeapFile empty = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(empty, name);
+		TableStats s = new TableStats(Database.getCatalog().getTableId(name), IO_COST);
+		Assert.assertEquals(0, s.totalTuples());
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(5)), 0.0);
+	}
+
+	/**
+	 * Stats saved to a stats file are read back when a table is first looked
+	 * up after loading the file
+	 */
+	@Test public void saveAndLoad() throws Exception {
+		File file = File.createTempFile("table", ".stats");
+		Assert.assertTrue(file.delete());
+		try {
+			TableStats.loadStatistics(file);
+			TableStats s = TableStats.getTableStats(tableName);
+			Assert.assertEquals(10200, s.totalTuples());
+			TableStats.saveStatistics();
+			Assert.assertTrue(file.exists());
+
+			TableStats.loadStatistics(file);
+			TableStats loaded = TableStats.getTableStats(tableName);
+			Assert.assertNotSame(s, loaded);
+			Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+			Assert.assertEquals(s.estimateScanCost(), loaded.estimateScanCost(), 0.0);
+			for (int v = 0; v <= 32; v += 4) {
+				Field f = new IntField(v);
+				Assert.assertEquals(s.estimateSelectivity(2, Predicate.Op.LESS_THAN, f),
+						loaded.estimateSelectivity(2, Predicate.Op.LESS_THAN, f), 0.0);
+			}
+		} finally {
+			TableStats.loadStatistics(null);
+			file.delete();
+		}
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool update known stats, and
+	 * ANALYZE recomputes them
+	 */
+	@Test public void incrementalAndAnalyze() throws Exception {
+		HeapFile small = SystemTestUtil.createRandomHeapFile(2, 100, 10, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(small, name);
+		TableStats.loadStatistics(null);
+		TableStats s = TableStats.getTableStats(name);
+		Assert.assertEquals(100, s.totalTuples());
+		double before = s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(3));
+
+		TransactionId tid = new TransactionId();
+		List<Tuple> inserted = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			Tuple t = new Tuple(small.getTupleDesc());
+			t.setField(0, new IntField(3));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, small.getId(), t);
+			inserted.add(t);
+		}
+		Assert.assertEquals(200, s.totalTuples());
+		Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(3)) > before + 0.3);
+
+		for (int i = 0; i < 50; i++)
+			Database.getBufferPool().deleteTuple(tid, inserted.get(i));
+		Assert.assertEquals(150, s.totalTuples());
+		Database.getBufferPool().transactionComplete(tid);
+
+		TableStats analyzed = TableStats.analyze(name);
+		Assert.assertSame(analyzed, TableStats.getTableStats(name));
+		Assert.assertEquals(150, analyzed.totalTuples());
+	}
+
+	/**
+	 * Stats estimated from a sample of the pages scale the tuple count up
+	 * to the whole table and estimate selectivities and distinct counts
+	 * close to those of the whole table
+	 */
+	@Test public void sampled() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, 32, null, null);
+		Assert.assertEquals(40, hf.numPages());
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+
+		TableStats full = new TableStats(hf.getId(), IO_COST, 0);
+		Assert.assertFalse(full.isSampled());
+		TableStats.setSampleSize(name, 10);
+		Assert.assertEquals(10, TableStats.getSampleSize(name));
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		Assert.assertTrue(s.isSampled());
+		Assert.assertEquals(full.totalTuples(), s.totalTuples());
+		Assert.assertEquals(full.estimateScanCost(), s.estimateScanCost(), 0.0);
+		Assert.assertEquals(32, full.numDistinct(0), 1.0);
+		Assert.assertEquals(32, s.numDistinct(0), 0.0);
+		Field f = new IntField(16);
+		Assert.assertEquals(full.estimateSelectivity(0, Predicate.Op.LESS_THAN, f),
+				s.estimateSelectivity(0, Predicate.Op.LESS_THAN, f), 0.05);
+
+		// 表的页数不超过采样页数时读取全表
+		TableStats.setSampleSize(name, 40);
+		Assert.assertFalse(new TableStats(hf.getId(), IO_COST).isSampled());
+	}
 }
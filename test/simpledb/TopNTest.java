@@ -0,0 +1,195 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.TopN;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+import Zql.ZDelete;
+import Zql.ZqlParser;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  final int width = 2;
+  OpIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() {
+    this.scan = TestUtil.createTupleList(width,
+        new int[] { 3, 0,
+                    1, 1,
+                    4, 2,
+                    1, 3,
+                    5, 4,
+                    9, 5,
+                    2, 6 });
+  }
+
+  /**
+   * Unit test for TopN.getNext() with an ascending order
+   */
+  @Test public void ascending() throws Exception {
+    TopN op = new TopN(0, true, 3, scan);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width,
+        new int[] { 1, 1,
+                    1, 3,
+                    2, 6 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * Unit test for TopN.getNext() with a descending order and rewind
+   */
+  @Test public void descendingRewind() throws Exception {
+    TopN op = new TopN(0, false, 2, scan);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width,
+        new int[] { 9, 5,
+                    5, 4 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * A limit larger than the input returns the whole input in order, a limit
+   * of 0 returns nothing
+   */
+  @Test public void limitBounds() throws Exception {
+    TopN op = new TopN(0, true, 100, scan);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(7, count);
+
+    op = new TopN(0, true, 0, scan);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * TopN returns the same tuples as the first n tuples of a full OrderBy,
+   * including the input order of ties
+   */
+  @Test public void matchesOrderBy() throws Exception {
+    final int n = 5000;
+    int[] data = new int[n * width];
+    Random rand = new Random(7);
+    for (int i = 0; i < n; i++) {
+      data[i * width] = rand.nextInt(50);
+      data[i * width + 1] = i;
+    }
+    OrderBy sorted = new OrderBy(0, false, TestUtil.createTupleList(width, data));
+    TopN top = new TopN(0, false, 137, TestUtil.createTupleList(width, data));
+    sorted.open();
+    top.open();
+    for (int i = 0; i < 137; i++) {
+      assertTrue(top.hasNext());
+      assertTrue(TestUtil.compareTuples(sorted.next(), top.next()));
+    }
+    assertFalse(top.hasNext());
+  }
+
+  /**
+   * Unit test for Limit.getNext() and rewind
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(2, scan);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width,
+        new int[] { 3, 0,
+                    1, 1 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    Tuple t = op.next();
+    assertEquals(3, ((IntField) t.getField(0)).getValue());
+  }
+
+  /**
+   * The LIMIT of a query with a subquery limits the query, not the subquery
+   */
+  @Test public void limitOfOuterQuery() throws Exception {
+    HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 100, 5, null, new ArrayList<>(), "c");
+    HeapFile inner = SystemTestUtil.createRandomHeapFile(2, 50, 5, null, new ArrayList<>(), "d");
+    Database.getCatalog().addTable(outer, "lt1");
+    Database.getCatalog().addTable(inner, "lt2");
+    TableStats.setTableStats("lt1", new TableStats(outer.getId(), 10));
+    TableStats.setTableStats("lt2", new TableStats(inner.getId(), 10));
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT lt1.c1 FROM lt1 WHERE lt1.c0 = (SELECT lt2.d0 FROM lt2) LIMIT 3;");
+    assertEquals(3, lp.getLimit());
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(SystemTestUtil.find(plan, Limit.class) != null);
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    // 两个表的c0和d0都只有5种取值，不加限制时连接结果远多于3个
+    assertEquals(3, n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A DELETE with a LIMIT is rejected rather than deleting every match
+   */
+  @Test public void deleteRejectsLimit() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, 5, null, new ArrayList<>(), "c");
+    Database.getCatalog().addTable(f, "ld");
+    String text = "DELETE FROM ld WHERE ld.c0 = 1 LIMIT 5;";
+    assertEquals(5, Parser.limitOf(text));
+    ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+        Parser.stripLimit(text).getBytes(StandardCharsets.UTF_8)));
+    ZDelete d = (ZDelete) p.readStatement();
+    TransactionId tid = new TransactionId();
+    try {
+      new Parser().handleDeleteStatement(d, tid, 5);
+      fail("expected ParsingException");
+    } catch (ParsingException expected) {
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -83,6 +83,24 @@ public class TupleDescTest extends SimpleDbTestBase {
         }
     }
     
+    /**
+     * Unit test for TupleDesc.project()
+     */
+    @Test public void project() {
+        TupleDesc td = Utility.getTupleDesc(4, "f");
+        TupleDesc p = td.project(new int[] { 3, 1 });
+        assertEquals(2, p.numFields());
+        assertEquals("f3", p.getFieldName(0));
+        assertEquals("f1", p.getFieldName(1));
+        assertEquals(Type.INT_TYPE, p.getFieldType(0));
+        try {
+            td.project(new int[] { 4 });
+            Assert.fail("4 is not a field of td");
+        } catch (NoSuchElementException e) {
+            // expected to get here
+        }
+    }
+
     /**
      * Unit test for TupleDesc.nameToId()
      */
@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -12,6 +13,7 @@ import org.junit.Assert;
 
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
@@ -151,6 +153,56 @@ public class SystemTestUtil {
         }
     }
 
+    /**
+     * @return the tuples left in the open iterator, as lists
+     */
+    public static List<List<Integer>> drain(OpIterator iterator)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        while (iterator.hasNext())
+            tuples.add(tupleToList(iterator.next()));
+        return tuples;
+    }
+
+    /**
+     * @return how many times each tuple occurs in tuples
+     */
+    public static Map<List<Integer>, Integer> counts(List<List<Integer>> tuples) {
+        Map<List<Integer>, Integer> counts = new HashMap<>();
+        for (List<Integer> t : tuples)
+            counts.merge(t, 1, Integer::sum);
+        return counts;
+    }
+
+    /**
+     * Opens the iterator, reads all its tuples and closes it.
+     * @return how many times each tuple occurs in it
+     */
+    public static Map<List<Integer>, Integer> counts(OpIterator iterator)
+            throws DbException, TransactionAbortedException {
+        iterator.open();
+        Map<List<Integer>, Integer> counts = counts(drain(iterator));
+        iterator.close();
+        return counts;
+    }
+
+    /**
+     * @return the first operator of class c in the plan, searching from its
+     * root down, or null if there is none
+     */
+    public static <T> T find(OpIterator plan, Class<T> c) {
+        if (c.isInstance(plan))
+            return c.cast(plan);
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                T found = find(child, c);
+                if (found != null)
+                    return found;
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM